@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef TERMINAL_PERF_STATS_H
+#define TERMINAL_PERF_STATS_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include <utils/Mutex.h>
+#include <utils/Timers.h>
+
+#include <atomic>
+
+namespace android {
+
+/*
+ * Buckets in a LatencyHistogram, must match Terminal.PerfStats
+ */
+#define HISTOGRAM_BUCKETS       16
+
+/*
+ * Counts of durations in power of two microsecond buckets: bucket 0 holds
+ * anything under 1us, bucket i under 2^i us, and the last everything
+ * longer. Safe to add to from any thread.
+ */
+class LatencyHistogram {
+public:
+    LatencyHistogram() {
+        for (size_t i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            mBuckets[i].store(0, std::memory_order_relaxed);
+        }
+    }
+
+    inline void add(nsecs_t duration) {
+        uint64_t micros = duration > 0 ? duration / 1000 : 0;
+        size_t bucket = 0;
+        while (micros > 0 && bucket < HISTOGRAM_BUCKETS - 1) {
+            micros >>= 1;
+            bucket++;
+        }
+        mBuckets[bucket].fetch_add(1, std::memory_order_relaxed);
+    }
+
+    inline uint32_t get(size_t bucket) const {
+        return mBuckets[bucket].load(std::memory_order_relaxed);
+    }
+
+private:
+    std::atomic<uint32_t> mBuckets[HISTOGRAM_BUCKETS];
+};
+
+/*
+ * Counters for the hot paths of a Terminal, cheap enough to leave in
+ * place. Counts are always kept; anything needing a clock read is only
+ * measured while enabled.
+ */
+struct PerfStats {
+    PerfStats() : enabled(false), parseNanos(0), damageEvents(0), rowSnapshots(0),
+            snapshotRows(0) {
+    }
+
+    std::atomic<bool> enabled;
+
+    // Time spent inside vterm_push_bytes()
+    std::atomic<uint64_t> parseNanos;
+    // Damage rectangles reported by libvterm
+    std::atomic<uint64_t> damageEvents;
+    // Row snapshots handed to renderers, and the rows they held
+    std::atomic<uint64_t> rowSnapshots;
+    std::atomic<uint64_t> snapshotRows;
+
+    // Time to acquire the terminal lock, and how long it was then held
+    LatencyHistogram lockWait;
+    LatencyHistogram lockHold;
+};
+
+/*
+ * Mutex::Autolock that also records how long the lock was waited for and
+ * held, when stats are enabled.
+ */
+class TimedAutolock {
+public:
+    inline TimedAutolock(Mutex& lock, PerfStats* stats) : mLock(lock), mStats(NULL) {
+        if (stats->enabled.load(std::memory_order_relaxed)) {
+            const nsecs_t start = systemTime(SYSTEM_TIME_MONOTONIC);
+            mLock.lock();
+            mAcquired = systemTime(SYSTEM_TIME_MONOTONIC);
+            stats->lockWait.add(mAcquired - start);
+            mStats = stats;
+        } else {
+            mLock.lock();
+        }
+    }
+
+    inline ~TimedAutolock() {
+        if (mStats != NULL) {
+            mStats->lockHold.add(systemTime(SYSTEM_TIME_MONOTONIC) - mAcquired);
+        }
+        mLock.unlock();
+    }
+
+private:
+    Mutex& mLock;
+    PerfStats* mStats;
+    nsecs_t mAcquired;
+};
+
+} /* namespace android */
+
+#endif /* TERMINAL_PERF_STATS_H */
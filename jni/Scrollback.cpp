@@ -0,0 +1,705 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "Terminal"
+
+#include <utils/Log.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <unistd.h>
+
+#include <algorithm>
+
+#include "Scrollback.h"
+
+namespace android {
+
+/*
+ * Byte marking the right half of a double-width character in encoded text;
+ * never appears in valid UTF-8.
+ */
+static const uint8_t kWideContinuation = 0xff;
+
+/*
+ * Granularity of line storage, a power of two
+ */
+static const size_t kCapacityQuantum = 64;
+
+static inline size_t utf8Length(uint32_t c) {
+    if (c == (uint32_t) -1 || c < 0x80) return 1;
+    if (c < 0x800) return 2;
+    if (c < 0x10000) return 3;
+    return 4;
+}
+
+static inline uint8_t* utf8Encode(uint32_t c, uint8_t* out) {
+    if (c == (uint32_t) -1) {
+        *out++ = kWideContinuation;
+    } else if (c < 0x80) {
+        *out++ = c;
+    } else if (c < 0x800) {
+        *out++ = 0xc0 | (c >> 6);
+        *out++ = 0x80 | (c & 0x3f);
+    } else if (c < 0x10000) {
+        *out++ = 0xe0 | (c >> 12);
+        *out++ = 0x80 | ((c >> 6) & 0x3f);
+        *out++ = 0x80 | (c & 0x3f);
+    } else {
+        *out++ = 0xf0 | ((c >> 18) & 0x07);
+        *out++ = 0x80 | ((c >> 12) & 0x3f);
+        *out++ = 0x80 | ((c >> 6) & 0x3f);
+        *out++ = 0x80 | (c & 0x3f);
+    }
+    return out;
+}
+
+static inline const uint8_t* utf8Decode(const uint8_t* in, uint32_t* c) {
+    uint8_t b = *in++;
+    if (b == kWideContinuation) {
+        *c = (uint32_t) -1;
+    } else if (b < 0x80) {
+        *c = b;
+    } else if (b < 0xe0) {
+        *c = ((b & 0x1f) << 6) | (in[0] & 0x3f);
+        in += 1;
+    } else if (b < 0xf0) {
+        *c = ((b & 0x0f) << 12) | ((in[0] & 0x3f) << 6) | (in[1] & 0x3f);
+        in += 2;
+    } else {
+        *c = ((b & 0x07) << 18) | ((in[0] & 0x3f) << 12) | ((in[1] & 0x3f) << 6)
+                | (in[2] & 0x3f);
+        in += 3;
+    }
+    return in;
+}
+
+/*
+ * Feeds codepoints through a three character window into a TrigramBloom
+ */
+class TrigramHasher {
+public:
+    inline TrigramHasher(TrigramBloom* bloom) : mBloom(bloom), mWindow(0), mCount(0) {
+        bloom->clear();
+    }
+
+    inline void add(uint32_t c) {
+        if (c == (uint32_t) -1) {
+            // Right half of a double-width character, not part of the text
+            return;
+        }
+
+        // Every folded character fits in a byte
+        if (c == 0) {
+            c = ' ';
+        } else if (c >= 'A' && c <= 'Z') {
+            c += 'a' - 'A';
+        } else if (c >= 0x80) {
+            c = 0x80;
+        }
+
+        mWindow = ((mWindow << 8) | c) & 0xffffff;
+        if (++mCount >= 3) {
+            const uint32_t bit = (mWindow * 0x9e3779b1u) >> 25;
+            mBloom->bits[bit >> 6] |= 1ULL << (bit & 63);
+        }
+    }
+
+private:
+    TrigramBloom* mBloom;
+    uint32_t mWindow;
+    size_t mCount;
+};
+
+void buildTrigramBloom(const uint32_t* chars, size_t count, TrigramBloom* bloom) {
+    TrigramHasher hasher(bloom);
+    for (size_t i = 0; i < count; i++) {
+        hasher.add(chars[i]);
+    }
+}
+
+void ScrollbackLine::copyFrom(dimen_t cols, const VTermScreenCell* cells) {
+    this->cols = cols;
+
+    // Trailing blanks formatted like the last cell are implied by its span
+    dimen_t length = cols;
+    while (length > 0 && isBlankCell(cells[length - 1])
+            && isCellStyleEqual(cells[length - 1], cells[cols - 1])) {
+        length--;
+    }
+
+    // Measure before encoding so storage is only grown once
+    dimen_t spanCount = 0;
+    size_t textSize = 0;
+    for (dimen_t col = 0; col < cols; col++) {
+        if (col == 0 || !isCellStyleEqual(cells[col], cells[col - 1])) {
+            spanCount++;
+        }
+        if (col < length) {
+            textSize += utf8Length(cells[col].chars[0]);
+        }
+    }
+
+    ensureCapacity(spanCount * sizeof(ScrollbackSpan) + textSize);
+
+    mLength = length;
+    mSpanCount = spanCount;
+    mTextSize = textSize;
+
+    ScrollbackSpan* span = spans() - 1;
+    uint8_t* out = text();
+    TrigramHasher hasher(&bloom);
+    for (dimen_t col = 0; col < cols; col++) {
+        const VTermScreenCell& cell = cells[col];
+        if (col == 0 || !isCellStyleEqual(cell, cells[col - 1])) {
+            span++;
+            span->start = col;
+            span->attrs = cell.attrs;
+            span->fg = cell.fg;
+            span->bg = cell.bg;
+        }
+        if (col < length) {
+            out = utf8Encode(cell.chars[0], out);
+            hasher.add(cell.chars[0]);
+        }
+    }
+}
+
+void ScrollbackLine::ensureCapacity(size_t size) {
+    if (size > mCapacity) {
+        // Lines are recycled through the ring, so round up to make it
+        // unlikely a later, slightly longer line needs to grow it again
+        size = (size + kCapacityQuantum - 1) & ~(kCapacityQuantum - 1);
+        delete[] mData;
+        mData = new uint8_t[size];
+        mCapacity = size;
+    }
+}
+
+/*
+ * Header of a line written to a ScrollbackSpill, followed by its data
+ */
+struct ScrollbackLineHeader {
+    dimen_t cols;
+    dimen_t length;
+    dimen_t spanCount;
+    uint8_t wrapped;
+    uint32_t textSize;
+};
+
+size_t ScrollbackLine::getSerializedSize() const {
+    return sizeof(ScrollbackLineHeader) + mSpanCount * sizeof(ScrollbackSpan) + mTextSize;
+}
+
+void ScrollbackLine::serialize(uint8_t* out) const {
+    ScrollbackLineHeader header = { cols, mLength, mSpanCount, wrapped, mTextSize };
+    memcpy(out, &header, sizeof(header));
+    memcpy(out + sizeof(header), mData, mSpanCount * sizeof(ScrollbackSpan) + mTextSize);
+}
+
+void ScrollbackLine::deserialize(const uint8_t* in) {
+    // Source may be unaligned, so copy header out before reading it
+    ScrollbackLineHeader header;
+    memcpy(&header, in, sizeof(header));
+
+    size_t size = header.spanCount * sizeof(ScrollbackSpan) + header.textSize;
+    ensureCapacity(size);
+    memcpy(mData, in + sizeof(header), size);
+
+    cols = header.cols;
+    wrapped = header.wrapped != 0;
+    bloom.fill();
+    mLength = header.length;
+    mSpanCount = header.spanCount;
+    mTextSize = header.textSize;
+}
+
+dimen_t ScrollbackLine::copyTo(dimen_t cols, VTermScreenCell* cells) const {
+    dimen_t n = cols > this->cols ? this->cols : cols;
+
+    const ScrollbackSpan* span = spans();
+    const ScrollbackSpan* spanEnd = span + mSpanCount;
+    const uint8_t* in = text();
+    for (dimen_t col = 0; col < n; col++) {
+        while (span + 1 < spanEnd && span[1].start <= col) {
+            span++;
+        }
+
+        VTermScreenCell& cell = cells[col];
+        memset(&cell, 0, sizeof(VTermScreenCell));
+        cell.attrs = span->attrs;
+        cell.fg = span->fg;
+        cell.bg = span->bg;
+        cell.width = 1;
+
+        if (col < mLength) {
+            in = utf8Decode(in, &cell.chars[0]);
+            if (cell.chars[0] == (uint32_t) -1 && col > 0) {
+                cells[col - 1].width = 2;
+            }
+        }
+    }
+    return n;
+}
+
+/*
+ * Split one logical line into rows of cols cells, appending them to out.
+ * A double-width character is never split across rows. When continues is
+ * set the logical line carries on past the given cells, so its trailing
+ * blanks are kept and the last row stays marked as wrapped.
+ */
+static void reflowLogicalLine(const std::vector<VTermScreenCell>& cells, dimen_t cols,
+        bool continues, std::vector<VTermScreenCell>* row,
+        std::vector<ScrollbackLine*>* out) {
+    size_t length = cells.size();
+
+    VTermScreenCell fill;
+    memset(&fill, 0, sizeof(VTermScreenCell));
+    fill.width = 1;
+    if (length > 0) {
+        fill.attrs = cells[length - 1].attrs;
+        fill.fg = cells[length - 1].fg;
+        fill.bg = cells[length - 1].bg;
+    }
+
+    // Padding is regenerated for the new width, so drop it
+    while (!continues && length > 0 && isBlankCell(cells[length - 1])
+            && isCellStyleEqual(cells[length - 1], fill)) {
+        length--;
+    }
+
+    size_t start = 0;
+    do {
+        size_t end = start + cols < length ? start + cols : length;
+        if (end < length && end > start + 1 && cells[end].chars[0] == (uint32_t) -1) {
+            // Move the left half down to join its continuation
+            end--;
+        }
+
+        for (size_t i = start; i < end; i++) {
+            (*row)[i - start] = cells[i];
+        }
+        for (size_t i = end - start; i < cols; i++) {
+            (*row)[i] = fill;
+        }
+
+        ScrollbackLine* line = new ScrollbackLine(cols);
+        line->copyFrom(cols, row->data());
+        line->wrapped = end < length || continues;
+        out->push_back(line);
+
+        start = end;
+    } while (start < length);
+}
+
+/*
+ * Rewrap lines, oldest first, to the given width by joining soft-wrapped
+ * runs back into logical lines and splitting them again. Source lines are
+ * only read, so this is safe to run without the terminal lock as long as
+ * nothing frees them meanwhile.
+ */
+void reflowLines(const std::vector<ScrollbackLine*>& source, dimen_t cols,
+        std::vector<ScrollbackLine*>* out) {
+    std::vector<VTermScreenCell> logical;
+    std::vector<VTermScreenCell> row(cols);
+
+    out->reserve(source.size());
+    for (size_t i = 0; i < source.size(); i++) {
+        const ScrollbackLine* line = source[i];
+        size_t start = logical.size();
+        logical.resize(start + line->cols);
+        line->copyTo(line->cols, &logical[start]);
+
+        if (start > 0 && logical[start].width == 2 && logical[start - 1].chars[0] == 0) {
+            // Drop the padding left when this character was wrapped early
+            logical.erase(logical.begin() + start - 1);
+        }
+
+        bool last = i + 1 == source.size();
+        if (line->wrapped && !last) {
+            continue;
+        }
+        reflowLogicalLine(logical, cols, line->wrapped, &row, out);
+        logical.clear();
+    }
+}
+
+/*
+ * Size segment files are filled to before starting another. Anything up
+ * to this much dead history is kept on storage until its segment goes.
+ */
+static const size_t kSpillSegmentSize = 4 * 1024 * 1024;
+
+/*
+ * Pending bytes written out without waiting for the next flush()
+ */
+static const size_t kSpillFlushSize = 256 * 1024;
+
+/*
+ * Lines kept paged in, comfortably more than a few screens
+ */
+static const size_t kSpillResidentLines = 1024;
+
+ScrollbackSpill::PageIn::~PageIn() {
+    for (size_t i = 0; i < ranges.size(); i++) {
+        close(ranges[i].fd);
+    }
+}
+
+ScrollbackSpill::ScrollbackSpill() : mEnd(0), mFirst(0), mCapacity(0), mGeneration(0) {
+}
+
+ScrollbackSpill::~ScrollbackSpill() {
+    for (size_t i = 0; i < mSegments.size(); i++) {
+        closeSegment(&mSegments[i]);
+    }
+}
+
+bool ScrollbackSpill::open(const char* dir) {
+    mDir = dir;
+    return addSegment();
+}
+
+bool ScrollbackSpill::addSegment() {
+    char path[PATH_MAX];
+    snprintf(path, sizeof(path), "%s/scrollback-XXXXXX", mDir.c_str());
+    Segment segment;
+    segment.fd = mkstemp(path);
+    if (segment.fd == -1) {
+        ALOGE("failed to create spill file in %s: %s", mDir.c_str(), strerror(errno));
+        return false;
+    }
+    // Only ever reachable through our descriptor, so nothing leaks on crash
+    unlink(path);
+
+    segment.map = NULL;
+    segment.mapSize = 0;
+    segment.base = mEnd;
+    segment.written = 0;
+    mSegments.push_back(segment);
+    return true;
+}
+
+void ScrollbackSpill::closeSegment(Segment* segment) {
+    if (segment->map != NULL) {
+        munmap(segment->map, segment->mapSize);
+    }
+    close(segment->fd);
+}
+
+bool ScrollbackSpill::append(const ScrollbackLine* line) {
+    size_t lineSize = line->getSerializedSize();
+
+    // Start a new segment rather than let a line straddle two
+    const Segment& newest = mSegments.back();
+    const size_t used = newest.written + mPending.size();
+    if (used > 0 && used + lineSize > kSpillSegmentSize) {
+        if (!flush() || !addSegment()) {
+            return false;
+        }
+    }
+
+    const size_t pending = mPending.size();
+    mPending.resize(pending + lineSize);
+    line->serialize(mPending.data() + pending);
+
+    mOffsets.push_back(mEnd);
+    mBlooms.push_back(line->bloom);
+    mEnd += lineSize;
+
+    if (mPending.size() >= kSpillFlushSize) {
+        flush();
+    }
+
+    if (size() > mCapacity) {
+        mFirst++;
+        dropSegments();
+    }
+    return true;
+}
+
+/*
+ * Write out lines appended since the last call, in a single write. Lines
+ * that couldn't be written are forgotten.
+ */
+bool ScrollbackSpill::flush() {
+    if (mPending.empty()) {
+        return true;
+    }
+
+    Segment& newest = mSegments.back();
+    if (pwrite(newest.fd, mPending.data(), mPending.size(), newest.written)
+            != (ssize_t) mPending.size()) {
+        ALOGE("failed to spill scrollback: %s", strerror(errno));
+        const size_t end = newest.base + newest.written;
+        while (!mOffsets.empty() && mOffsets.back() >= end) {
+            mOffsets.pop_back();
+            mBlooms.pop_back();
+        }
+        mFirst = std::min(mFirst, mOffsets.size());
+        mEnd = end;
+        mPending.clear();
+        return false;
+    }
+
+    newest.written += mPending.size();
+    mPending.clear();
+    return true;
+}
+
+ScrollbackSpill::Segment* ScrollbackSpill::findSegment(size_t offset) {
+    // Few segments are ever live, and recent ones are read most
+    for (size_t i = mSegments.size(); i > 0; i--) {
+        if (mSegments[i - 1].base <= offset) {
+            return &mSegments[i - 1];
+        }
+    }
+    return NULL;
+}
+
+/*
+ * Read back the line at index, from storage if it isn't in memory.
+ */
+bool ScrollbackSpill::read(size_t index, ScrollbackLine* line) {
+    if (index >= size()) {
+        return false;
+    }
+    if (readResident(index, line)) {
+        return true;
+    }
+
+    const size_t offset = mOffsets[mOffsets.size() - 1 - index];
+    Segment* segment = findSegment(offset);
+    if (segment == NULL || !mapSegment(segment)) {
+        return false;
+    }
+    line->deserialize(segment->map + (offset - segment->base));
+    return true;
+}
+
+/*
+ * Read back the line at index only when that can't wait on storage,
+ * because it is still pending or was paged in.
+ */
+bool ScrollbackSpill::readResident(size_t index, ScrollbackLine* line) const {
+    if (index >= size()) {
+        return false;
+    }
+
+    const size_t offset = mOffsets[mOffsets.size() - 1 - index];
+    const Segment& newest = mSegments.back();
+    const size_t end = newest.base + newest.written;
+    if (offset >= end) {
+        // Not flushed yet
+        line->deserialize(mPending.data() + (offset - end));
+        return true;
+    }
+
+    std::unordered_map<size_t, std::vector<uint8_t>>::const_iterator it =
+            mResident.find(offset);
+    if (it == mResident.end()) {
+        return false;
+    }
+    line->deserialize(it->second.data());
+    return true;
+}
+
+bool ScrollbackSpill::pop(ScrollbackLine* line) {
+    if (!read(0, line)) {
+        return false;
+    }
+
+    // Next append simply overwrites the popped line
+    mEnd = mOffsets.back();
+    mOffsets.pop_back();
+    mBlooms.pop_back();
+    mResident.erase(mEnd);
+    mGeneration++;
+
+    while (mSegments.size() > 1 && mSegments.back().base >= mEnd) {
+        closeSegment(&mSegments.back());
+        mSegments.pop_back();
+    }
+    Segment& newest = mSegments.back();
+    if (mEnd >= newest.base + newest.written) {
+        mPending.resize(mEnd - (newest.base + newest.written));
+    } else {
+        mPending.clear();
+        newest.written = mEnd - newest.base;
+    }
+    return true;
+}
+
+/*
+ * Plan reading count lines from index towards older history into memory,
+ * skipping any that already are. Returns false when there is nothing to
+ * read. Each segment involved is read in a single range through its own
+ * descriptor, so closing the segment meanwhile is harmless.
+ */
+bool ScrollbackSpill::beginPageIn(size_t index, size_t count, PageIn* pageIn) {
+    if (index >= size()) {
+        return false;
+    }
+    count = std::min(count, std::min(size() - index, kSpillResidentLines));
+
+    pageIn->generation = mGeneration;
+    const Segment* rangeSegment = NULL;
+    // Oldest first, so lines in each segment come in file order
+    for (size_t i = mOffsets.size() - index - count; i < mOffsets.size() - index; i++) {
+        const size_t offset = mOffsets[i];
+        if (mResident.find(offset) != mResident.end()) {
+            continue;
+        }
+        const size_t end = (i + 1 < mOffsets.size()) ? mOffsets[i + 1] : mEnd;
+        const Segment* segment = findSegment(offset);
+        if (segment == NULL || end > segment->base + segment->written) {
+            // Still pending, so already in memory
+            continue;
+        }
+
+        if (segment != rangeSegment) {
+            PageIn::Range range;
+            range.fd = dup(segment->fd);
+            if (range.fd == -1) {
+                ALOGE("failed to page in scrollback: %s", strerror(errno));
+                break;
+            }
+            range.position = offset - segment->base;
+            pageIn->ranges.push_back(range);
+            rangeSegment = segment;
+        }
+
+        PageIn::Range& range = pageIn->ranges.back();
+        PageIn::Line line;
+        line.offset = offset;
+        line.range = pageIn->ranges.size() - 1;
+        line.start = offset - segment->base - range.position;
+        line.size = end - offset;
+        pageIn->lines.push_back(line);
+        // Lines already resident in between are read again and ignored
+        range.data.resize(line.start + line.size);
+    }
+    return !pageIn->lines.empty();
+}
+
+/*
+ * Perform the reads planned by beginPageIn(). Only touches the page-in
+ * itself, so this is safe to call without the terminal lock.
+ */
+void ScrollbackSpill::readPageIn(PageIn* pageIn) {
+    for (size_t i = 0; i < pageIn->ranges.size(); i++) {
+        PageIn::Range& range = pageIn->ranges[i];
+        if (pread(range.fd, range.data.data(), range.data.size(), range.position)
+                != (ssize_t) range.data.size()) {
+            ALOGE("failed to page in scrollback: %s", strerror(errno));
+            range.data.clear();
+        }
+    }
+}
+
+/*
+ * Keep the lines read by readPageIn(), evicting the oldest paged in
+ * beyond the limit. Returns the number of lines added.
+ */
+size_t ScrollbackSpill::finishPageIn(const PageIn& pageIn) {
+    if (pageIn.generation != mGeneration) {
+        // A popped line's offset may have been rewritten while reading
+        return 0;
+    }
+
+    size_t added = 0;
+    for (size_t i = 0; i < pageIn.lines.size(); i++) {
+        const PageIn::Line& line = pageIn.lines[i];
+        const std::vector<uint8_t>& data = pageIn.ranges[line.range].data;
+        if (data.empty() || mResident.find(line.offset) != mResident.end()) {
+            continue;
+        }
+        mResident[line.offset].assign(data.begin() + line.start,
+                data.begin() + line.start + line.size);
+        mResidentOrder.push_back(line.offset);
+        added++;
+    }
+
+    while (mResidentOrder.size() > kSpillResidentLines) {
+        mResident.erase(mResidentOrder.front());
+        mResidentOrder.pop_front();
+    }
+    return added;
+}
+
+void ScrollbackSpill::setCapacity(size_t capacity) {
+    mCapacity = capacity;
+    if (size() > mCapacity) {
+        mFirst = mOffsets.size() - mCapacity;
+        dropSegments();
+    }
+}
+
+/*
+ * Map everything written to a segment so far. Segments are mapped at
+ * their full size up front, since they are only ever written up to it.
+ */
+bool ScrollbackSpill::mapSegment(Segment* segment) {
+    if (segment->written <= segment->mapSize) {
+        return true;
+    }
+
+    if (segment->map != NULL) {
+        munmap(segment->map, segment->mapSize);
+        segment->map = NULL;
+        segment->mapSize = 0;
+    }
+
+    // A single line longer than a segment gets one to itself
+    const size_t page = sysconf(_SC_PAGESIZE);
+    const size_t size = (std::max(segment->written, kSpillSegmentSize) + page - 1)
+            & ~(page - 1);
+    void* map = mmap(NULL, size, PROT_READ, MAP_SHARED, segment->fd, 0);
+    if (map == MAP_FAILED) {
+        ALOGE("failed to map spill file: %s", strerror(errno));
+        return false;
+    }
+
+    segment->map = reinterpret_cast<uint8_t*>(map);
+    segment->mapSize = size;
+    return true;
+}
+
+/*
+ * Close segments holding nothing but dropped lines. The newest segment is
+ * always kept to append to.
+ */
+void ScrollbackSpill::dropSegments() {
+    const size_t live = (mFirst < mOffsets.size()) ? mOffsets[mFirst] : mEnd;
+    while (mSegments.size() > 1 && mSegments[1].base <= live) {
+        closeSegment(&mSegments.front());
+        mSegments.pop_front();
+
+        const size_t base = mSegments.front().base;
+        while (!mOffsets.empty() && mOffsets.front() < base) {
+            mOffsets.pop_front();
+            mBlooms.pop_front();
+            mFirst--;
+        }
+    }
+}
+
+} /* namespace android */
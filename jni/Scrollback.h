@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef TERMINAL_SCROLLBACK_H
+#define TERMINAL_SCROLLBACK_H
+
+#include <stddef.h>
+#include <stdint.h>
+#include <sys/types.h>
+
+#include <vterm.h>
+
+#include <deque>
+#include <string>
+#include <unordered_map>
+#include <vector>
+
+namespace android {
+
+typedef short unsigned int dimen_t;
+
+static inline int toArgb(const VTermColor& color) {
+    return (0xff << 24 | color.red << 16 | color.green << 8 | color.blue);
+}
+
+static inline bool isCellStyleEqual(const VTermScreenCell& a, const VTermScreenCell& b) {
+    if (toArgb(a.fg) != toArgb(b.fg)) return false;
+    if (toArgb(a.bg) != toArgb(b.bg)) return false;
+
+    if (a.attrs.bold != b.attrs.bold) return false;
+    if (a.attrs.underline != b.attrs.underline) return false;
+    if (a.attrs.italic != b.attrs.italic) return false;
+    if (a.attrs.blink != b.attrs.blink) return false;
+    if (a.attrs.reverse != b.attrs.reverse) return false;
+    if (a.attrs.strike != b.attrs.strike) return false;
+    if (a.attrs.font != b.attrs.font) return false;
+
+    return true;
+}
+
+static inline bool isBlankCell(const VTermScreenCell& cell) {
+    return cell.chars[0] == 0 || cell.chars[0] == ' ';
+}
+
+/*
+ * Bloom filter over the trigrams of a line of text, letting a search skip
+ * lines that can't contain its query without decoding them. ASCII letters
+ * are folded to lower case and all other non-ASCII codepoints to a single
+ * placeholder, so case-insensitive matches are never ruled out.
+ */
+struct TrigramBloom {
+    uint64_t bits[2];
+
+    inline void clear() {
+        bits[0] = 0;
+        bits[1] = 0;
+    }
+
+    /* Admit every query, for text that was never indexed */
+    inline void fill() {
+        bits[0] = ~0ULL;
+        bits[1] = ~0ULL;
+    }
+
+    inline bool mayContain(const TrigramBloom& query) const {
+        return (bits[0] & query.bits[0]) == query.bits[0]
+                && (bits[1] & query.bits[1]) == query.bits[1];
+    }
+};
+
+/*
+ * Index text given as one codepoint per cell, where (uint32_t) -1 marks the
+ * right half of a double-width character.
+ */
+void buildTrigramBloom(const uint32_t* chars, size_t count, TrigramBloom* bloom);
+
+/*
+ * Formatting shared by a run of cells in a ScrollbackLine, starting at
+ * column start and ending where the next span begins.
+ */
+struct ScrollbackSpan {
+    dimen_t start;
+    VTermScreenCellAttrs attrs;
+    VTermColor fg;
+    VTermColor bg;
+};
+
+/*
+ * Line of scrollback history stored compactly: style spans followed by the
+ * UTF-8 text of each cell, in a single buffer that is reused when the line
+ * is recycled. Blank cells at the end of the line are trimmed and only the
+ * first codepoint of each cell is kept.
+ */
+class ScrollbackLine {
+public:
+    inline ScrollbackLine(dimen_t _cols) : cols(_cols), wrapped(false), mLength(0),
+            mSpanCount(0), mTextSize(0), mCapacity(0), mData(NULL) {
+        bloom.fill();
+    }
+    inline ~ScrollbackLine() {
+        delete[] mData;
+    }
+
+    void copyFrom(dimen_t cols, const VTermScreenCell* cells);
+    dimen_t copyTo(dimen_t cols, VTermScreenCell* cells) const;
+
+    size_t getSerializedSize() const;
+    void serialize(uint8_t* out) const;
+    void deserialize(const uint8_t* in);
+
+    dimen_t cols;
+
+    // Text continues on the next newer line, which reflow may join to this
+    bool wrapped;
+
+    // Trigrams of the text, rebuilt by copyFrom(); lines read back from a
+    // spill admit everything, since the spill keeps their index instead
+    TrigramBloom bloom;
+
+private:
+    inline ScrollbackSpan* spans() const {
+        return reinterpret_cast<ScrollbackSpan*>(mData);
+    }
+    inline uint8_t* text() const {
+        return mData + mSpanCount * sizeof(ScrollbackSpan);
+    }
+
+    void ensureCapacity(size_t size);
+
+    // Cells backed by text, anything after is blank
+    dimen_t mLength;
+    dimen_t mSpanCount;
+    uint32_t mTextSize;
+    uint32_t mCapacity;
+    uint8_t* mData;
+};
+
+/*
+ * Scrollback history older than the in-memory window, appended to a chain
+ * of unlinked segment files and read back through memory mappings. Lines
+ * never span segments, so the oldest segment is closed whole once every
+ * line in it has been dropped, without copying anything. Appends collect
+ * in memory until flush(). An in-memory offset index allows random access
+ * to any line.
+ *
+ * Lines about to be drawn are paged in ahead of time into a small cache,
+ * reading storage without the terminal lock: beginPageIn() plans the
+ * reads, readPageIn() performs them unlocked, and finishPageIn() keeps
+ * the result unless lines were popped meanwhile.
+ */
+class ScrollbackSpill {
+public:
+    /* Reads planned by beginPageIn(), owning a descriptor per segment */
+    class PageIn {
+    public:
+        inline PageIn() : generation(0) {
+        }
+        ~PageIn();
+
+    private:
+        friend class ScrollbackSpill;
+
+        struct Range {
+            int fd;
+            off_t position;
+            std::vector<uint8_t> data;
+        };
+        struct Line {
+            size_t offset;
+            size_t range;
+            size_t start;
+            size_t size;
+        };
+
+        PageIn(const PageIn&) = delete;
+        PageIn& operator=(const PageIn&) = delete;
+
+        uint32_t generation;
+        std::vector<Range> ranges;
+        std::vector<Line> lines;
+    };
+
+    ScrollbackSpill();
+    ~ScrollbackSpill();
+
+    bool open(const char* dir);
+
+    bool append(const ScrollbackLine* line);
+    bool flush();
+    bool read(size_t index, ScrollbackLine* line);
+    bool readResident(size_t index, ScrollbackLine* line) const;
+    bool pop(ScrollbackLine* line);
+
+    bool beginPageIn(size_t index, size_t count, PageIn* pageIn);
+    static void readPageIn(PageIn* pageIn);
+    size_t finishPageIn(const PageIn& pageIn);
+
+    /* Trigrams of the line at index, without reading it back */
+    inline const TrigramBloom& getBloom(size_t index) const {
+        return mBlooms[mOffsets.size() - 1 - index];
+    }
+
+    void setCapacity(size_t capacity);
+
+    /* Number of lines available, where index 0 is the newest */
+    inline size_t size() const {
+        return mOffsets.size() - mFirst;
+    }
+
+private:
+    struct Segment {
+        int fd;
+        uint8_t* map;
+        size_t mapSize;
+        // Offset of the segment's first byte across all segments
+        size_t base;
+        // Bytes written to the file so far
+        size_t written;
+    };
+
+    bool addSegment();
+    void closeSegment(Segment* segment);
+    Segment* findSegment(size_t offset);
+    bool mapSegment(Segment* segment);
+    void dropSegments();
+
+    std::string mDir;
+
+    // Oldest first; only the newest is appended to
+    std::deque<Segment> mSegments;
+    // Lines appended since the last flush(), following what the newest
+    // segment has written
+    std::vector<uint8_t> mPending;
+    // Offset just past the newest line, including anything pending
+    size_t mEnd;
+
+    // Start of each line across all segments, oldest first; lines before
+    // mFirst have been dropped, and are forgotten with their segment
+    std::deque<size_t> mOffsets;
+    // Index of each line, parallel to mOffsets
+    std::deque<TrigramBloom> mBlooms;
+    size_t mFirst;
+    size_t mCapacity;
+
+    // Lines paged in from storage, by offset, evicted oldest first
+    std::unordered_map<size_t, std::vector<uint8_t>> mResident;
+    std::deque<size_t> mResidentOrder;
+    // Bumped whenever an offset may be reused, which stales any page-in
+    // started before it
+    uint32_t mGeneration;
+};
+
+void reflowLines(const std::vector<ScrollbackLine*>& source, dimen_t cols,
+        std::vector<ScrollbackLine*>* out);
+
+} /* namespace android */
+
+#endif /* TERMINAL_SCROLLBACK_H */
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "Terminal"
+
+#include <utils/Log.h>
+#include <utils/Timers.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "SessionLog.h"
+
+namespace android {
+
+/*
+ * Output that can be queued before the writer falls behind and bytes are
+ * dropped
+ */
+static const size_t kRingSize = 4 * 1024 * 1024;
+
+/*
+ * Largest single write to the file
+ */
+static const size_t kBatchSize = 256 * 1024;
+
+/*
+ * Queued output that wakes the writer early; anything less waits for the
+ * flush interval, so the reader rarely has to signal
+ */
+static const size_t kWakeBytes = kRingSize / 4;
+static const nsecs_t kFlushInterval = ms2ns(250);
+
+/*
+ * Buffer used by zlib between compressing and writing
+ */
+static const unsigned kGzBufferSize = 128 * 1024;
+
+/*
+ * Longest gap marker formatGap() writes
+ */
+static const size_t kGapMarkerSize = 96;
+
+SpscRing::SpscRing(size_t capacity) : mHead(0), mTail(0) {
+    size_t size = 1;
+    while (size < capacity) {
+        size <<= 1;
+    }
+    mData.resize(size);
+    mMask = size - 1;
+}
+
+size_t SpscRing::write(const void* data, size_t len) {
+    const size_t head = mHead.load(std::memory_order_relaxed);
+    const size_t tail = mTail.load(std::memory_order_acquire);
+    const size_t space = mData.size() - (head - tail);
+    if (len > space) {
+        len = space;
+    }
+
+    const size_t offset = head & mMask;
+    const size_t first = len < mData.size() - offset ? len : mData.size() - offset;
+    memcpy(&mData[offset], data, first);
+    memcpy(&mData[0], reinterpret_cast<const uint8_t*>(data) + first, len - first);
+
+    mHead.store(head + len, std::memory_order_release);
+    return len;
+}
+
+size_t SpscRing::read(void* data, size_t len) {
+    const size_t tail = mTail.load(std::memory_order_relaxed);
+    const size_t head = mHead.load(std::memory_order_acquire);
+    if (len > head - tail) {
+        len = head - tail;
+    }
+
+    const size_t offset = tail & mMask;
+    const size_t first = len < mData.size() - offset ? len : mData.size() - offset;
+    memcpy(data, &mData[offset], first);
+    memcpy(reinterpret_cast<uint8_t*>(data) + first, &mData[0], len - first);
+
+    mTail.store(tail + len, std::memory_order_release);
+    return len;
+}
+
+size_t SpscRing::size() const {
+    return mHead.load(std::memory_order_acquire) - mTail.load(std::memory_order_acquire);
+}
+
+SessionLog::SessionLog(const char* basePath, Format format, bool compress,
+        size_t rotateBytes, int keepFiles) :
+        mBasePath(basePath), mFormat(format), mCompress(compress),
+        mRotateBytes(rotateBytes), mKeepFiles(keepFiles), mRing(kRingSize), mDropped(0),
+        mGapBytes(0),
+        mQuit(false), mWakePending(false), mStarted(false),
+        mFd(-1), mGz(NULL), mFileBytes(0), mBatch(kBatchSize), mStripState(0) {
+    if (mFormat == FORMAT_PLAIN) {
+        mPlain.resize(kBatchSize);
+    }
+}
+
+SessionLog::~SessionLog() {
+    if (mStarted) {
+        {
+            Mutex::Autolock lock(mWaitLock);
+            mQuit = true;
+            mWaitCond.signal();
+        }
+        pthread_join(mThread, NULL);
+    }
+
+    // Still no room for the marker when the session ended
+    if (mGapBytes > 0 && mFd != -1) {
+        char marker[kGapMarkerSize];
+        const size_t len = formatGap(mGapBytes, marker, sizeof(marker));
+        writeFormatted(reinterpret_cast<const uint8_t*>(marker), len);
+    }
+    closeFile();
+
+    const uint64_t dropped = mDropped.load();
+    if (dropped > 0) {
+        ALOGW("session log %s dropped %llu bytes", mBasePath.c_str(),
+                (unsigned long long) dropped);
+    }
+}
+
+/*
+ * Open the first file and start the writer. Failing to open is reported
+ * here, later failures only end up in the system log.
+ */
+bool SessionLog::start() {
+    if (!openFile()) {
+        return false;
+    }
+    if (pthread_create(&mThread, NULL, writerMain, this) != 0) {
+        ALOGE("failed to start session log writer");
+        closeFile();
+        return false;
+    }
+    mStarted = true;
+    return true;
+}
+
+void SessionLog::append(const char* bytes, size_t len) {
+    // After dropping output, mark the gap before queueing anything more,
+    // dropping this too until the marker fits. The ring only ever gains
+    // space behind the writer's back, so a marker that fits is queued whole.
+    size_t queued = 0;
+    if (mGapBytes > 0) {
+        char marker[kGapMarkerSize];
+        const size_t markerLen = formatGap(mGapBytes, marker, sizeof(marker));
+        if (mRing.capacity() - mRing.size() >= markerLen) {
+            mRing.write(marker, markerLen);
+            mGapBytes = 0;
+        }
+    }
+    if (mGapBytes == 0) {
+        queued = mRing.write(bytes, len);
+    }
+    if (queued < len) {
+        mGapBytes += len - queued;
+        mDropped.fetch_add(len - queued, std::memory_order_relaxed);
+    }
+
+    // Only signal once per wakeup, and only when a lot is waiting
+    if (mRing.size() >= kWakeBytes && !mWakePending.exchange(true)) {
+        Mutex::Autolock lock(mWaitLock);
+        mWaitCond.signal();
+    }
+}
+
+void* SessionLog::writerMain(void* arg) {
+    reinterpret_cast<SessionLog*>(arg)->writerLoop();
+    return NULL;
+}
+
+void SessionLog::writerLoop() {
+    bool quit = false;
+    while (!quit) {
+        {
+            Mutex::Autolock lock(mWaitLock);
+            if (!mQuit && mRing.size() < kWakeBytes) {
+                mWaitCond.waitRelative(mWaitLock, kFlushInterval);
+            }
+            quit = mQuit;
+        }
+        mWakePending.store(false);
+
+        size_t len;
+        while ((len = mRing.read(mBatch.data(), mBatch.size())) > 0) {
+            writeFormatted(mBatch.data(), len);
+        }
+    }
+}
+
+/*
+ * Write output to the file in the log's format.
+ */
+void SessionLog::writeFormatted(const uint8_t* data, size_t len) {
+    if (mFormat == FORMAT_PLAIN) {
+        writeOut(mPlain.data(), stripEscapes(data, len, mPlain.data()));
+    } else {
+        writeOut(data, len);
+    }
+}
+
+/*
+ * Text standing in for dropped output, on a line of its own. It starts with
+ * CAN, which abandons any escape sequence the gap cut short, so the marker
+ * reads as text both when replayed and in plain logs.
+ */
+size_t SessionLog::formatGap(uint64_t dropped, char* out, size_t len) {
+    const int n = snprintf(out, len, "\x18\r\n[session log: %llu bytes of output dropped]\r\n",
+            (unsigned long long) dropped);
+    return n < (int) len ? n : len - 1;
+}
+
+std::string SessionLog::getPath(int generation) const {
+    std::string path = mBasePath;
+    if (generation > 0) {
+        char suffix[16];
+        snprintf(suffix, sizeof(suffix), ".%d", generation);
+        path += suffix;
+    }
+    path += mFormat == FORMAT_PLAIN ? ".txt" : ".log";
+    if (mCompress) {
+        path += ".gz";
+    }
+    return path;
+}
+
+bool SessionLog::openFile() {
+    const std::string path = getPath(0);
+    mFd = open(path.c_str(), O_WRONLY | O_CREAT | O_APPEND | O_CLOEXEC, 0600);
+    if (mFd == -1) {
+        ALOGE("failed to open session log %s: %s", path.c_str(), strerror(errno));
+        return false;
+    }
+
+    mFileBytes = lseek(mFd, 0, SEEK_END);
+    if (mCompress) {
+        // Appending starts a new gzip member, which readers concatenate
+        mGz = gzdopen(mFd, "ab");
+        if (mGz == NULL) {
+            ALOGE("failed to start compressing %s", path.c_str());
+            close(mFd);
+            mFd = -1;
+            return false;
+        }
+        gzbuffer(mGz, kGzBufferSize);
+    }
+    return true;
+}
+
+void SessionLog::closeFile() {
+    if (mGz != NULL) {
+        // Also closes mFd
+        gzclose(mGz);
+        mGz = NULL;
+    } else if (mFd != -1) {
+        close(mFd);
+    }
+    mFd = -1;
+}
+
+/*
+ * Shift every kept file one generation older, dropping the oldest, and
+ * start a fresh one.
+ */
+void SessionLog::rotate() {
+    closeFile();
+    unlink(getPath(mKeepFiles).c_str());
+    for (int generation = mKeepFiles - 1; generation >= 0; generation--) {
+        rename(getPath(generation).c_str(), getPath(generation + 1).c_str());
+    }
+    if (mKeepFiles == 0) {
+        unlink(getPath(0).c_str());
+    }
+    openFile();
+}
+
+void SessionLog::writeOut(const uint8_t* data, size_t len) {
+    while (len > 0) {
+        if (mRotateBytes > 0 && mFileBytes >= mRotateBytes) {
+            rotate();
+        }
+        if (mFd == -1) {
+            return;
+        }
+
+        size_t chunk = len;
+        if (mRotateBytes > 0 && chunk > mRotateBytes - mFileBytes) {
+            chunk = mRotateBytes - mFileBytes;
+        }
+
+        ssize_t written;
+        if (mGz != NULL) {
+            written = gzwrite(mGz, data, chunk);
+            if (written <= 0) {
+                ALOGE("failed to write session log: %s", gzerror(mGz, NULL));
+                return;
+            }
+        } else {
+            written = ::write(mFd, data, chunk);
+            if (written == -1) {
+                if (errno == EINTR) {
+                    continue;
+                }
+                ALOGE("failed to write session log: %s", strerror(errno));
+                return;
+            }
+        }
+
+        data += written;
+        len -= written;
+        mFileBytes += written;
+    }
+}
+
+enum {
+    STRIP_TEXT = 0,
+    STRIP_ESC,
+    STRIP_CSI,
+    STRIP_CHARSET,
+    STRIP_STRING,
+    STRIP_STRING_ESC,
+};
+
+/*
+ * Copy text from in to out without control and escape sequences, keeping
+ * newlines and tabs. State carries across calls, so sequences split between
+ * batches are still removed. Returns bytes written to out, at most len.
+ */
+size_t SessionLog::stripEscapes(const uint8_t* in, size_t len, uint8_t* out) {
+    uint8_t* start = out;
+    int state = mStripState;
+    for (size_t i = 0; i < len; i++) {
+        const uint8_t c = in[i];
+        if (c == 0x18 || c == 0x1a) {
+            // CAN and SUB abandon any sequence in progress
+            state = STRIP_TEXT;
+            continue;
+        }
+        switch (state) {
+        case STRIP_TEXT:
+            if (c == 0x1b) {
+                state = STRIP_ESC;
+            } else if (c >= 0x20 && c != 0x7f) {
+                *out++ = c;
+            } else if (c == '\n' || c == '\t') {
+                *out++ = c;
+            }
+            break;
+        case STRIP_ESC:
+            if (c == '[') {
+                state = STRIP_CSI;
+            } else if (c == ']' || c == 'P' || c == 'X' || c == '^' || c == '_') {
+                // OSC, DCS, SOS, PM and APC run until a terminator
+                state = STRIP_STRING;
+            } else if (c >= 0x20 && c <= 0x2f) {
+                // Intermediate, such as choosing a character set
+                state = STRIP_CHARSET;
+            } else {
+                state = STRIP_TEXT;
+            }
+            break;
+        case STRIP_CSI:
+            if (c >= 0x40 && c <= 0x7e) {
+                state = STRIP_TEXT;
+            }
+            break;
+        case STRIP_CHARSET:
+            if (c >= 0x30 && c <= 0x7e) {
+                state = STRIP_TEXT;
+            }
+            break;
+        case STRIP_STRING:
+            if (c == 0x07) {
+                state = STRIP_TEXT;
+            } else if (c == 0x1b) {
+                state = STRIP_STRING_ESC;
+            }
+            break;
+        case STRIP_STRING_ESC:
+            state = (c == '\\') ? STRIP_TEXT : STRIP_STRING;
+            break;
+        }
+    }
+    mStripState = state;
+    return out - start;
+}
+
+} /* namespace android */
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef TERMINAL_SESSION_LOG_H
+#define TERMINAL_SESSION_LOG_H
+
+#include <pthread.h>
+#include <stddef.h>
+#include <stdint.h>
+
+#include <utils/Condition.h>
+#include <utils/Mutex.h>
+
+#include <zlib.h>
+
+#include <atomic>
+#include <string>
+#include <vector>
+
+namespace android {
+
+/*
+ * Single producer, single consumer byte queue. Neither side ever blocks or
+ * takes a lock; each only publishes its own position.
+ */
+class SpscRing {
+public:
+    /* Capacity is rounded up to a power of two */
+    SpscRing(size_t capacity);
+
+    /* Producer: queue as much as fits, returning how much did */
+    size_t write(const void* data, size_t len);
+    /* Consumer: take up to len bytes, returning how many were taken */
+    size_t read(void* data, size_t len);
+
+    size_t size() const;
+    inline size_t capacity() const {
+        return mData.size();
+    }
+
+private:
+    std::vector<uint8_t> mData;
+    size_t mMask;
+
+    // Kept on separate cache lines so the two sides don't contend
+    alignas(64) std::atomic<size_t> mHead;
+    alignas(64) std::atomic<size_t> mTail;
+};
+
+/*
+ * Copy of a session's output written to files on a background thread, so
+ * the reader only ever copies bytes into a ring. Output arriving while the
+ * ring is full is dropped rather than waited for, and a marker saying how
+ * much is written in its place once there is room again. Files are
+ * optionally gzip compressed and rotated once they hold rotateBytes of
+ * output, keeping keepFiles older ones.
+ */
+class SessionLog {
+public:
+    enum Format {
+        // Exactly what the child wrote
+        FORMAT_RAW = 0,
+        // Printable text and newlines, with escape sequences removed
+        FORMAT_PLAIN = 1,
+    };
+
+    SessionLog(const char* basePath, Format format, bool compress, size_t rotateBytes,
+            int keepFiles);
+    /* Writes out everything already appended before returning */
+    ~SessionLog();
+
+    bool start();
+
+    /* Only ever called by one thread at a time */
+    void append(const char* bytes, size_t len);
+
+private:
+    static void* writerMain(void* arg);
+    void writerLoop();
+
+    std::string getPath(int generation) const;
+    bool openFile();
+    void closeFile();
+    void rotate();
+    void writeOut(const uint8_t* data, size_t len);
+    void writeFormatted(const uint8_t* data, size_t len);
+    static size_t formatGap(uint64_t dropped, char* out, size_t len);
+    size_t stripEscapes(const uint8_t* in, size_t len, uint8_t* out);
+
+    const std::string mBasePath;
+    const Format mFormat;
+    const bool mCompress;
+    const size_t mRotateBytes;
+    const int mKeepFiles;
+
+    SpscRing mRing;
+    std::atomic<uint64_t> mDropped;
+    // Bytes dropped since the last gap marker was queued; only touched by
+    // append(), then by the destructor once the writer has stopped
+    uint64_t mGapBytes;
+
+    // Writer sleeps on mWaitCond until woken or the flush interval passes
+    Mutex mWaitLock;
+    Condition mWaitCond;
+    bool mQuit;
+    std::atomic<bool> mWakePending;
+
+    pthread_t mThread;
+    bool mStarted;
+
+    // Only touched on the writer thread once started
+    int mFd;
+    gzFile mGz;
+    size_t mFileBytes;
+    std::vector<uint8_t> mBatch;
+    std::vector<uint8_t> mPlain;
+    int mStripState;
+};
+
+} /* namespace android */
+
+#endif /* TERMINAL_SESSION_LOG_H */
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "Terminal"
+
+#include <utils/Log.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "SessionRecording.h"
+
+namespace android {
+
+/*
+ * Formatted events that wake the writer early; anything less waits for the
+ * flush interval
+ */
+static const size_t kWakeBytes = 256 * 1024;
+static const nsecs_t kFlushInterval = ms2ns(250);
+
+/*
+ * Append bytes as a JSON string. Valid UTF-8 is kept as is and anything
+ * else becomes U+FFFD, as the parser would show it anyway. A sequence cut
+ * off at the end is held in carry and finished on the next call.
+ */
+static void appendJsonString(std::string* out, const char* bytes, size_t len,
+        std::string* carry) {
+    std::string joined;
+    if (!carry->empty()) {
+        joined.swap(*carry);
+        joined.append(bytes, len);
+        bytes = joined.data();
+        len = joined.size();
+    }
+
+    const uint8_t* s = reinterpret_cast<const uint8_t*>(bytes);
+    out->push_back('"');
+    size_t i = 0;
+    while (i < len) {
+        const uint8_t c = s[i];
+        if (c < 0x80) {
+            switch (c) {
+            case '"': out->append("\\\""); break;
+            case '\\': out->append("\\\\"); break;
+            case '\n': out->append("\\n"); break;
+            case '\r': out->append("\\r"); break;
+            case '\t': out->append("\\t"); break;
+            case '\b': out->append("\\b"); break;
+            case '\f': out->append("\\f"); break;
+            default:
+                if (c < 0x20 || c == 0x7f) {
+                    char escape[8];
+                    snprintf(escape, sizeof(escape), "\\u%04x", c);
+                    out->append(escape);
+                } else {
+                    out->push_back(c);
+                }
+                break;
+            }
+            i++;
+            continue;
+        }
+
+        size_t n = 0;
+        if (c >= 0xc2 && c <= 0xdf) {
+            n = 2;
+        } else if (c >= 0xe0 && c <= 0xef) {
+            n = 3;
+        } else if (c >= 0xf0 && c <= 0xf4) {
+            n = 4;
+        }
+        size_t valid = 1;
+        while (n > 0 && valid < n && i + valid < len && (s[i + valid] & 0xc0) == 0x80) {
+            valid++;
+        }
+        if (n > 0 && valid < n && i + valid == len) {
+            carry->assign(bytes + i, len - i);
+            break;
+        }
+        if (n == 0 || valid < n) {
+            out->append("\\ufffd");
+            i++;
+            continue;
+        }
+        out->append(bytes + i, n);
+        i += n;
+    }
+    out->push_back('"');
+}
+
+SessionRecorder::SessionRecorder(const char* path) :
+        mPath(path), mFd(-1), mStartTime(0), mQuit(false), mStarted(false) {
+}
+
+SessionRecorder::~SessionRecorder() {
+    if (mStarted) {
+        {
+            Mutex::Autolock lock(mLock);
+            mQuit = true;
+            mCond.signal();
+        }
+        pthread_join(mThread, NULL);
+    }
+    if (mFd != -1) {
+        close(mFd);
+    }
+}
+
+bool SessionRecorder::open() {
+    mFd = ::open(mPath.c_str(), O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0600);
+    if (mFd == -1) {
+        ALOGE("failed to open recording %s: %s", mPath.c_str(), strerror(errno));
+        return false;
+    }
+    if (pthread_create(&mThread, NULL, writerMain, this) != 0) {
+        ALOGE("failed to start recording writer");
+        close(mFd);
+        mFd = -1;
+        return false;
+    }
+    mStarted = true;
+    return true;
+}
+
+void SessionRecorder::begin(dimen_t rows, dimen_t cols) {
+    mStartTime = systemTime(SYSTEM_TIME_MONOTONIC);
+
+    char header[128];
+    snprintf(header, sizeof(header),
+            "{\"version\": 2, \"width\": %u, \"height\": %u, \"timestamp\": %ld}\n",
+            cols, rows, (long) time(NULL));
+
+    Mutex::Autolock lock(mLock);
+    mPending.append(header);
+}
+
+void SessionRecorder::recordOutput(const char* bytes, size_t len) {
+    Mutex::Autolock lock(mLock);
+    appendEventLocked(RECORD_OUTPUT, bytes, len, &mOutputCarry);
+}
+
+void SessionRecorder::recordInput(const char* bytes, size_t len) {
+    Mutex::Autolock lock(mLock);
+    appendEventLocked(RECORD_INPUT, bytes, len, &mInputCarry);
+}
+
+void SessionRecorder::recordResize(dimen_t rows, dimen_t cols) {
+    char size[16];
+    snprintf(size, sizeof(size), "%ux%u", cols, rows);
+
+    Mutex::Autolock lock(mLock);
+    std::string carry;
+    appendEventLocked(RECORD_RESIZE, size, strlen(size), &carry);
+}
+
+void SessionRecorder::appendEventLocked(char type, const char* bytes, size_t len,
+        std::string* carry) {
+    const size_t start = mPending.size();
+    const double seconds = (systemTime(SYSTEM_TIME_MONOTONIC) - mStartTime) / 1e9;
+    char prefix[48];
+    snprintf(prefix, sizeof(prefix), "[%.6f, \"%c\", ", seconds, type);
+    mPending.append(prefix);
+
+    const size_t textStart = mPending.size();
+    appendJsonString(&mPending, bytes, len, carry);
+    if (mPending.size() - textStart == 2) {
+        // Nothing complete to record yet
+        mPending.resize(start);
+        return;
+    }
+    mPending.append("]\n");
+
+    if (mPending.size() >= kWakeBytes) {
+        mCond.signal();
+    }
+}
+
+void* SessionRecorder::writerMain(void* arg) {
+    reinterpret_cast<SessionRecorder*>(arg)->writerLoop();
+    return NULL;
+}
+
+void SessionRecorder::writerLoop() {
+    std::string writing;
+    bool quit = false;
+    while (!quit) {
+        {
+            Mutex::Autolock lock(mLock);
+            if (!mQuit && mPending.size() < kWakeBytes) {
+                mCond.waitRelative(mLock, kFlushInterval);
+            }
+            quit = mQuit;
+            writing.swap(mPending);
+        }
+
+        size_t offset = 0;
+        while (offset < writing.size()) {
+            ssize_t res = ::write(mFd, writing.data() + offset, writing.size() - offset);
+            if (res == -1) {
+                if (errno == EINTR) {
+                    continue;
+                }
+                ALOGE("failed to write recording: %s", strerror(errno));
+                break;
+            }
+            offset += res;
+        }
+        writing.clear();
+    }
+}
+
+static void skipSpace(const char** p) {
+    while (**p == ' ' || **p == '\t' || **p == '\r') {
+        (*p)++;
+    }
+}
+
+static bool expectChar(const char** p, char c) {
+    skipSpace(p);
+    if (**p != c) {
+        return false;
+    }
+    (*p)++;
+    return true;
+}
+
+static void appendUtf8(std::string* out, uint32_t c) {
+    if (c < 0x80) {
+        out->push_back(c);
+    } else if (c < 0x800) {
+        out->push_back(0xc0 | (c >> 6));
+        out->push_back(0x80 | (c & 0x3f));
+    } else if (c < 0x10000) {
+        out->push_back(0xe0 | (c >> 12));
+        out->push_back(0x80 | ((c >> 6) & 0x3f));
+        out->push_back(0x80 | (c & 0x3f));
+    } else {
+        out->push_back(0xf0 | (c >> 18));
+        out->push_back(0x80 | ((c >> 12) & 0x3f));
+        out->push_back(0x80 | ((c >> 6) & 0x3f));
+        out->push_back(0x80 | (c & 0x3f));
+    }
+}
+
+static bool parseHex4(const char** p, uint32_t* out) {
+    uint32_t value = 0;
+    for (int i = 0; i < 4; i++) {
+        const char c = (*p)[i];
+        value <<= 4;
+        if (c >= '0' && c <= '9') {
+            value |= c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            value |= c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            value |= c - 'A' + 10;
+        } else {
+            return false;
+        }
+    }
+    *p += 4;
+    *out = value;
+    return true;
+}
+
+/*
+ * Decode a JSON string into UTF-8.
+ */
+static bool parseJsonString(const char** p, std::string* out) {
+    if (!expectChar(p, '"')) {
+        return false;
+    }
+    const char* s = *p;
+    while (*s != '"') {
+        if (*s == '\0') {
+            return false;
+        }
+        if (*s != '\\') {
+            out->push_back(*s++);
+            continue;
+        }
+
+        s++;
+        uint32_t c;
+        switch (*s++) {
+        case '"': out->push_back('"'); break;
+        case '\\': out->push_back('\\'); break;
+        case '/': out->push_back('/'); break;
+        case 'b': out->push_back('\b'); break;
+        case 'f': out->push_back('\f'); break;
+        case 'n': out->push_back('\n'); break;
+        case 'r': out->push_back('\r'); break;
+        case 't': out->push_back('\t'); break;
+        case 'u':
+            if (!parseHex4(&s, &c)) {
+                return false;
+            }
+            if (c >= 0xd800 && c <= 0xdbff && s[0] == '\\' && s[1] == 'u') {
+                const char* low = s + 2;
+                uint32_t c2;
+                if (parseHex4(&low, &c2) && c2 >= 0xdc00 && c2 <= 0xdfff) {
+                    c = 0x10000 + ((c - 0xd800) << 10) + (c2 - 0xdc00);
+                    s = low;
+                }
+            }
+            appendUtf8(out, c);
+            break;
+        default:
+            return false;
+        }
+    }
+    *p = s + 1;
+    return true;
+}
+
+static bool findNumber(const char* line, const char* key, long* out) {
+    const char* p = strstr(line, key);
+    if (p == NULL) {
+        return false;
+    }
+    p += strlen(key);
+    if (!expectChar(&p, ':')) {
+        return false;
+    }
+    char* end;
+    *out = strtol(p, &end, 10);
+    return end != p;
+}
+
+SessionReplay::SessionReplay() : mRows(0), mCols(0) {
+}
+
+/*
+ * Read an entire recording. Event types other than output, input and
+ * resizes are skipped.
+ */
+bool SessionReplay::load(const char* path) {
+    FILE* file = fopen(path, "re");
+    if (file == NULL) {
+        ALOGE("failed to open recording %s: %s", path, strerror(errno));
+        return false;
+    }
+    std::string data;
+    char buf[65536];
+    size_t n;
+    while ((n = fread(buf, 1, sizeof(buf), file)) > 0) {
+        data.append(buf, n);
+    }
+    fclose(file);
+
+    mEvents.clear();
+    bool header = false;
+    size_t lineNumber = 0;
+    size_t start = 0;
+    while (start < data.size()) {
+        size_t end = data.find('\n', start);
+        if (end == std::string::npos) {
+            end = data.size();
+        }
+        std::string line(data, start, end - start);
+        start = end + 1;
+        lineNumber++;
+
+        if (line.find_first_not_of(" \t\r") == std::string::npos) {
+            continue;
+        }
+        if (!header) {
+            if (!parseHeader(line.c_str())) {
+                ALOGE("%s is not an asciicast v2 recording", path);
+                return false;
+            }
+            header = true;
+            continue;
+        }
+
+        ReplayEvent event;
+        if (!parseEvent(line.c_str(), &event)) {
+            ALOGE("%s:%zu: malformed event", path, lineNumber);
+            return false;
+        }
+        if (event.type == RECORD_OUTPUT || event.type == RECORD_INPUT
+                || event.type == RECORD_RESIZE) {
+            mEvents.push_back(event);
+        }
+    }
+    return header;
+}
+
+size_t SessionReplay::getOutputBytes() const {
+    size_t total = 0;
+    for (size_t i = 0; i < mEvents.size(); i++) {
+        if (mEvents[i].type == RECORD_OUTPUT) {
+            total += mEvents[i].data.size();
+        }
+    }
+    return total;
+}
+
+bool SessionReplay::parseHeader(const char* line) {
+    long version, width, height;
+    if (!findNumber(line, "\"version\"", &version) || version != 2
+            || !findNumber(line, "\"width\"", &width)
+            || !findNumber(line, "\"height\"", &height)
+            || width <= 0 || height <= 0 || width > 0xffff || height > 0xffff) {
+        return false;
+    }
+    mRows = height;
+    mCols = width;
+    return true;
+}
+
+bool SessionReplay::parseEvent(const char* line, ReplayEvent* event) {
+    const char* p = line;
+    if (!expectChar(&p, '[')) {
+        return false;
+    }
+    skipSpace(&p);
+    char* end;
+    const double seconds = strtod(p, &end);
+    if (end == p || seconds < 0) {
+        return false;
+    }
+    p = end;
+    event->time = (nsecs_t) (seconds * 1e9);
+
+    std::string type;
+    if (!expectChar(&p, ',') || !parseJsonString(&p, &type) || type.size() != 1
+            || !expectChar(&p, ',') || !parseJsonString(&p, &event->data)
+            || !expectChar(&p, ']')) {
+        return false;
+    }
+    event->type = type[0];
+
+    event->rows = 0;
+    event->cols = 0;
+    if (event->type == RECORD_RESIZE) {
+        unsigned cols, rows;
+        if (sscanf(event->data.c_str(), "%ux%u", &cols, &rows) != 2
+                || cols == 0 || rows == 0 || cols > 0xffff || rows > 0xffff) {
+            return false;
+        }
+        event->rows = rows;
+        event->cols = cols;
+    }
+    return true;
+}
+
+} /* namespace android */
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef TERMINAL_SESSION_RECORDING_H
+#define TERMINAL_SESSION_RECORDING_H
+
+#include <pthread.h>
+#include <stddef.h>
+
+#include <utils/Condition.h>
+#include <utils/Mutex.h>
+#include <utils/Timers.h>
+
+#include <string>
+#include <vector>
+
+#include "Scrollback.h"
+
+namespace android {
+
+/*
+ * Event types, as used by asciicast v2
+ */
+#define RECORD_OUTPUT   'o'
+#define RECORD_INPUT    'i'
+#define RECORD_RESIZE   'r'
+
+/*
+ * Timestamped output, input and resizes of a session written as an
+ * asciicast v2 file, which common players and tools understand. Events are
+ * formatted into memory by the caller and written out on a background
+ * thread; nothing is ever dropped, since a recording with gaps can't be
+ * replayed faithfully.
+ *
+ * Callers serialize all record and begin calls themselves.
+ */
+class SessionRecorder {
+public:
+    SessionRecorder(const char* path);
+    /* Writes out everything already recorded before returning */
+    ~SessionRecorder();
+
+    bool open();
+
+    /* Header, recorded once before any events */
+    void begin(dimen_t rows, dimen_t cols);
+
+    void recordOutput(const char* bytes, size_t len);
+    void recordInput(const char* bytes, size_t len);
+    void recordResize(dimen_t rows, dimen_t cols);
+
+private:
+    static void* writerMain(void* arg);
+    void writerLoop();
+
+    void appendEventLocked(char type, const char* bytes, size_t len, std::string* carry);
+
+    const std::string mPath;
+    int mFd;
+    nsecs_t mStartTime;
+
+    // Formatted events waiting for the writer
+    Mutex mLock;
+    Condition mCond;
+    std::string mPending;
+    bool mQuit;
+
+    pthread_t mThread;
+    bool mStarted;
+
+    // Incomplete UTF-8 sequences held back until the rest arrives
+    std::string mOutputCarry;
+    std::string mInputCarry;
+};
+
+struct ReplayEvent {
+    // Since the start of the recording
+    nsecs_t time;
+    char type;
+    std::string data;
+    // Only set for RECORD_RESIZE
+    dimen_t rows;
+    dimen_t cols;
+};
+
+/*
+ * Recording loaded back from an asciicast v2 file, ready to be fed to a
+ * Terminal without any child process.
+ */
+class SessionReplay {
+public:
+    SessionReplay();
+
+    bool load(const char* path);
+
+    inline dimen_t getRows() const {
+        return mRows;
+    }
+    inline dimen_t getCols() const {
+        return mCols;
+    }
+    inline const std::vector<ReplayEvent>& getEvents() const {
+        return mEvents;
+    }
+    /* Total output in the recording */
+    size_t getOutputBytes() const;
+
+private:
+    bool parseHeader(const char* line);
+    bool parseEvent(const char* line, ReplayEvent* event);
+
+    dimen_t mRows;
+    dimen_t mCols;
+    std::vector<ReplayEvent> mEvents;
+};
+
+} /* namespace android */
+
+#endif /* TERMINAL_SESSION_RECORDING_H */
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <algorithm>
+
+#include "StyleTable.h"
+
+namespace android {
+
+static inline bool isStyleEqual(const CellStyle& a, const CellStyle& b) {
+    return a.fg == b.fg && a.bg == b.bg && a.attrs == b.attrs;
+}
+
+static inline uint32_t hashStyle(const CellStyle& style) {
+    uint32_t hash = (uint32_t) style.fg * 0x9e3779b1u;
+    hash ^= (uint32_t) style.bg + 0x7f4a7c15u + (hash << 6) + (hash >> 2);
+    hash ^= (uint32_t) style.attrs + 0x7f4a7c15u + (hash << 6) + (hash >> 2);
+    return hash;
+}
+
+StyleTable::StyleTable(size_t capacity) : mStyles(capacity), mCount(0), mEpoch(0),
+        mLastId(-1) {
+    // Keep the index at most half full
+    size_t slots = 1;
+    while (slots < capacity * 2) {
+        slots <<= 1;
+    }
+    mSlots.resize(slots, -1);
+    mMask = slots - 1;
+}
+
+int32_t StyleTable::intern(const CellStyle& style) {
+    if (mLastId != -1 && isStyleEqual(style, mLast)) {
+        return mLastId;
+    }
+
+    size_t i = hashStyle(style) & mMask;
+    while (mSlots[i] != -1) {
+        if (isStyleEqual(mStyles[mSlots[i]], style)) {
+            mLast = style;
+            mLastId = mSlots[i];
+            return mLastId;
+        }
+        i = (i + 1) & mMask;
+    }
+
+    const size_t count = mCount.load(std::memory_order_relaxed);
+    if (count == mStyles.size()) {
+        return -1;
+    }
+    mStyles[count] = style;
+    mSlots[i] = count;
+    mCount.store(count + 1, std::memory_order_release);
+
+    mLast = style;
+    mLastId = count;
+    return mLastId;
+}
+
+void StyleTable::reset() {
+    // Epoch moves first, so anyone seeing the emptied table also sees the
+    // new epoch
+    mEpoch.fetch_add(1, std::memory_order_release);
+    mCount.store(0, std::memory_order_release);
+    std::fill(mSlots.begin(), mSlots.end(), -1);
+    mLastId = -1;
+}
+
+} /* namespace android */
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef TERMINAL_STYLE_TABLE_H
+#define TERMINAL_STYLE_TABLE_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include <atomic>
+#include <vector>
+
+namespace android {
+
+/*
+ * Styles a session can have interned at once, must match
+ * Terminal.MAX_STYLES
+ */
+#define STYLE_CAPACITY          4096
+
+/*
+ * Cell style as handed to Java: ARGB colours and packed ATTR_* bits, laid
+ * out as consecutive ints
+ */
+struct CellStyle {
+    int32_t fg;
+    int32_t bg;
+    int32_t attrs;
+};
+
+#define STYLE_INTS              3
+
+/*
+ * Interns cell styles to small integer IDs, so comparing the style of two
+ * cells is a single int compare. IDs are handed out in order and stay
+ * valid until reset(), which starts a new epoch.
+ *
+ * Callers serialize intern() and reset() themselves; size() and getEpoch()
+ * may be read from anywhere.
+ */
+class StyleTable {
+public:
+    StyleTable(size_t capacity);
+
+    /* ID of the given style, adding it if new, or -1 once full */
+    int32_t intern(const CellStyle& style);
+
+    /* Forget every style; IDs handed out before mean nothing after */
+    void reset();
+
+    inline size_t size() const {
+        return mCount.load(std::memory_order_acquire);
+    }
+    inline uint32_t getEpoch() const {
+        return mEpoch.load(std::memory_order_acquire);
+    }
+    /* Whether a reset is due before the table fills up */
+    inline bool isCrowded() const {
+        return size() >= mStyles.size() * 3 / 4;
+    }
+
+    /* Styles starting at the given ID, STYLE_INTS ints each */
+    inline const int32_t* data(size_t start) const {
+        return &mStyles[start].fg;
+    }
+
+private:
+    std::vector<CellStyle> mStyles;
+
+    // Open addressed index from style to ID, -1 where empty
+    std::vector<int32_t> mSlots;
+    size_t mMask;
+
+    std::atomic<size_t> mCount;
+    std::atomic<uint32_t> mEpoch;
+
+    // Most recent lookup, since neighbouring cells usually share a style
+    CellStyle mLast;
+    int32_t mLastId;
+};
+
+} /* namespace android */
+
+#endif /* TERMINAL_STYLE_TABLE_H */
@@ -0,0 +1,1784 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "Terminal"
+#define ATRACE_TAG ATRACE_TAG_APP
+
+#include <utils/Log.h>
+#include <utils/Trace.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <pty.h>
+#include <sched.h>
+#include <signal.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/ioctl.h>
+#include <termios.h>
+#include <unistd.h>
+
+#include <algorithm>
+
+#include "Terminal.h"
+
+#define USE_TEST_SHELL 0
+#define DEBUG_CALLBACKS 0
+#define DEBUG_IO 0
+#define DEBUG_SCROLLBACK 0
+
+namespace android {
+
+/*
+ * Smallest read issued, even when FIONREAD reports less is available
+ */
+static const size_t kMinRead = 4096;
+
+/*
+ * Batches smaller than this that drain the child's output are flushed at
+ * once, since they are most likely interactive echo rather than a flood
+ */
+static const size_t kCoalesceMinBytes = 1024;
+
+/*
+ * Time output may be held back to coalesce damage, until changed through
+ * setLatencyBudget()
+ */
+static const nsecs_t kDefaultLatencyBudget = 4000000;
+
+/*
+ * Output queued for a child that isn't reading before further writes fail
+ */
+static const size_t kMaxWriteQueue = 1024 * 1024;
+
+/*
+ * Longest a realtime replay sleeps before checking whether it was cancelled
+ */
+static const nsecs_t kReplaySleepSlice = ms2ns(100);
+
+/*
+ * Sets or resets bracketed paste when followed by 'h' or 'l'
+ */
+static const char kBracketedPasteMode[] = "\x1b[?2004";
+
+/*
+ * Around pasted text when the child asked for bracketed paste
+ */
+static const char kPasteStart[] = "\x1b[200~";
+static const char kPasteEnd[] = "\x1b[201~";
+
+/*
+ * Scrollback depth until a client asks for something else through resize()
+ */
+static const size_t kDefaultScrollRows = 1000;
+
+/*
+ * Scrollback lines kept in memory when older history spills to disk
+ */
+static const size_t kSpillHotRows = 2000;
+
+/*
+ * Histories up to this many lines are reflowed while resizing; longer ones
+ * are left to a reflow() call from another thread.
+ */
+static const size_t kReflowInlineRows = 1000;
+
+/*
+ * Times a lock-free read of the screen is retried after racing a writer
+ * before falling back to mLock.
+ */
+static const int kShadowReadAttempts = 8;
+
+/*
+ * VTerm event handlers
+ */
+
+static int term_damage(VTermRect rect, void *user) {
+    Terminal* term = reinterpret_cast<Terminal*>(user);
+#if DEBUG_CALLBACKS
+    ALOGW("term_damage");
+#endif
+
+    return term->onDamage(rect);
+}
+
+static int term_moverect(VTermRect dest, VTermRect src, void *user) {
+    Terminal* term = reinterpret_cast<Terminal*>(user);
+#if DEBUG_CALLBACKS
+    ALOGW("term_moverect");
+#endif
+
+    return term->onMoveRect(dest, src);
+}
+
+static int term_movecursor(VTermPos pos, VTermPos oldpos, int visible, void *user) {
+    Terminal* term = reinterpret_cast<Terminal*>(user);
+#if DEBUG_CALLBACKS
+    ALOGW("term_movecursor");
+#endif
+
+    return term->onCursorChange(oldpos, pos, visible != 0);
+}
+
+static int term_settermprop(VTermProp prop, VTermValue *val, void *user) {
+    Terminal* term = reinterpret_cast<Terminal*>(user);
+#if DEBUG_CALLBACKS
+    ALOGW("term_settermprop");
+#endif
+
+    return term->getSink()->onTermProp(prop, val);
+}
+
+static int term_setmousefunc(VTermMouseFunc func, void *data, void *user) {
+    Terminal* term = reinterpret_cast<Terminal*>(user);
+#if DEBUG_CALLBACKS
+    ALOGW("term_setmousefunc");
+#endif
+    return 1;
+}
+
+static int term_bell(void *user) {
+    Terminal* term = reinterpret_cast<Terminal*>(user);
+#if DEBUG_CALLBACKS
+    ALOGW("term_bell");
+#endif
+
+    return term->getSink()->onBell();
+}
+
+static int term_sb_pushline(int cols, const VTermScreenCell *cells, void *user) {
+    Terminal* term = reinterpret_cast<Terminal*>(user);
+#if DEBUG_CALLBACKS
+    ALOGW("term_sb_pushline");
+#endif
+
+    return term->onPushline(cols, cells);
+}
+
+static int term_sb_popline(int cols, VTermScreenCell *cells, void *user) {
+    Terminal* term = reinterpret_cast<Terminal*>(user);
+#if DEBUG_CALLBACKS
+    ALOGW("term_sb_popline");
+#endif
+
+    return term->onPopline(cols, cells);
+}
+
+static VTermScreenCallbacks cb = {
+    .damage = term_damage,
+    .moverect = term_moverect,
+    .movecursor = term_movecursor,
+    .settermprop = term_settermprop,
+    .setmousefunc = term_setmousefunc,
+    .bell = term_bell,
+    // Resize requests are applied immediately, so callback is ignored
+    .resize = NULL,
+    .sb_pushline = term_sb_pushline,
+    .sb_popline = term_sb_popline,
+};
+
+Terminal::Terminal(TerminalSink* sink) :
+        mStyles(STYLE_CAPACITY), mMasterFd(-1), mChildPid(-1), mSink(sink), mReactor(NULL),
+        mLatencyBudget(kDefaultLatencyBudget), mPendingSince(0), mWriteHead(0),
+        mWriteWaitsCancelled(false),
+        mRows(25), mCols(80),
+        mCursorVisible(true), mLinesPushed(0),
+        mGeneration(0), mRowGenerations(mRows), mScrollGeneration(0),
+        mShadowSeq(0), mShadow(NULL), mShadowDirty(mRows, 1), mShadowDirtyAny(true),
+        mScroll(NULL), mScrollHead(0), mScrollCur(0), mScrollSize(0),
+        mScrollRows(0), mSpill(NULL), mSpillLine(0), mSpillSerial(0),
+        mReflowPending(false), mReflowCols(0),
+        mDecodedLine(NULL), mDecodedIndex(0),
+        mDecodedCells(NULL), mDecodedCapacity(0), mCursorPending(false), mLog(NULL),
+        mRecorder(NULL), mReplayCancelled(false), mBracketedPaste(false), mModeMatch(0),
+        mPasteBracketed(false) {
+    memset(&mIoStats, 0, sizeof(mIoStats));
+    configureScrollbackLocked(kDefaultScrollRows);
+
+    /* Create VTerm */
+    mVt = vterm_new(mRows, mCols);
+    vterm_parser_set_utf8(mVt, 1);
+
+    /* Set up screen */
+    mVts = vterm_obtain_screen(mVt);
+    vterm_screen_enable_altscreen(mVts, 1);
+    vterm_screen_set_callbacks(mVts, &cb, this);
+    vterm_screen_set_damage_merge(mVts, VTERM_DAMAGE_SCROLL);
+    vterm_screen_reset(mVts, 1);
+
+    publishScreenLocked();
+}
+
+Terminal::~Terminal() {
+    // Once removed the reactor won't call back into us again
+    if (mReactor != NULL) {
+        mReactor->remove(this);
+    }
+
+    if (mMasterFd != -1) {
+        close(mMasterFd);
+    }
+    if (mChildPid > 0) {
+        ::kill(mChildPid, SIGHUP);
+    }
+
+    vterm_free(mVt);
+    delete mLog;
+    delete mRecorder;
+
+    delete mShadow.load();
+    for (size_t i = 0; i < mShadowRetired.size(); i++) {
+        delete mShadowRetired[i];
+    }
+
+    resizeScrollbackLocked(0);
+    for (size_t i = 0; i < mReflowSource.size(); i++) {
+        delete mReflowSource[i];
+    }
+    for (size_t i = 0; i < mReflowOverflow.size(); i++) {
+        delete mReflowOverflow[i];
+    }
+    delete mSpill;
+    delete[] mDecodedCells;
+}
+
+/*
+ * Fork the child shell and hand its pseudo terminal to reactor, which
+ * services all further I/O.
+ */
+status_t Terminal::start(TerminalReactor* reactor) {
+    struct termios termios;
+    memset(&termios, 0, sizeof(termios));
+    termios.c_iflag = ICRNL|IXON|IUTF8;
+    termios.c_oflag = OPOST|ONLCR|NL0|CR0|TAB0|BS0|VT0|FF0;
+    termios.c_cflag = CS8|CREAD;
+    termios.c_lflag = ISIG|ICANON|IEXTEN|ECHO|ECHOE|ECHOK;
+
+    cfsetispeed(&termios, B38400);
+    cfsetospeed(&termios, B38400);
+
+    termios.c_cc[VINTR]    = 0x1f & 'C';
+    termios.c_cc[VQUIT]    = 0x1f & '\\';
+    termios.c_cc[VERASE]   = 0x7f;
+    termios.c_cc[VKILL]    = 0x1f & 'U';
+    termios.c_cc[VEOF]     = 0x1f & 'D';
+    termios.c_cc[VSTART]   = 0x1f & 'Q';
+    termios.c_cc[VSTOP]    = 0x1f & 'S';
+    termios.c_cc[VSUSP]    = 0x1f & 'Z';
+    termios.c_cc[VREPRINT] = 0x1f & 'R';
+    termios.c_cc[VWERASE]  = 0x1f & 'W';
+    termios.c_cc[VLNEXT]   = 0x1f & 'V';
+    termios.c_cc[VMIN]     = 1;
+    termios.c_cc[VTIME]    = 0;
+
+    struct winsize size = { mRows, mCols, 0, 0 };
+
+    int stderr_save_fd = dup(2);
+    if (stderr_save_fd < 0) {
+        ALOGE("failed to dup stderr - %s", strerror(errno));
+    }
+
+    mChildPid = forkpty(&mMasterFd, NULL, &termios, &size);
+    if (mChildPid == 0) {
+        /* Restore the ISIG signals back to defaults */
+        signal(SIGINT, SIG_DFL);
+        signal(SIGQUIT, SIG_DFL);
+        signal(SIGSTOP, SIG_DFL);
+        signal(SIGCONT, SIG_DFL);
+
+        FILE *stderr_save = fdopen(stderr_save_fd, "a");
+
+        if (!stderr_save) {
+            ALOGE("failed to open stderr - %s", strerror(errno));
+        }
+
+        // We know execvp(2) won't actually try to modify this.
+        char *shell = const_cast<char*>("/system/bin/sh");
+#if USE_TEST_SHELL
+        char *args[4] = {shell, "-c", "x=1; c=0; while true; do echo -e \"stop \e[00;3${c}mechoing\e[00m yourself! ($x)\"; x=$(( $x + 1 )); c=$((($c+1)%7)); if [ $x -gt 110 ]; then sleep 0.5; fi; done", NULL};
+#else
+        char *args[2] = {shell, NULL};
+#endif
+
+        execvp(shell, args);
+        fprintf(stderr_save, "Cannot exec(%s) - %s\n", shell, strerror(errno));
+        _exit(1);
+    }
+
+    if (mChildPid == -1) {
+        ALOGE("forkpty() failed: %s", strerror(errno));
+        return -1;
+    }
+    if (stderr_save_fd >= 0) {
+        close(stderr_save_fd);
+    }
+
+    fcntl(mMasterFd, F_SETFL, fcntl(mMasterFd, F_GETFL) | O_NONBLOCK);
+    fcntl(mMasterFd, F_SETFD, FD_CLOEXEC);
+
+    // Anything typed before the child existed goes out first
+    Mutex::Autolock lock(mWriteLock);
+    mReactor = reactor;
+    if (mReactor->add(mMasterFd, this) != 0) {
+        return -1;
+    }
+    if (mWriteHead < mWriteQueue.size()) {
+        mReactor->setWantWrite(this, true);
+    }
+    return 0;
+}
+
+/*
+ * Drain whatever output the child has ready, up to quantum bytes, and parse
+ * it in one go. Damage is flushed right away for small interactive output,
+ * otherwise held back for up to the latency budget so a fast producer
+ * results in fewer, larger updates. Returns false once the child has gone
+ * away.
+ */
+bool Terminal::onReadable(size_t quantum) {
+    ATRACE_CALL();
+    bool alive = true;
+    size_t total = 0;
+    size_t reads = 0;
+    while (total < quantum) {
+        // Size the read to everything already waiting, within the quantum
+        int available = 0;
+        ioctl(mMasterFd, FIONREAD, &available);
+        size_t want = (size_t) available > kMinRead ? available : kMinRead;
+        if (want > quantum - total) {
+            want = quantum - total;
+        }
+        if (mReadBuffer.size() < total + want) {
+            mReadBuffer.resize(total + want);
+        }
+
+        ssize_t bytes = ::read(mMasterFd, &mReadBuffer[total], want);
+#if DEBUG_IO
+        ALOGD("read() returned %zd bytes", bytes);
+#endif
+
+        if (bytes == 0) {
+            ALOGD("read() found EOF");
+            alive = false;
+            break;
+        }
+        if (bytes == -1) {
+            if (errno == EINTR) {
+                continue;
+            }
+            if (errno != EAGAIN && errno != EWOULDBLOCK) {
+                // Reading a master whose slave has closed fails with EIO
+                ALOGD("read() failed: %s", strerror(errno));
+                alive = false;
+            }
+            break;
+        }
+
+        total += bytes;
+        reads++;
+    }
+
+    if (total > 0) {
+        parse(mReadBuffer.data(), total);
+    }
+
+    nsecs_t budget;
+    {
+        Mutex::Autolock lock(mLock);
+        mIoStats.reads += reads;
+        budget = mLatencyBudget;
+    }
+
+    nsecs_t now = systemTime(SYSTEM_TIME_MONOTONIC);
+    if (total > 0 && mPendingSince == 0) {
+        mPendingSince = now;
+    }
+
+    bool drained = total < quantum;
+    if (mPendingSince == 0) {
+        // Nothing parsed since the last flush
+    } else if (!alive || budget == 0 || now - mPendingSince >= budget
+            || (drained && total > 0 && total < kCoalesceMinBytes)) {
+        flushOutput();
+    } else {
+        // Child paused, or filled the quantum and may stop right there;
+        // either way output is reported once the budget runs out
+        mReactor->setTimeout(this, mPendingSince + budget);
+    }
+    return alive;
+}
+
+void Terminal::onTimeout() {
+    flushOutput();
+}
+
+/*
+ * Feed output to the parser as if read from the child. Damage is collected
+ * but not reported until flushOutput().
+ */
+void Terminal::parse(const char* bytes, size_t len) {
+    ATRACE_CALL();
+    TimedAutolock lock(mLock, &mPerfStats);
+    if (mPerfStats.enabled.load(std::memory_order_relaxed)) {
+        const nsecs_t start = systemTime(SYSTEM_TIME_MONOTONIC);
+        vterm_push_bytes(mVt, bytes, len);
+        mPerfStats.parseNanos.fetch_add(systemTime(SYSTEM_TIME_MONOTONIC) - start,
+                std::memory_order_relaxed);
+    } else {
+        vterm_push_bytes(mVt, bytes, len);
+    }
+    scanModesLocked(bytes, len);
+    if (mLog != NULL) {
+        mLog->append(bytes, len);
+    }
+    if (mRecorder != NULL) {
+        mRecorder->recordOutput(bytes, len);
+    }
+
+    mIoStats.bytes += len;
+    mIoStats.batches++;
+    if (len > mIoStats.maxBatch) {
+        mIoStats.maxBatch = len;
+    }
+}
+
+/*
+ * Follow the modes libvterm ignores but input depends on. Only the mode
+ * set on its own is recognized, as shells send it.
+ */
+void Terminal::scanModesLocked(const char* bytes, size_t len) {
+    const size_t modeLength = sizeof(kBracketedPasteMode) - 1;
+    size_t i = 0;
+    while (i < len) {
+        if (mModeMatch == 0) {
+            const void* esc = memchr(bytes + i, 0x1b, len - i);
+            if (esc == NULL) {
+                return;
+            }
+            i = static_cast<const char*>(esc) - bytes;
+        }
+
+        const char c = bytes[i++];
+        if (mModeMatch == modeLength) {
+            if (c == 'h' || c == 'l') {
+                mBracketedPaste = (c == 'h');
+            }
+            mModeMatch = 0;
+        }
+        if (c == kBracketedPasteMode[mModeMatch]) {
+            mModeMatch++;
+        } else {
+            mModeMatch = (c == 0x1b) ? 1 : 0;
+        }
+    }
+}
+
+/*
+ * Report damage for everything parsed so far.
+ */
+void Terminal::flushOutput() {
+    ATRACE_CALL();
+    {
+        TimedAutolock lock(mLock, &mPerfStats);
+        vterm_screen_flush_damage(mVts);
+        publishScreenLocked();
+        if (mSpill != NULL) {
+            // Lines spilled by this batch of output go out in one write
+            mSpill->flush();
+        }
+        mIoStats.flushes++;
+    }
+    dispatchEvents();
+
+    if (mPendingSince != 0) {
+        mPendingSince = 0;
+        mReactor->setTimeout(this, 0);
+    }
+}
+
+/*
+ * Change how long damage from a burst of output may be held back, where 0
+ * flushes after every read.
+ */
+void Terminal::setLatencyBudget(nsecs_t budget) {
+    Mutex::Autolock lock(mLock);
+    mLatencyBudget = budget;
+}
+
+/*
+ * Queue bytes for the child without blocking; they are written directly
+ * when nothing is already waiting and the pty has room.
+ */
+size_t Terminal::write(const char *bytes, size_t len) {
+    Mutex::Autolock lock(mWriteLock);
+
+    size_t written = 0;
+    if (mWriteHead == mWriteQueue.size() && mMasterFd != -1) {
+        ssize_t res = ::write(mMasterFd, bytes, len);
+        if (res > 0) {
+            written = res;
+        } else if (res == -1 && errno != EAGAIN && errno != EWOULDBLOCK) {
+            ALOGE("write() failed: %s", strerror(errno));
+            return 0;
+        }
+    }
+
+    if (written < len) {
+        size_t queued = mWriteQueue.size() - mWriteHead;
+        if (queued + len - written > kMaxWriteQueue) {
+            ALOGW("dropping %zu bytes, child isn't reading", len - written);
+            return written;
+        }
+        mWriteQueue.insert(mWriteQueue.end(), bytes + written, bytes + len);
+        if (mReactor != NULL) {
+            mReactor->setWantWrite(this, true);
+        }
+    }
+    return len;
+}
+
+/*
+ * Write as much queued output as the pty accepts.
+ */
+void Terminal::onWritable() {
+    Mutex::Autolock lock(mWriteLock);
+
+    while (mWriteHead < mWriteQueue.size()) {
+        ssize_t res = ::write(mMasterFd, &mWriteQueue[mWriteHead],
+                mWriteQueue.size() - mWriteHead);
+        if (res == -1) {
+            if (errno == EINTR) {
+                continue;
+            }
+            if (errno != EAGAIN && errno != EWOULDBLOCK) {
+                ALOGE("write() failed: %s", strerror(errno));
+                mWriteHead = mWriteQueue.size();
+            }
+            break;
+        }
+        mWriteHead += res;
+    }
+
+    if (mWriteHead == mWriteQueue.size()) {
+        mWriteQueue.clear();
+        mWriteHead = 0;
+        mReactor->setWantWrite(this, false);
+    } else if (mWriteHead * 2 >= mWriteQueue.size()) {
+        // Output streamed in while the child reads never fully drains, so
+        // drop what was written before it can pile up
+        mWriteQueue.erase(mWriteQueue.begin(), mWriteQueue.begin() + mWriteHead);
+        mWriteHead = 0;
+    }
+    mWriteCond.broadcast();
+}
+
+bool Terminal::dispatchCharacter(int mod, int character) {
+    TimedAutolock lock(mLock, &mPerfStats);
+    vterm_input_push_char(mVt, static_cast<VTermModifier>(mod), character);
+    return flushInput();
+}
+
+bool Terminal::dispatchKey(int mod, int key) {
+    TimedAutolock lock(mLock, &mPerfStats);
+    vterm_input_push_key(mVt, static_cast<VTermModifier>(mod), static_cast<VTermKey>(key));
+    return flushInput();
+}
+
+/*
+ * Send a whole string to the child under one lock and in one write, rather
+ * than a character at a time. Newlines are sent as returns, as if typed.
+ * A paste is bracketed when the child asked for that as it began, with any
+ * escapes in it removed so it can't end the bracket early.
+ */
+bool Terminal::dispatchText(const uint16_t* text, size_t len, int flags) {
+    TimedAutolock lock(mLock, &mPerfStats);
+
+    // Anything vterm has buffered goes out first
+    if (!flushInput()) {
+        return false;
+    }
+
+    if (flags & TEXT_PASTE_START) {
+        mPasteBracketed = mBracketedPaste;
+    }
+    const bool bracketed = (flags & TEXT_PASTE) && mPasteBracketed;
+
+    mTextInput.clear();
+    if (bracketed && (flags & TEXT_PASTE_START)) {
+        mTextInput.insert(mTextInput.end(), kPasteStart, kPasteStart + sizeof(kPasteStart) - 1);
+    }
+
+    for (size_t i = 0; i < len; i++) {
+        uint32_t c = text[i];
+        if (c >= 0xd800 && c <= 0xdbff && i + 1 < len
+                && text[i + 1] >= 0xdc00 && text[i + 1] <= 0xdfff) {
+            c = 0x10000 + ((c - 0xd800) << 10) + (text[++i] - 0xdc00);
+        }
+        if (c == '\r' && i + 1 < len && text[i + 1] == '\n') {
+            continue;
+        }
+        if (c == '\n') {
+            c = '\r';
+        }
+        if (c == 0x1b && bracketed) {
+            continue;
+        }
+
+        vterm_input_push_char(mVt, VTERM_MOD_NONE, c);
+
+        // vterm only buffers a little, so move each character out as it goes
+        const size_t encoded = vterm_output_get_buffer_current(mVt);
+        const size_t offset = mTextInput.size();
+        mTextInput.resize(offset + encoded);
+        vterm_output_bufferread(mVt, &mTextInput[offset], encoded);
+    }
+
+    if (bracketed && (flags & TEXT_PASTE_END)) {
+        mTextInput.insert(mTextInput.end(), kPasteEnd, kPasteEnd + sizeof(kPasteEnd) - 1);
+    }
+    if (mTextInput.empty()) {
+        return true;
+    }
+    if (mRecorder != NULL) {
+        mRecorder->recordInput(mTextInput.data(), mTextInput.size());
+    }
+    return write(mTextInput.data(), mTextInput.size()) == mTextInput.size();
+}
+
+/*
+ * Wait up to timeout for output queued for the child to drop below
+ * maxQueued bytes, returning how much is queued. Lets a large paste be
+ * sent in pieces no faster than the child reads them.
+ */
+size_t Terminal::waitForWriteQueue(size_t maxQueued, nsecs_t timeout) {
+    Mutex::Autolock lock(mWriteLock);
+    if (!mWriteWaitsCancelled && mWriteQueue.size() - mWriteHead >= maxQueued) {
+        mWriteCond.waitRelative(mWriteLock, timeout);
+    }
+    return mWriteQueue.size() - mWriteHead;
+}
+
+/*
+ * Wake anyone in waitForWriteQueue() now, and return straight away from
+ * any later wait.
+ */
+void Terminal::cancelWriteWaits() {
+    Mutex::Autolock lock(mWriteLock);
+    mWriteWaitsCancelled = true;
+    mWriteCond.broadcast();
+}
+
+bool Terminal::flushInput() {
+    size_t len = vterm_output_get_buffer_current(mVt);
+    if (len) {
+        // Shares the text buffer, which keeps its capacity between keys
+        mTextInput.resize(len);
+        len = vterm_output_bufferread(mVt, mTextInput.data(), len);
+        if (mRecorder != NULL) {
+            mRecorder->recordInput(mTextInput.data(), len);
+        }
+        return len == write(mTextInput.data(), len);
+    }
+    return true;
+}
+
+/*
+ * Resize screen and history. When the width changes scrollback is rewrapped
+ * to match; for long histories that is deferred, and RESIZE_REFLOW_PENDING
+ * asks the caller to run reflow() on a background thread.
+ */
+status_t Terminal::resize(dimen_t rows, dimen_t cols, size_t scrollRows) {
+    status_t res = 0;
+    {
+        Mutex::Autolock lock(mLock);
+
+        ALOGD("resize(%d, %d, %zu)", rows, cols, scrollRows);
+
+        if (scrollRows != mScrollRows) {
+            configureScrollbackLocked(scrollRows);
+        }
+
+        // Rewrap before libvterm resizes, so lines it pops back onto a taller
+        // screen already have the new width
+        if (cols != mCols && beginReflowLocked(cols)) {
+            if (mReflowSource.size() <= kReflowInlineRows) {
+                std::vector<ScrollbackLine*> lines;
+                reflowLines(mReflowSource, cols, &lines);
+                finishReflowLocked(&lines);
+            } else {
+                res = RESIZE_REFLOW_PENDING;
+            }
+        }
+
+        if (mRecorder != NULL && (rows != mRows || cols != mCols)) {
+            mRecorder->recordResize(rows, cols);
+        }
+        mRows = rows;
+        mCols = cols;
+        mRowGenerations.resize(rows);
+        mShadowDirty.resize(rows);
+        touchRowsLocked(0, rows);
+
+        struct winsize size = { rows, cols, 0, 0 };
+        ioctl(mMasterFd, TIOCSWINSZ, &size);
+
+        vterm_set_size(mVt, rows, cols);
+        vterm_screen_flush_damage(mVts);
+        publishScreenLocked();
+    }
+    dispatchEvents();
+
+    return res;
+}
+
+/*
+ * Complete a reflow deferred by resize(). Lines are rewrapped without
+ * holding mLock, so output keeps flowing and older history stays readable
+ * at its previous width until the result is swapped in. Returns 1 when the
+ * width changed again meanwhile and another pass is needed.
+ */
+int Terminal::reflow() {
+    int again = 0;
+    {
+        // Keeps a replay and a client resizing from both walking
+        // mReflowSource; released before events go out
+        Mutex::Autolock reflowLock(mReflowLock);
+
+        dimen_t cols;
+        {
+            Mutex::Autolock lock(mLock);
+            if (!mReflowPending) {
+                return 0;
+            }
+            cols = mReflowCols;
+        }
+
+        // Nothing else touches mReflowSource while a reflow is pending
+        std::vector<ScrollbackLine*> lines;
+        reflowLines(mReflowSource, cols, &lines);
+
+        Mutex::Autolock lock(mLock);
+        finishReflowLocked(&lines);
+        if (mCols != cols && beginReflowLocked(mCols)) {
+            again = 1;
+        }
+    }
+    dispatchEvents();
+
+    return again;
+}
+
+status_t Terminal::setColors(int fg, int bg) {
+    {
+        Mutex::Autolock lock(mLock);
+        setColorsLocked(fg, bg);
+        publishScreenLocked();
+    }
+    dispatchEvents();
+
+    return 0;
+}
+
+/*
+ * Replace the first count ANSI colours. libvterm resolves colours as they
+ * are set, so only output from here on uses the new palette.
+ */
+status_t Terminal::setPalette(const int32_t* colors, size_t count) {
+    if (count > PALETTE_SIZE) {
+        return -1;
+    }
+
+    Mutex::Autolock lock(mLock);
+    VTermState* state = vterm_obtain_state(mVt);
+    for (size_t i = 0; i < count; i++) {
+        VTermColor color = { (uint8_t)((colors[i]>>16)&0xff),
+                             (uint8_t)((colors[i]>>8)&0xff),
+                             (uint8_t)(colors[i]&0xff) };
+        vterm_state_set_palette_color(state, i, &color);
+    }
+
+    return 0;
+}
+
+void Terminal::setColorsLocked(int fg, int bg) {
+    ALOGD("setColors(0x%x, 0x%x)", fg, bg);
+
+    VTermState* state = vterm_obtain_state(mVt);
+    VTermColor oldFgColor, oldBgColor;
+    vterm_state_get_default_colors(state, &oldFgColor, &oldBgColor);
+
+    int changed = fg != toArgb(oldFgColor) || bg != toArgb(oldBgColor);
+    VTermColor fg_color = { (uint8_t)((fg>>16)&0xff),
+                            (uint8_t)((fg>>8)&0xff),
+                            (uint8_t)(fg&0xff) };
+    VTermColor bg_color = { (uint8_t)((bg>>16)&0xff),
+                            (uint8_t)((bg>>8)&0xff),
+                            (uint8_t)(bg&0xff) };
+    vterm_state_set_default_colors(state, &fg_color, &bg_color);
+
+    // Cells drawn in default colours change without any damage
+    touchRowsLocked(0, mRows);
+    touchScrollbackLocked();
+
+    VTermPos oldPos, newPos;
+    vterm_state_get_cursorpos(state, &oldPos);
+    vterm_state_reset(state, changed);
+    vterm_state_get_cursorpos(state, &newPos);
+
+    if (oldPos.row != newPos.row || oldPos.col != newPos.col) {
+        onCursorChange(oldPos, newPos, mCursorVisible);
+    }
+}
+
+int Terminal::onDamage(const VTermRect& rect) {
+    mPerfStats.damageEvents.fetch_add(1, std::memory_order_relaxed);
+    touchRowsLocked(rect.start_row, rect.end_row);
+
+    mEvents.push_back(EVENT_DAMAGE);
+    mEvents.push_back(rect.start_row);
+    mEvents.push_back(rect.end_row);
+    mEvents.push_back(rect.start_col);
+    mEvents.push_back(rect.end_col);
+    return 1;
+}
+
+int Terminal::onMoveRect(const VTermRect& dest, const VTermRect& src) {
+    touchRowsLocked(dest.start_row, dest.end_row);
+
+    mEvents.push_back(EVENT_MOVE_RECT);
+    mEvents.push_back(dest.start_row);
+    mEvents.push_back(dest.end_row);
+    mEvents.push_back(dest.start_col);
+    mEvents.push_back(dest.end_col);
+    mEvents.push_back(src.start_row);
+    mEvents.push_back(src.end_row);
+    mEvents.push_back(src.start_col);
+    mEvents.push_back(src.end_col);
+    return 1;
+}
+
+int Terminal::onCursorChange(const VTermPos& oldPos, const VTermPos& newPos, bool visible) {
+    mCursorVisible = visible;
+
+    // Only the final position matters, but remember where it started
+    if (!mCursorPending) {
+        mCursorOldPos = oldPos;
+        mCursorPending = true;
+    }
+    mCursorPos = newPos;
+    return 1;
+}
+
+/*
+ * Give rows in [startRow, endRow) of the screen a new content generation.
+ */
+void Terminal::touchRowsLocked(int startRow, int endRow) {
+    if (startRow < 0) {
+        startRow = 0;
+    }
+    if (endRow > (int) mRowGenerations.size()) {
+        endRow = mRowGenerations.size();
+    }
+    if (startRow >= endRow) {
+        return;
+    }
+    const uint32_t generation = ++mGeneration;
+    for (int row = startRow; row < endRow; row++) {
+        mRowGenerations[row] = generation;
+        mShadowDirty[row] = 1;
+    }
+    mShadowDirtyAny = true;
+}
+
+/*
+ * Note that scrollback lines moved, dropping anything cached about them.
+ */
+void Terminal::touchScrollbackLocked() {
+    mDecodedLine = NULL;
+    mScrollGeneration = ++mGeneration;
+}
+
+/*
+ * Content generation of a row, which changes whenever anything drawn in it
+ * may have. Negative rows address the scrollback.
+ */
+uint32_t Terminal::getRowGenerationLocked(int row) const {
+    if (row < 0) {
+        return mScrollGeneration;
+    } else if (row < (int) mRowGenerations.size()) {
+        return mRowGenerations[row];
+    } else {
+        return 0;
+    }
+}
+
+/*
+ * Deliver all events collected while parsing to the sink in a single call.
+ * Must be called without mLock held, so clients are free to read terminal
+ * state while handling them.
+ */
+void Terminal::dispatchEvents() {
+    Mutex::Autolock dispatchLock(mDispatchLock);
+    {
+        Mutex::Autolock lock(mLock);
+        if (mCursorPending) {
+            mEvents.push_back(EVENT_MOVE_CURSOR);
+            mEvents.push_back(mCursorPos.row);
+            mEvents.push_back(mCursorPos.col);
+            mEvents.push_back(mCursorOldPos.row);
+            mEvents.push_back(mCursorOldPos.col);
+            mEvents.push_back(mCursorVisible);
+            mCursorPending = false;
+        }
+
+        if (mEvents.empty()) {
+            return;
+        }
+
+        // Parsing carries on into the other buffer, keeping both allocations
+        mDispatchEvents.swap(mEvents);
+        mEvents.clear();
+    }
+
+    mSink->onEvents(mDispatchEvents.data(), mDispatchEvents.size());
+}
+
+status_t Terminal::onPushline(dimen_t cols, const VTermScreenCell* cells) {
+    mLinesPushed++;
+    if (mScrollSize == 0) {
+        return 0;
+    }
+
+    // Advance head, reusing whatever line already occupies the slot; when
+    // full that is the oldest line, otherwise one left behind by a pop.
+    mScrollHead = (mScrollHead + 1) % mScrollSize;
+    ScrollbackLine* line = mScroll[mScrollHead];
+    if (mScrollCur == mScrollSize) {
+        if (mReflowPending) {
+            // Keep it in memory, since it is newer than the lines being
+            // reflowed and must end up in front of them
+            mReflowOverflow.push_back(line);
+            line = NULL;
+        } else if (mSpill != NULL) {
+            mSpill->append(line);
+        }
+    }
+    if (line == NULL) {
+        line = new ScrollbackLine(cols);
+        mScroll[mScrollHead] = line;
+    }
+    touchScrollbackLocked();
+
+    if (mScrollCur < mScrollSize) {
+        mScrollCur++;
+    }
+
+    line->copyFrom(cols, cells);
+
+    // libvterm doesn't expose its wrap state, so guess that a line running
+    // up to the last column continues on the next one
+    line->wrapped = cols > 0 && !isBlankCell(cells[cols - 1]);
+    return 1;
+}
+
+status_t Terminal::onPopline(dimen_t cols, VTermScreenCell* cells) {
+    ScrollbackLine* line;
+    ScrollbackLine* detached = NULL;
+    if (mScrollCur > 0) {
+        // Line stays in its slot so the next push can reuse its storage
+        line = mScroll[mScrollHead];
+        mScrollHead = (mScrollHead + mScrollSize - 1) % mScrollSize;
+        mScrollCur--;
+    } else if (!mReflowOverflow.empty()) {
+        line = detached = mReflowOverflow.back();
+        mReflowOverflow.pop_back();
+    } else if (mReflowPending) {
+        // Older lines are being reflowed and can't be taken yet
+        return 0;
+    } else if (mSpill != NULL && mSpill->pop(&mSpillLine)) {
+        line = &mSpillLine;
+    } else {
+        return 0;
+    }
+    touchScrollbackLocked();
+    mLinesPushed--;
+
+    dimen_t n = line->copyTo(cols, cells);
+    for (dimen_t col = n; col < cols; col++) {
+        cells[col].chars[0] = 0;
+        cells[col].width = 1;
+    }
+    delete detached;
+
+    return 1;
+}
+
+/*
+ * Return scrollback line at index, where 0 is the most recently pushed.
+ */
+ScrollbackLine* Terminal::getScrollLineLocked(size_t index) const {
+    return mScroll[(mScrollHead + mScrollSize - index) % mScrollSize];
+}
+
+/*
+ * Return in-memory scrollback line at index, where 0 is the most recently
+ * pushed, including lines set aside by a pending reflow.
+ */
+const ScrollbackLine* Terminal::findScrollLineLocked(size_t index) const {
+    if (index < mScrollCur) {
+        return getScrollLineLocked(index);
+    }
+    index -= mScrollCur;
+    if (index < mReflowOverflow.size()) {
+        return mReflowOverflow[mReflowOverflow.size() - 1 - index];
+    }
+    index -= mReflowOverflow.size();
+    if (index < mReflowSource.size()) {
+        return mReflowSource[mReflowSource.size() - 1 - index];
+    }
+    return NULL;
+}
+
+/*
+ * Number of scrollback lines held in memory.
+ */
+size_t Terminal::getMemoryScrollCountLocked() const {
+    return mScrollCur + mReflowOverflow.size() + mReflowSource.size();
+}
+
+/*
+ * Number of scrollback lines available, in memory or spilled.
+ */
+size_t Terminal::getScrollCountLocked() const {
+    return getMemoryScrollCountLocked() + (mSpill != NULL ? mSpill->size() : 0);
+}
+
+/*
+ * Expand the scrollback line at index into full cells, reading it back
+ * from the spill file when older than the ring. Unless asked to wait on
+ * storage, spilled lines that haven't been paged in yet are not found.
+ * The result is cached, so walking a line cell by cell only decodes it
+ * once.
+ */
+const ScrollbackLine* Terminal::decodeScrollLineLocked(size_t index,
+        const VTermScreenCell** cells, bool wait) {
+    if (mDecodedLine == NULL || mDecodedIndex != index) {
+        const ScrollbackLine* line;
+        size_t memory = getMemoryScrollCountLocked();
+        if (index < memory) {
+            line = findScrollLineLocked(index);
+        } else if (mSpill != NULL && (wait ? mSpill->read(index - memory, &mSpillLine)
+                : mSpill->readResident(index - memory, &mSpillLine))) {
+            line = &mSpillLine;
+        } else {
+            return NULL;
+        }
+
+        if (line->cols > mDecodedCapacity) {
+            delete[] mDecodedCells;
+            mDecodedCells = new VTermScreenCell[line->cols];
+            mDecodedCapacity = line->cols;
+        }
+        line->copyTo(line->cols, mDecodedCells);
+        mDecodedLine = line;
+        mDecodedIndex = index;
+    }
+    *cells = mDecodedCells;
+    return mDecodedLine;
+}
+
+/*
+ * Apply requested history depth, splitting it between the in-memory ring
+ * and the spill file when one is in use.
+ */
+void Terminal::configureScrollbackLocked(size_t scrollRows) {
+    mScrollRows = scrollRows;
+
+    size_t hot = scrollRows;
+    if (mSpill != NULL && hot > kSpillHotRows) {
+        hot = kSpillHotRows;
+    }
+
+    if (mReflowPending) {
+        // Lines being reflowed are older, so anything leaving the ring has
+        // to wait in the overflow until the reflow lands
+        while (mScrollCur > hot) {
+            mReflowOverflow.push_back(detachScrollLineLocked());
+        }
+    }
+
+    if (mSpill != NULL) {
+        // Move lines that no longer fit in memory out to disk, oldest first
+        while (mScrollCur > hot) {
+            mSpill->append(getScrollLineLocked(mScrollCur - 1));
+            mScrollCur--;
+        }
+        mSpill->setCapacity(scrollRows - hot);
+    }
+
+    if (hot != mScrollSize) {
+        resizeScrollbackLocked(hot);
+    }
+    touchScrollbackLocked();
+}
+
+/*
+ * Change scrollback capacity, keeping as many of the newest lines as fit.
+ */
+void Terminal::resizeScrollbackLocked(size_t size) {
+    ScrollbackLine** scroll = NULL;
+    size_t cur = mScrollCur < size ? mScrollCur : size;
+
+    if (size > 0) {
+        scroll = new ScrollbackLine*[size];
+        memset(scroll, 0, sizeof(ScrollbackLine*) * size);
+
+        // Lay out kept lines oldest first so head lands at cur - 1
+        for (size_t i = 0; i < cur; i++) {
+            size_t slot = (mScrollHead + mScrollSize - i) % mScrollSize;
+            scroll[cur - 1 - i] = mScroll[slot];
+            mScroll[slot] = NULL;
+        }
+    }
+
+    for (size_t i = 0; i < mScrollSize; i++) {
+        delete mScroll[i];
+    }
+    delete[] mScroll;
+
+    mScroll = scroll;
+    mScrollSize = size;
+    touchScrollbackLocked();
+    mScrollCur = cur;
+    mScrollHead = (cur > 0) ? cur - 1 : (size > 0 ? size - 1 : 0);
+}
+
+/*
+ * Take the oldest line out of the ring, handing ownership to the caller.
+ */
+ScrollbackLine* Terminal::detachScrollLineLocked() {
+    size_t slot = (mScrollHead + mScrollSize - (mScrollCur - 1)) % mScrollSize;
+    ScrollbackLine* line = mScroll[slot];
+    mScroll[slot] = NULL;
+    mScrollCur--;
+    touchScrollbackLocked();
+    return line;
+}
+
+/*
+ * Set aside everything in the ring for rewrapping to cols, leaving it empty
+ * for new output. Spilled history keeps its original width. Returns false
+ * when a reflow is already pending, in which case it is redirected to cols
+ * once done.
+ */
+bool Terminal::beginReflowLocked(dimen_t cols) {
+    mReflowCols = cols;
+    if (mReflowPending) {
+        return false;
+    }
+
+    // Detached oldest first, which is the order reflow needs
+    while (mScrollCur > 0) {
+        mReflowSource.push_back(detachScrollLineLocked());
+    }
+    mReflowPending = true;
+    return true;
+}
+
+/*
+ * Replace the lines set aside by beginReflowLocked() with their reflowed
+ * versions, oldest first, followed by anything pushed since. Whatever no
+ * longer fits in the ring spills or is dropped, oldest first.
+ */
+void Terminal::finishReflowLocked(std::vector<ScrollbackLine*>* lines) {
+    for (size_t i = 0; i < mReflowSource.size(); i++) {
+        delete mReflowSource[i];
+    }
+    mReflowSource.clear();
+
+    lines->insert(lines->end(), mReflowOverflow.begin(), mReflowOverflow.end());
+    mReflowOverflow.clear();
+    while (mScrollCur > 0) {
+        lines->push_back(detachScrollLineLocked());
+    }
+
+    size_t excess = lines->size() > mScrollSize ? lines->size() - mScrollSize : 0;
+    for (size_t i = 0; i < excess; i++) {
+        if (mSpill != NULL) {
+            mSpill->append((*lines)[i]);
+        }
+        delete (*lines)[i];
+    }
+
+    // Slots still holding spare lines are about to be overwritten
+    for (size_t i = 0; i < mScrollSize; i++) {
+        delete mScroll[i];
+        mScroll[i] = NULL;
+    }
+    size_t cur = lines->size() - excess;
+    for (size_t i = 0; i < cur; i++) {
+        mScroll[i] = (*lines)[excess + i];
+    }
+    mScrollCur = cur;
+    mScrollHead = (cur > 0) ? cur - 1 : (mScrollSize > 0 ? mScrollSize - 1 : 0);
+
+    mReflowPending = false;
+    touchScrollbackLocked();
+    mEvents.push_back(EVENT_SCROLLBACK);
+}
+
+bool Terminal::getCellLocked(VTermPos pos, VTermScreenCell* cell) {
+    // The UI may be asking for cell data while the model is changing
+    // underneath it, so we always fill with meaningful data.
+
+    if (pos.row < 0) {
+        size_t scrollRow = -pos.row;
+        const VTermScreenCell* cells;
+        const ScrollbackLine* line = NULL;
+        if (scrollRow <= getScrollCountLocked()) {
+            line = decodeScrollLineLocked(scrollRow - 1, &cells, false);
+        }
+        if (line == NULL) {
+            // Invalid region above current scrollback
+            cell->width = 1;
+#if DEBUG_SCROLLBACK
+            cell->bg.red = 255;
+#endif
+            return false;
+        }
+
+        if ((size_t) pos.col < line->cols) {
+            // Valid scrollback cell
+            *cell = cells[pos.col];
+#if DEBUG_SCROLLBACK
+            cell->bg.blue = 255;
+#endif
+            return true;
+        } else {
+            // Extend last scrollback cell into invalid region
+            *cell = cells[line->cols - 1];
+            cell->width = 1;
+            cell->chars[0] = ' ';
+#if DEBUG_SCROLLBACK
+            cell->bg.green = 255;
+#endif
+            return true;
+        }
+    }
+
+    if ((size_t) pos.row >= mRows) {
+        // Invalid region below screen
+        cell->width = 1;
+#if DEBUG_SCROLLBACK
+        cell->bg.red = 128;
+#endif
+        return false;
+    }
+
+    // Valid screen cell
+    vterm_screen_get_cell(mVts, pos, cell);
+    return true;
+}
+
+void Terminal::getDefaultColorsLocked(VTermColor* fg, VTermColor* bg) {
+    vterm_state_get_default_colors(vterm_obtain_state(mVt), fg, bg);
+}
+
+/*
+ * Style ID of a cell. Should the table ever fill up between resets, cells
+ * fall back to the first style interned.
+ */
+int32_t Terminal::internStyleLocked(const VTermScreenCell& cell) {
+    CellStyle style;
+    style.fg = toArgb(cell.fg);
+    style.bg = toArgb(cell.bg);
+    style.attrs = packAttrs(cell.attrs);
+    const int32_t id = mStyles.intern(style);
+    return id >= 0 ? id : 0;
+}
+
+/*
+ * Convert a row of cells into RowSnapshot layout, cols cells wide.
+ * Returns the ROW_* flags describing it.
+ */
+int32_t Terminal::fillRowLocked(int row, dimen_t cols, int32_t* chars, int32_t* styles,
+        int8_t* widths) {
+    VTermColor defaultFg, defaultBg;
+    getDefaultColorsLocked(&defaultFg, &defaultBg);
+
+    bool ascii = true;
+    bool uniform = true;
+    bool pending = false;
+    if (row < 0 && (size_t) -row <= getScrollCountLocked()) {
+        // Drawn blank until paged in, rather than waiting on storage
+        const VTermScreenCell* cells;
+        pending = decodeScrollLineLocked(-row - 1, &cells, false) == NULL;
+    }
+
+    VTermScreenCell cell;
+    VTermPos pos;
+    pos.row = row;
+    for (pos.col = 0; pos.col < cols; pos.col++) {
+        const int i = pos.col;
+        memset(&cell, 0, sizeof(VTermScreenCell));
+        if (!getCellLocked(pos, &cell)) {
+            cell.fg = defaultFg;
+            cell.bg = defaultBg;
+        }
+
+        styles[i] = internStyleLocked(cell);
+        uniform = uniform && styles[i] == styles[0];
+
+        if (cell.chars[0] == (uint32_t) -1) {
+            // Right half of a double-width character
+            chars[i] = 0;
+            widths[i] = 0;
+            ascii = false;
+            continue;
+        }
+
+        chars[i] = cell.chars[0];
+        widths[i] = cell.width;
+        ascii = ascii && cell.chars[0] < 0x80 && cell.width == 1;
+
+        if (cell.width > 1 && pos.col + 1 < cols) {
+            pos.col++;
+            chars[i + 1] = 0;
+            styles[i + 1] = styles[i];
+            widths[i + 1] = 0;
+        }
+    }
+
+    return (ascii ? ROW_ASCII : 0) | (uniform ? ROW_UNIFORM : 0)
+            | (pending ? ROW_PENDING : 0);
+}
+
+/*
+ * Copy a run from col to the end of a simple row straight out of the
+ * shadow screen, as long as the row is on screen and unchanged since it
+ * was last published. Returns false when the caller has to walk the cells.
+ */
+bool Terminal::getSimpleRunLocked(int row, int col, uint16_t* data, size_t capacity,
+        size_t* size, int32_t* style) {
+    const ShadowScreen* shadow = mShadow.load(std::memory_order_relaxed);
+    if (shadow == NULL || row < 0 || row >= mRows || col < 0 || col >= mCols
+            || shadow->rows != mRows || shadow->cols != mCols || mShadowDirty[row]
+            || (shadow->rowFlags[row] & ROW_SIMPLE) != ROW_SIMPLE) {
+        return false;
+    }
+
+    const int32_t* chars = &shadow->chars[(size_t) row * mCols];
+    const size_t count = std::min(capacity, (size_t) (mCols - col));
+    for (size_t i = 0; i < count; i++) {
+        data[i] = chars[col + i];
+    }
+    *size = count;
+    *style = shadow->styles[(size_t) row * mCols];
+    return true;
+}
+
+ShadowScreen::ShadowScreen(size_t cellCapacity, size_t rowCapacity) :
+        cellCapacity(cellCapacity), rowCapacity(rowCapacity), rows(0), cols(0), linesPushed(0),
+        styleEpoch(0), chars(cellCapacity), styles(cellCapacity), widths(cellCapacity),
+        generations(rowCapacity), rowFlags(rowCapacity) {
+}
+
+/*
+ * Copy rows changed since the last call into the shadow screen, so readers
+ * see everything reported so far. Cheap when nothing changed.
+ */
+void Terminal::publishScreenLocked() {
+    if (!mShadowDirtyAny) {
+        return;
+    }
+
+    ShadowScreen* shadow = mShadow.load(std::memory_order_relaxed);
+    ShadowScreen* grown = NULL;
+    const size_t cells = (size_t) mRows * mCols;
+    if (shadow == NULL || cells > shadow->cellCapacity || mRows > shadow->rowCapacity) {
+        size_t cellCapacity = cells;
+        size_t rowCapacity = mRows;
+        if (shadow != NULL) {
+            // Grow geometrically to bound what retired screens hold on to
+            cellCapacity = std::max(cellCapacity, shadow->cellCapacity * 2);
+            rowCapacity = std::max(rowCapacity, shadow->rowCapacity * 2);
+            mShadowRetired.push_back(shadow);
+        }
+        grown = new ShadowScreen(cellCapacity, rowCapacity);
+    }
+
+    const uint32_t seq = mShadowSeq.load(std::memory_order_relaxed);
+    mShadowSeq.store(seq + 1, std::memory_order_relaxed);
+    std::atomic_thread_fence(std::memory_order_release);
+
+    if (grown != NULL) {
+        mShadow.store(grown, std::memory_order_relaxed);
+        shadow = grown;
+    }
+    shadow->linesPushed = mLinesPushed;
+    if (mStyles.isCrowded()) {
+        // Styles no longer on screen pile up, so start over while readers
+        // are held off; every row is interned again below
+        mStyles.reset();
+        std::fill(mShadowDirty.begin(), mShadowDirty.end(), 1);
+    }
+    shadow->styleEpoch = mStyles.getEpoch();
+    if (grown != NULL || shadow->rows != mRows || shadow->cols != mCols) {
+        shadow->rows = mRows;
+        shadow->cols = mCols;
+        std::fill(mShadowDirty.begin(), mShadowDirty.end(), 1);
+    }
+
+    for (dimen_t row = 0; row < mRows; row++) {
+        if (!mShadowDirty[row]) {
+            continue;
+        }
+        const size_t offset = (size_t) row * mCols;
+        shadow->rowFlags[row] = fillRowLocked(row, mCols, &shadow->chars[offset],
+                &shadow->styles[offset], &shadow->widths[offset]);
+        shadow->generations[row] = mRowGenerations[row];
+        mShadowDirty[row] = 0;
+    }
+    mShadowDirtyAny = false;
+
+    mShadowSeq.store(seq + 2, std::memory_order_release);
+}
+
+/*
+ * Read the published screen size without blocking on the parser.
+ */
+void Terminal::readScreenSize(dimen_t* rows, dimen_t* cols) {
+    for (int attempt = 0; attempt < kShadowReadAttempts; attempt++) {
+        const uint32_t seq = mShadowSeq.load(std::memory_order_acquire);
+        if (seq & 1) {
+            sched_yield();
+            continue;
+        }
+        const ShadowScreen* shadow = mShadow.load(std::memory_order_relaxed);
+        const dimen_t r = shadow->rows;
+        const dimen_t c = shadow->cols;
+        std::atomic_thread_fence(std::memory_order_acquire);
+        if (mShadowSeq.load(std::memory_order_relaxed) == seq) {
+            *rows = r;
+            *cols = c;
+            return;
+        }
+    }
+
+    Mutex::Autolock lock(mLock);
+    *rows = mRows;
+    *cols = mCols;
+}
+
+/*
+ * Copy screen rows from the published shadow without taking mLock,
+ * retrying when a writer raced the copy. Returns false when the rows
+ * aren't all on a screen cols wide, or writers kept winning, in which case
+ * the caller should fall back to reading under mLock.
+ */
+bool Terminal::readScreenRows(int startRow, size_t count, dimen_t cols, int32_t* chars,
+        int32_t* styles, int8_t* widths, int32_t* generations, int32_t* rowFlags,
+        uint64_t* linesPushed, uint32_t* styleEpoch) const {
+    if (startRow < 0) {
+        return false;
+    }
+
+    for (int attempt = 0; attempt < kShadowReadAttempts; attempt++) {
+        const uint32_t seq = mShadowSeq.load(std::memory_order_acquire);
+        if (seq & 1) {
+            sched_yield();
+            continue;
+        }
+
+        // Size may be torn mid write, so first make sure the copy stays
+        // within storage whatever it says; the sequence check catches the
+        // rest
+        const ShadowScreen* shadow = mShadow.load(std::memory_order_relaxed);
+        const bool inside = shadow->cols == cols && startRow + count <= shadow->rows
+                && startRow + count <= shadow->rowCapacity
+                && (startRow + count) * cols <= shadow->cellCapacity;
+        if (inside) {
+            const size_t offset = (size_t) startRow * cols;
+            const size_t cells = count * cols;
+            memcpy(chars, &shadow->chars[offset], cells * sizeof(int32_t));
+            memcpy(styles, &shadow->styles[offset], cells * sizeof(int32_t));
+            memcpy(widths, &shadow->widths[offset], cells * sizeof(int8_t));
+            memcpy(generations, &shadow->generations[startRow], count * sizeof(int32_t));
+            memcpy(rowFlags, &shadow->rowFlags[startRow], count * sizeof(int32_t));
+            *linesPushed = shadow->linesPushed;
+            *styleEpoch = shadow->styleEpoch;
+        }
+
+        std::atomic_thread_fence(std::memory_order_acquire);
+        if (mShadowSeq.load(std::memory_order_relaxed) == seq) {
+            return inside;
+        }
+    }
+    return false;
+}
+
+dimen_t Terminal::getRows() {
+    dimen_t rows, cols;
+    readScreenSize(&rows, &cols);
+    return rows;
+}
+
+dimen_t Terminal::getCols() {
+    dimen_t rows, cols;
+    readScreenSize(&rows, &cols);
+    return cols;
+}
+
+size_t Terminal::getScrollRows() const {
+    return mScrollRows;
+}
+
+/*
+ * Start or stop spilling history older than the in-memory window to a file
+ * in dir. Passing NULL discards anything already spilled.
+ */
+status_t Terminal::setScrollbackSpill(const char* dir) {
+    Mutex::Autolock lock(mLock);
+
+    if ((dir != NULL) == (mSpill != NULL)) {
+        return 0;
+    }
+
+    if (dir != NULL) {
+        ScrollbackSpill* spill = new ScrollbackSpill();
+        if (!spill->open(dir)) {
+            delete spill;
+            return -1;
+        }
+        mSpill = spill;
+    } else {
+        delete mSpill;
+        mSpill = NULL;
+    }
+    mSpillSerial++;
+
+    configureScrollbackLocked(mScrollRows);
+    return 0;
+}
+
+/*
+ * Start copying output to the given log, already started, or stop when
+ * NULL. Takes ownership; the previous log is finished off here, outside
+ * the lock, so its last writes don't hold up parsing.
+ */
+status_t Terminal::setLog(SessionLog* log) {
+    SessionLog* old;
+    {
+        Mutex::Autolock lock(mLock);
+        old = mLog;
+        mLog = log;
+    }
+    delete old;
+    return 0;
+}
+
+/*
+ * Start recording to the given recorder, already opened, or stop when
+ * NULL. Takes ownership of the recorder like setLog().
+ */
+status_t Terminal::setRecorder(SessionRecorder* recorder) {
+    SessionRecorder* old;
+    {
+        Mutex::Autolock lock(mLock);
+        if (recorder != NULL) {
+            recorder->begin(mRows, mCols);
+        }
+        old = mRecorder;
+        mRecorder = recorder;
+    }
+    delete old;
+    return 0;
+}
+
+/*
+ * Feed a recording through the parser as if its output came from a child,
+ * flushing damage after every chunk. With REPLAY_REALTIME the original
+ * pacing is kept, otherwise it runs as fast as possible. Recorded resizes
+ * are only applied with REPLAY_RESIZE, since a client usually decides the
+ * size itself. Input isn't fed anywhere, there being no child to send it
+ * to. Returns -1 when cancelled part way.
+ */
+status_t Terminal::replay(const SessionReplay& replay, int flags) {
+    const std::vector<ReplayEvent>& events = replay.getEvents();
+    const nsecs_t start = systemTime(SYSTEM_TIME_MONOTONIC);
+    for (size_t i = 0; i < events.size(); i++) {
+        const ReplayEvent& event = events[i];
+
+        if (flags & REPLAY_REALTIME) {
+            // Sleep in slices so cancelling doesn't wait out long pauses
+            nsecs_t remaining;
+            while ((remaining = start + event.time - systemTime(SYSTEM_TIME_MONOTONIC)) > 0
+                    && !mReplayCancelled.load()) {
+                const nsecs_t slice = remaining < kReplaySleepSlice
+                        ? remaining : kReplaySleepSlice;
+                struct timespec ts = { (time_t) (slice / 1000000000),
+                        (long) (slice % 1000000000) };
+                nanosleep(&ts, NULL);
+            }
+        }
+        if (mReplayCancelled.load()) {
+            return -1;
+        }
+
+        if (event.type == RECORD_OUTPUT) {
+            parse(event.data.data(), event.data.size());
+            flushOutput();
+        } else if (event.type == RECORD_RESIZE && (flags & REPLAY_RESIZE)) {
+            if (resize(event.rows, event.cols, getScrollRows()) == RESIZE_REFLOW_PENDING) {
+                while (reflow() > 0) {
+                    // Width changed again while reflowing
+                }
+            }
+        }
+    }
+    return 0;
+}
+
+/*
+ * Stop any replay in progress, and any started later, at the next event.
+ */
+void Terminal::cancelReplay() {
+    mReplayCancelled.store(true);
+}
+
+/*
+ * Page count spilled scrollback rows from row upwards into memory, so
+ * drawing them doesn't have to wait on storage. Blocks on the reads, but
+ * only holds the terminal lock around them; meant for a background
+ * thread.
+ */
+void Terminal::prefetchScrollback(int row, size_t count) {
+    ScrollbackSpill::PageIn pageIn;
+    uint32_t serial;
+    {
+        Mutex::Autolock lock(mLock);
+        if (mSpill == NULL || row >= 0) {
+            return;
+        }
+
+        // Rows grow more negative going back in history
+        size_t memory = getMemoryScrollCountLocked();
+        size_t newest = -row - 1;
+        size_t oldest = newest + count;
+        if (oldest <= memory) {
+            return;
+        }
+        if (newest < memory) {
+            newest = memory;
+        }
+        if (!mSpill->beginPageIn(newest - memory, oldest - newest, &pageIn)) {
+            return;
+        }
+        serial = mSpillSerial;
+    }
+
+    ScrollbackSpill::readPageIn(&pageIn);
+
+    {
+        Mutex::Autolock lock(mLock);
+        if (mSpill == NULL || mSpillSerial != serial || mSpill->finishPageIn(pageIn) == 0) {
+            return;
+        }
+        // Rows drawn blank meanwhile need drawing again
+        touchScrollbackLocked();
+        mEvents.push_back(EVENT_SCROLLBACK);
+    }
+    dispatchEvents();
+}
+
+/*
+ * Collect rows that may contain the query indexed in the given bloom,
+ * starting at absolute line startLine and moving towards older history,
+ * until maxRows rows have been examined. Spilled lines are only read back
+ * when their index admits the query. Returns the number of rows examined,
+ * which is less than maxRows once the oldest line was reached.
+ */
+size_t Terminal::search(const TrigramBloom& query, int64_t startLine, size_t maxRows,
+        SearchCandidates* out) {
+    Mutex::Autolock lock(mLock);
+
+    out->linesPushed = mLinesPushed;
+    out->rows.clear();
+    out->offsets.clear();
+    out->chars.clear();
+
+    const int64_t oldest = -(int64_t) getScrollCountLocked();
+    int64_t row = startLine - (int64_t) mLinesPushed;
+    if (row > (int64_t) mRows - 1) {
+        row = (int64_t) mRows - 1;
+    }
+
+    TrigramBloom bloom;
+    VTermScreenCell cell;
+    VTermPos pos;
+    size_t scanned = 0;
+    for (; scanned < maxRows && row >= oldest; scanned++, row--) {
+        const size_t start = out->chars.size();
+        if (row >= 0) {
+            pos.row = row;
+            for (pos.col = 0; pos.col < mCols; pos.col++) {
+                memset(&cell, 0, sizeof(VTermScreenCell));
+                getCellLocked(pos, &cell);
+                out->chars.push_back(cell.chars[0]);
+            }
+            buildTrigramBloom(reinterpret_cast<const uint32_t*>(&out->chars[start]), mCols,
+                    &bloom);
+            if (!bloom.mayContain(query)) {
+                out->chars.resize(start);
+                continue;
+            }
+        } else {
+            const size_t index = -row - 1;
+            const size_t memory = getMemoryScrollCountLocked();
+            const TrigramBloom& lineBloom = index < memory
+                    ? findScrollLineLocked(index)->bloom : mSpill->getBloom(index - memory);
+            if (!lineBloom.mayContain(query)) {
+                continue;
+            }
+
+            const VTermScreenCell* cells;
+            const ScrollbackLine* line = decodeScrollLineLocked(index, &cells, true);
+            if (line == NULL) {
+                continue;
+            }
+            for (dimen_t col = 0; col < line->cols; col++) {
+                out->chars.push_back(cells[col].chars[0]);
+            }
+        }
+
+        out->rows.push_back(row);
+        out->offsets.push_back(start);
+    }
+    out->offsets.push_back(out->chars.size());
+    out->nextLine = (int64_t) mLinesPushed + row;
+
+    return scanned;
+}
+
+uint64_t Terminal::getLinesPushedLocked() const {
+    return mLinesPushed;
+}
+
+TerminalSink* Terminal::getSink() const {
+    return mSink;
+}
+
+} /* namespace android */
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef TERMINAL_TERMINAL_H
+#define TERMINAL_TERMINAL_H
+
+#include <utils/Condition.h>
+#include <utils/Mutex.h>
+#include <utils/Timers.h>
+
+#include <sys/types.h>
+
+#include <vterm.h>
+
+#include <atomic>
+#include <vector>
+
+#include "PerfStats.h"
+#include "Scrollback.h"
+#include "SessionLog.h"
+#include "SessionRecording.h"
+#include "StyleTable.h"
+#include "TerminalReactor.h"
+
+namespace android {
+
+/*
+ * Batched event types, must match TerminalCallbacks.EVENT_*
+ */
+#define EVENT_DAMAGE            1
+#define EVENT_MOVE_RECT         2
+#define EVENT_MOVE_CURSOR       3
+#define EVENT_SCROLLBACK        4
+
+/*
+ * Returned by resize() when scrollback still needs a reflow() pass, must
+ * match Terminal.RESIZE_REFLOW_PENDING
+ */
+#define RESIZE_REFLOW_PENDING   1
+
+/*
+ * Flags for replay(), must match Terminal.REPLAY_*
+ */
+#define REPLAY_REALTIME         (1 << 0)
+#define REPLAY_RESIZE           (1 << 1)
+
+/*
+ * Flags for dispatchText(), must match Terminal.TEXT_*. Every piece of a
+ * paste has TEXT_PASTE, the first also TEXT_PASTE_START and the last also
+ * TEXT_PASTE_END.
+ */
+#define TEXT_PASTE              (1 << 0)
+#define TEXT_PASTE_START        (1 << 1)
+#define TEXT_PASTE_END          (1 << 2)
+
+/*
+ * Row flags, must match Terminal.ROW_*. A row that is both ASCII and
+ * uniform can be drawn as a single run of single-width characters. A
+ * pending row is spilled history that hasn't been paged in yet and reads
+ * as blank.
+ */
+#define ROW_ASCII               (1 << 0)
+#define ROW_UNIFORM             (1 << 1)
+#define ROW_SIMPLE              (ROW_ASCII | ROW_UNIFORM)
+#define ROW_PENDING             (1 << 2)
+
+/*
+ * ANSI colours the palette can override, must match Terminal.PALETTE_SIZE
+ */
+#define PALETTE_SIZE            16
+
+/*
+ * Packed cell attribute bits, must match Terminal.ATTR_*
+ */
+#define ATTR_BOLD               (1 << 0)
+#define ATTR_UNDERLINE_SHIFT    1
+#define ATTR_UNDERLINE_MASK     (0x3 << ATTR_UNDERLINE_SHIFT)
+#define ATTR_ITALIC             (1 << 3)
+#define ATTR_BLINK              (1 << 4)
+#define ATTR_REVERSE            (1 << 5)
+#define ATTR_STRIKE             (1 << 6)
+#define ATTR_FONT_SHIFT         7
+#define ATTR_FONT_MASK          (0xf << ATTR_FONT_SHIFT)
+
+static inline int32_t packAttrs(const VTermScreenCellAttrs& attrs) {
+    return (attrs.bold ? ATTR_BOLD : 0)
+            | (attrs.underline << ATTR_UNDERLINE_SHIFT)
+            | (attrs.italic ? ATTR_ITALIC : 0)
+            | (attrs.blink ? ATTR_BLINK : 0)
+            | (attrs.reverse ? ATTR_REVERSE : 0)
+            | (attrs.strike ? ATTR_STRIKE : 0)
+            | (attrs.font << ATTR_FONT_SHIFT);
+}
+
+/*
+ * Receiver of everything a Terminal reports to its client. Terminal
+ * properties and bells are reported while parsing with mLock held; all
+ * other events are batched and delivered without it.
+ */
+class TerminalSink {
+public:
+    virtual ~TerminalSink() {}
+
+    /*
+     * Batch of events, each an EVENT_* type followed by its arguments.
+     */
+    virtual void onEvents(const int32_t* events, size_t count) = 0;
+
+    virtual int onTermProp(VTermProp prop, VTermValue* val) = 0;
+    virtual int onBell() = 0;
+};
+
+/*
+ * Copy of the visible screen laid out like a RowSnapshot, which readers
+ * copy from without taking Terminal::mLock. Storage is sized once and never
+ * moves; a larger screen gets a new ShadowScreen.
+ */
+struct ShadowScreen {
+    ShadowScreen(size_t cellCapacity, size_t rowCapacity);
+
+    const size_t cellCapacity;
+    const size_t rowCapacity;
+
+    dimen_t rows;
+    dimen_t cols;
+    uint64_t linesPushed;
+    // Epoch of Terminal::mStyles the style IDs belong to
+    uint32_t styleEpoch;
+
+    std::vector<int32_t> chars;
+    std::vector<int32_t> styles;
+    std::vector<int8_t> widths;
+    std::vector<int32_t> generations;
+    std::vector<int32_t> rowFlags;
+};
+
+/*
+ * Rows that may contain a search query, newest first, with the text of
+ * each as one codepoint per cell. Rows are numbered as at the time of the
+ * search, where row r is absolute line linesPushed + r.
+ */
+struct SearchCandidates {
+    uint64_t linesPushed;
+    // Absolute line following the last one examined
+    int64_t nextLine;
+    std::vector<int32_t> rows;
+    // Start of each row in chars, followed by the end of the last
+    std::vector<int32_t> offsets;
+    std::vector<int32_t> chars;
+};
+
+/*
+ * Terminal session
+ */
+class Terminal : public ReactorSource {
+public:
+    Terminal(TerminalSink* sink);
+    ~Terminal();
+
+    status_t start(TerminalReactor* reactor);
+
+    virtual bool onReadable(size_t quantum);
+    virtual void onWritable();
+    virtual void onTimeout();
+
+    void setLatencyBudget(nsecs_t budget);
+
+    void parse(const char* bytes, size_t len);
+    void flushOutput();
+
+    size_t write(const char *bytes, size_t len);
+    size_t waitForWriteQueue(size_t maxQueued, nsecs_t timeout);
+    void cancelWriteWaits();
+
+    bool dispatchCharacter(int mod, int character);
+    bool dispatchKey(int mod, int key);
+    bool dispatchText(const uint16_t* text, size_t len, int flags);
+    bool flushInput();
+
+    status_t resize(dimen_t rows, dimen_t cols, size_t scrollRows);
+    int reflow();
+    status_t setColors(int fg, int bg);
+    void setColorsLocked(int fg, int bg);
+    status_t setPalette(const int32_t* colors, size_t count);
+
+    int onDamage(const VTermRect& rect);
+    int onMoveRect(const VTermRect& dest, const VTermRect& src);
+    status_t onPushline(dimen_t cols, const VTermScreenCell* cells);
+    status_t onPopline(dimen_t cols, VTermScreenCell* cells);
+    int onCursorChange(const VTermPos& oldPos, const VTermPos& newPos, bool visible);
+
+    void dispatchEvents();
+
+    bool getCellLocked(VTermPos pos, VTermScreenCell* cell);
+    uint32_t getRowGenerationLocked(int row) const;
+    int32_t fillRowLocked(int row, dimen_t cols, int32_t* chars, int32_t* styles,
+            int8_t* widths);
+    bool getSimpleRunLocked(int row, int col, uint16_t* data, size_t capacity,
+            size_t* size, int32_t* style);
+    int32_t internStyleLocked(const VTermScreenCell& cell);
+
+    void readScreenSize(dimen_t* rows, dimen_t* cols);
+    bool readScreenRows(int startRow, size_t count, dimen_t cols, int32_t* chars,
+            int32_t* styles, int8_t* widths, int32_t* generations, int32_t* rowFlags,
+            uint64_t* linesPushed, uint32_t* styleEpoch) const;
+    void getDefaultColorsLocked(VTermColor* fg, VTermColor* bg);
+
+    dimen_t getRows();
+    dimen_t getCols();
+    size_t getScrollRows() const;
+
+    status_t setScrollbackSpill(const char* dir);
+    void prefetchScrollback(int row, size_t count);
+
+    status_t setLog(SessionLog* log);
+    status_t setRecorder(SessionRecorder* recorder);
+
+    status_t replay(const SessionReplay& replay, int flags);
+    void cancelReplay();
+
+    size_t search(const TrigramBloom& query, int64_t startLine, size_t maxRows,
+            SearchCandidates* out);
+    uint64_t getLinesPushedLocked() const;
+
+    TerminalSink* getSink() const;
+
+    /*
+     * Counters describing how child output was consumed, guarded by mLock
+     */
+    struct IoStats {
+        uint64_t bytes;
+        uint64_t reads;
+        uint64_t batches;
+        uint64_t flushes;
+        size_t maxBatch;
+    };
+    IoStats mIoStats;
+
+    PerfStats mPerfStats;
+
+    // Lock protecting mutations of internal libvterm state
+    Mutex mLock;
+
+    // Styles of cells handed out in snapshots, interned under mLock and
+    // only reset while publishing the screen
+    StyleTable mStyles;
+
+private:
+    // Serializes delivery of batched events; acquired before mLock
+    Mutex mDispatchLock;
+
+    int mMasterFd;
+    pid_t mChildPid;
+    VTerm *mVt;
+    VTermScreen *mVts;
+
+    TerminalSink* mSink;
+
+    TerminalReactor* mReactor;
+
+    // Reused for every read, grown up to the reactor quantum as needed;
+    // only touched on the reactor thread
+    std::vector<char> mReadBuffer;
+
+    // Output parsed but not yet flushed since mPendingSince, which is 0
+    // when nothing is pending
+    nsecs_t mLatencyBudget;
+    nsecs_t mPendingSince;
+
+    // Output the child hasn't accepted yet, guarded by mWriteLock; bytes
+    // before mWriteHead have already been written
+    Mutex mWriteLock;
+    std::vector<char> mWriteQueue;
+    size_t mWriteHead;
+    // Signalled whenever the child accepts queued output
+    Condition mWriteCond;
+    // Set once waiters should stop waiting for good, ahead of destroy
+    bool mWriteWaitsCancelled;
+
+    dimen_t mRows;
+    dimen_t mCols;
+    bool mCursorVisible;
+
+    // Lines ever pushed into scrollback less those popped back, giving
+    // every line a number that survives scrolling
+    uint64_t mLinesPushed;
+
+    /*
+     * Content generations, each taken from mGeneration when anything drawn
+     * in that part of the terminal changed. Every scrollback row shares
+     * mScrollGeneration, since pushing one line shifts all of them.
+     */
+    uint32_t mGeneration;
+    std::vector<uint32_t> mRowGenerations;
+    uint32_t mScrollGeneration;
+
+    void touchRowsLocked(int startRow, int endRow);
+    void touchScrollbackLocked();
+
+    /*
+     * Published copy of the screen, guarded by the mShadowSeq seqlock: odd
+     * while being written under mLock, bumped again once consistent.
+     * Screens outgrown while readers may still be copying from them are
+     * kept in mShadowRetired until destruction.
+     */
+    std::atomic<uint32_t> mShadowSeq;
+    std::atomic<ShadowScreen*> mShadow;
+    std::vector<ShadowScreen*> mShadowRetired;
+    // Rows changed since last published
+    std::vector<uint8_t> mShadowDirty;
+    bool mShadowDirtyAny;
+
+    void publishScreenLocked();
+
+    ScrollbackLine* getScrollLineLocked(size_t index) const;
+    const ScrollbackLine* findScrollLineLocked(size_t index) const;
+    size_t getMemoryScrollCountLocked() const;
+    size_t getScrollCountLocked() const;
+    const ScrollbackLine* decodeScrollLineLocked(size_t index, const VTermScreenCell** cells,
+            bool wait);
+    void configureScrollbackLocked(size_t scrollRows);
+    void resizeScrollbackLocked(size_t size);
+    ScrollbackLine* detachScrollLineLocked();
+    bool beginReflowLocked(dimen_t cols);
+    void finishReflowLocked(std::vector<ScrollbackLine*>* lines);
+
+    /*
+     * Scrollback ring; mScrollHead holds the newest line. Slots outside
+     * the valid range may still hold lines whose storage is reused by the
+     * next push.
+     */
+    ScrollbackLine **mScroll;
+    size_t mScrollHead;
+    size_t mScrollCur;
+    size_t mScrollSize;
+
+    // Total history requested, which may exceed the ring when spilling
+    size_t mScrollRows;
+
+    // Optional storage for history older than the ring
+    ScrollbackSpill* mSpill;
+    ScrollbackLine mSpillLine;
+    // Bumped whenever mSpill is replaced, so a page-in started against
+    // the old one is dropped
+    uint32_t mSpillSerial;
+
+    /*
+     * While a reflow is pending, the lines being rewrapped sit in
+     * mReflowSource, oldest first, and stay readable but untouched. Lines
+     * pushed out of the ring meanwhile collect in mReflowOverflow, which
+     * sits between the two in history.
+     */
+    bool mReflowPending;
+    dimen_t mReflowCols;
+    // Serializes reflow(), which may be called from a replay as well as
+    // from the client; acquired before mLock
+    Mutex mReflowLock;
+    std::vector<ScrollbackLine*> mReflowSource;
+    std::vector<ScrollbackLine*> mReflowOverflow;
+
+    // Most recently decoded scrollback line, reset whenever lines move
+    const ScrollbackLine* mDecodedLine;
+    size_t mDecodedIndex;
+    VTermScreenCell* mDecodedCells;
+    dimen_t mDecodedCapacity;
+
+    // Events collected under mLock, delivered by dispatchEvents()
+    std::vector<int32_t> mEvents;
+    bool mCursorPending;
+    VTermPos mCursorOldPos;
+    VTermPos mCursorPos;
+
+    // Events being delivered, guarded by mDispatchLock
+    std::vector<int32_t> mDispatchEvents;
+
+    // Copy of parsed output, appended to under mLock so there is only ever
+    // one producer; NULL when not logging
+    SessionLog* mLog;
+
+    // Records output, input and resizes under mLock; NULL when not recording
+    SessionRecorder* mRecorder;
+    std::atomic<bool> mReplayCancelled;
+
+    // Whether the child asked for pastes to be bracketed, which libvterm
+    // doesn't track itself; mModeMatch is how much of the mode sequence
+    // the end of the last parsed output matched. Both guarded by mLock.
+    bool mBracketedPaste;
+    size_t mModeMatch;
+    // Whether the paste being sent in pieces was bracketed when it began
+    bool mPasteBracketed;
+
+    void scanModesLocked(const char* bytes, size_t len);
+
+    // Encoded text and keys on their way to the child, guarded by mLock
+    std::vector<char> mTextInput;
+};
+
+} /* namespace android */
+
+#endif /* TERMINAL_TERMINAL_H */
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "TerminalReactor"
+
+#include <utils/Log.h>
+
+#include <errno.h>
+#include <string.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <unistd.h>
+
+#include "TerminalReactor.h"
+
+namespace android {
+
+/*
+ * Events collected per epoll_wait() call
+ */
+static const int kMaxEvents = 16;
+
+/*
+ * Input a single session may consume before others get a turn
+ */
+static const size_t kReadQuantum = 64 * 1024;
+
+TerminalReactor::TerminalReactor() : mEpollFd(-1), mWakeFd(-1), mQuit(false),
+        mRunning(false), mDispatching(NULL) {
+}
+
+TerminalReactor::~TerminalReactor() {
+    for (size_t i = 0; i < mEntries.size(); i++) {
+        delete mEntries[i];
+    }
+    for (size_t i = 0; i < mDead.size(); i++) {
+        delete mDead[i];
+    }
+    if (mWakeFd != -1) {
+        close(mWakeFd);
+    }
+    if (mEpollFd != -1) {
+        close(mEpollFd);
+    }
+}
+
+status_t TerminalReactor::init() {
+    mEpollFd = epoll_create1(EPOLL_CLOEXEC);
+    if (mEpollFd == -1) {
+        ALOGE("epoll_create1() failed: %s", strerror(errno));
+        return -1;
+    }
+
+    mWakeFd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+    if (mWakeFd == -1) {
+        ALOGE("eventfd() failed: %s", strerror(errno));
+        return -1;
+    }
+
+    // Control events are told apart by their missing entry
+    struct epoll_event event;
+    memset(&event, 0, sizeof(event));
+    event.events = EPOLLIN;
+    event.data.ptr = NULL;
+    if (epoll_ctl(mEpollFd, EPOLL_CTL_ADD, mWakeFd, &event) == -1) {
+        ALOGE("failed to watch eventfd: %s", strerror(errno));
+        return -1;
+    }
+    return 0;
+}
+
+/*
+ * Service sources until quit() is called. Must run on a thread attached to
+ * the VM, since sources call up into Java.
+ */
+void TerminalReactor::run() {
+    {
+        Mutex::Autolock lock(mLock);
+        mThread = pthread_self();
+        mRunning = true;
+    }
+
+    struct epoll_event events[kMaxEvents];
+    int timeout;
+    while (1) {
+        {
+            Mutex::Autolock lock(mLock);
+
+            // Nothing returned by the previous epoll_wait() is in use anymore
+            for (size_t i = 0; i < mDead.size(); i++) {
+                delete mDead[i];
+            }
+            mDead.clear();
+
+            if (mQuit) {
+                break;
+            }
+            timeout = getWaitTimeoutLocked(systemTime(SYSTEM_TIME_MONOTONIC));
+        }
+
+        int count = epoll_wait(mEpollFd, events, kMaxEvents, timeout);
+        if (count == -1) {
+            if (errno == EINTR) {
+                continue;
+            }
+            ALOGE("epoll_wait() failed: %s", strerror(errno));
+            break;
+        }
+
+        // Level triggered, so a source with input left over after its
+        // quantum simply comes back on the next turn
+        for (int i = 0; i < count; i++) {
+            Entry* entry = reinterpret_cast<Entry*>(events[i].data.ptr);
+            if (entry == NULL) {
+                uint64_t value;
+                read(mWakeFd, &value, sizeof(value));
+                continue;
+            }
+
+            ReactorSource* source;
+            {
+                Mutex::Autolock lock(mLock);
+                source = entry->source;
+                if (source == NULL) {
+                    // Removed since epoll_wait() returned
+                    continue;
+                }
+                mDispatching = entry;
+            }
+
+            bool alive = true;
+            if (events[i].events & EPOLLOUT) {
+                source->onWritable();
+            }
+            if (events[i].events & (EPOLLIN | EPOLLHUP | EPOLLERR)) {
+                alive = source->onReadable(kReadQuantum);
+            }
+
+            {
+                Mutex::Autolock lock(mLock);
+                mDispatching = NULL;
+                if (!alive && entry->source != NULL) {
+                    removeEntryLocked(entry);
+                }
+                mDispatched.broadcast();
+            }
+        }
+
+        dispatchTimeouts();
+    }
+
+    Mutex::Autolock lock(mLock);
+    mRunning = false;
+}
+
+/*
+ * Milliseconds epoll_wait() may block before the next source deadline, or
+ * -1 when there is none.
+ */
+int TerminalReactor::getWaitTimeoutLocked(nsecs_t now) const {
+    nsecs_t next = 0;
+    for (size_t i = 0; i < mEntries.size(); i++) {
+        nsecs_t timeout = mEntries[i]->timeout;
+        if (timeout != 0 && (next == 0 || timeout < next)) {
+            next = timeout;
+        }
+    }
+    if (next == 0) {
+        return -1;
+    }
+    return next <= now ? 0 : toMillisecondTimeoutDelay(now, next);
+}
+
+/*
+ * Call back every source whose deadline has passed.
+ */
+void TerminalReactor::dispatchTimeouts() {
+    nsecs_t now = systemTime(SYSTEM_TIME_MONOTONIC);
+    while (1) {
+        Entry* entry = NULL;
+        {
+            Mutex::Autolock lock(mLock);
+            for (size_t i = 0; i < mEntries.size(); i++) {
+                nsecs_t timeout = mEntries[i]->timeout;
+                if (timeout != 0 && timeout <= now) {
+                    entry = mEntries[i];
+                    break;
+                }
+            }
+            if (entry == NULL) {
+                return;
+            }
+            entry->timeout = 0;
+            mDispatching = entry;
+        }
+
+        entry->source->onTimeout();
+
+        Mutex::Autolock lock(mLock);
+        mDispatching = NULL;
+        mDispatched.broadcast();
+    }
+}
+
+/*
+ * Ask run() to return; safe to call from any thread.
+ */
+void TerminalReactor::quit() {
+    Mutex::Autolock lock(mLock);
+    mQuit = true;
+    wakeLocked();
+}
+
+void TerminalReactor::wakeLocked() {
+    uint64_t value = 1;
+    if (write(mWakeFd, &value, sizeof(value)) != sizeof(value)) {
+        ALOGE("failed to wake reactor: %s", strerror(errno));
+    }
+}
+
+status_t TerminalReactor::add(int fd, ReactorSource* source) {
+    Mutex::Autolock lock(mLock);
+
+    Entry* entry = new Entry();
+    entry->fd = fd;
+    entry->source = source;
+    entry->wantWrite = false;
+    entry->timeout = 0;
+
+    struct epoll_event event;
+    memset(&event, 0, sizeof(event));
+    event.events = EPOLLIN;
+    event.data.ptr = entry;
+    if (epoll_ctl(mEpollFd, EPOLL_CTL_ADD, fd, &event) == -1) {
+        ALOGE("failed to watch fd %d: %s", fd, strerror(errno));
+        delete entry;
+        return -1;
+    }
+
+    mEntries.push_back(entry);
+    return 0;
+}
+
+/*
+ * Stop servicing source. Once this returns no callback to it is running or
+ * will be made, so it can safely be destroyed.
+ */
+void TerminalReactor::remove(ReactorSource* source) {
+    Mutex::Autolock lock(mLock);
+
+    Entry* entry = findEntryLocked(source);
+    if (entry == NULL) {
+        return;
+    }
+    removeEntryLocked(entry);
+
+    // A source removing itself from its own callback can't wait on it
+    if (mRunning && pthread_equal(mThread, pthread_self())) {
+        return;
+    }
+    while (mDispatching == entry) {
+        mDispatched.wait(mLock);
+    }
+}
+
+/*
+ * Also watch for source becoming writable, used while it has output queued.
+ */
+void TerminalReactor::setWantWrite(ReactorSource* source, bool want) {
+    Mutex::Autolock lock(mLock);
+
+    Entry* entry = findEntryLocked(source);
+    if (entry == NULL || entry->wantWrite == want) {
+        return;
+    }
+
+    struct epoll_event event;
+    memset(&event, 0, sizeof(event));
+    event.events = EPOLLIN | (want ? EPOLLOUT : 0);
+    event.data.ptr = entry;
+    if (epoll_ctl(mEpollFd, EPOLL_CTL_MOD, entry->fd, &event) == -1) {
+        ALOGE("failed to update fd %d: %s", entry->fd, strerror(errno));
+        return;
+    }
+    entry->wantWrite = want;
+}
+
+/*
+ * Call source's onTimeout() once the monotonic clock reaches when; 0 cancels
+ * any pending deadline.
+ */
+void TerminalReactor::setTimeout(ReactorSource* source, nsecs_t when) {
+    Mutex::Autolock lock(mLock);
+
+    Entry* entry = findEntryLocked(source);
+    if (entry == NULL || entry->timeout == when) {
+        return;
+    }
+    entry->timeout = when;
+
+    // The loop recomputes its wait before blocking again, so only another
+    // thread needs to interrupt it
+    if (when != 0 && !(mRunning && pthread_equal(mThread, pthread_self()))) {
+        wakeLocked();
+    }
+}
+
+TerminalReactor::Entry* TerminalReactor::findEntryLocked(ReactorSource* source) const {
+    for (size_t i = 0; i < mEntries.size(); i++) {
+        if (mEntries[i]->source == source) {
+            return mEntries[i];
+        }
+    }
+    return NULL;
+}
+
+void TerminalReactor::removeEntryLocked(Entry* entry) {
+    epoll_ctl(mEpollFd, EPOLL_CTL_DEL, entry->fd, NULL);
+    entry->source = NULL;
+
+    for (size_t i = 0; i < mEntries.size(); i++) {
+        if (mEntries[i] == entry) {
+            mEntries.erase(mEntries.begin() + i);
+            break;
+        }
+    }
+    mDead.push_back(entry);
+}
+
+} /* namespace android */
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef TERMINAL_REACTOR_H
+#define TERMINAL_REACTOR_H
+
+#include <utils/Condition.h>
+#include <utils/Errors.h>
+#include <utils/Mutex.h>
+#include <utils/Timers.h>
+
+#include <pthread.h>
+#include <stddef.h>
+
+#include <vector>
+
+namespace android {
+
+/*
+ * File descriptor serviced by a TerminalReactor. Callbacks are made on the
+ * reactor thread, one source at a time.
+ */
+class ReactorSource {
+public:
+    virtual ~ReactorSource() {}
+
+    /*
+     * Consume at most quantum bytes of input. Returns false once the
+     * descriptor has hung up, after which the source is removed.
+     */
+    virtual bool onReadable(size_t quantum) = 0;
+
+    /*
+     * Flush queued output, calling setWantWrite(false) once drained.
+     */
+    virtual void onWritable() = 0;
+
+    /*
+     * Deadline set through setTimeout() has passed.
+     */
+    virtual void onTimeout() {}
+};
+
+/*
+ * Single thread multiplexing I/O for every terminal session through epoll,
+ * plus an eventfd used to wake it for shutdown or new deadlines. Ready sources are serviced
+ * round robin, each limited to a quantum of input per turn, so one flooding
+ * session can't starve the others.
+ */
+class TerminalReactor {
+public:
+    TerminalReactor();
+    ~TerminalReactor();
+
+    status_t init();
+
+    void run();
+    void quit();
+
+    status_t add(int fd, ReactorSource* source);
+    void remove(ReactorSource* source);
+    void setWantWrite(ReactorSource* source, bool want);
+    void setTimeout(ReactorSource* source, nsecs_t when);
+
+private:
+    struct Entry {
+        int fd;
+        ReactorSource* source;
+        bool wantWrite;
+        // Monotonic time to call onTimeout(), or 0 for none
+        nsecs_t timeout;
+    };
+
+    Entry* findEntryLocked(ReactorSource* source) const;
+    void removeEntryLocked(Entry* entry);
+    int getWaitTimeoutLocked(nsecs_t now) const;
+    void dispatchTimeouts();
+    void wakeLocked();
+
+    int mEpollFd;
+    int mWakeFd;
+    bool mQuit;
+    pthread_t mThread;
+    bool mRunning;
+
+    Mutex mLock;
+    Condition mDispatched;
+
+    std::vector<Entry*> mEntries;
+
+    // Removed entries, freed once no pending epoll event can refer to them
+    std::vector<Entry*> mDead;
+
+    // Entry whose source is being called back right now
+    Entry* mDispatching;
+};
+
+} /* namespace android */
+
+#endif /* TERMINAL_REACTOR_H */
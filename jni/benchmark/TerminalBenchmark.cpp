@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Measures how fast Terminal consumes child output, driving the parser
+ * directly without a pty. Each workload is fed in read-sized chunks with a
+ * damage flush after every chunk, like the reactor does for a busy child.
+ *
+ * Besides throughput, reports damage events per MB of output, how long
+ * each chunk took to parse and flush, how long the terminal lock was held
+ * at a time, and heap allocations per MB once the terminal is warm. Those
+ * must be zero: synthetic workloads and raw captures fail when anything
+ * allocates, and the benchmark exits non-zero.
+ *
+ * Raw captures of real sessions, such as from script(1), can be replayed
+ * by passing their paths after the benchmark flags. Recordings made by the
+ * app, named *.cast, are replayed with their original chunking and
+ * resizes instead.
+ */
+
+#include <benchmark/benchmark.h>
+
+#include <stdarg.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <atomic>
+#include <chrono>
+#include <string>
+#include <vector>
+
+#include "../Terminal.h"
+
+using namespace android;
+
+static const dimen_t kRows = 50;
+static const dimen_t kCols = 132;
+static const size_t kScrollRows = 1000;
+
+/*
+ * Approximate size each synthetic workload is grown to
+ */
+static const size_t kWorkloadSize = 4 * 1024 * 1024;
+
+/*
+ * Every malloc, calloc and realloc linked into the benchmark, which the
+ * build wraps with --wrap. That covers libvterm and the terminal, and
+ * operator new below, but not shared libraries such as libutils.
+ */
+static std::atomic<uint64_t> gAllocations(0);
+
+// Set when a workload allocated once warm
+static bool gAllocationFailures = false;
+
+extern "C" {
+
+void* __real_malloc(size_t size);
+void* __real_calloc(size_t count, size_t size);
+void* __real_realloc(void* ptr, size_t size);
+
+void* __wrap_malloc(size_t size) {
+    gAllocations.fetch_add(1, std::memory_order_relaxed);
+    return __real_malloc(size);
+}
+
+void* __wrap_calloc(size_t count, size_t size) {
+    gAllocations.fetch_add(1, std::memory_order_relaxed);
+    return __real_calloc(count, size);
+}
+
+void* __wrap_realloc(void* ptr, size_t size) {
+    gAllocations.fetch_add(1, std::memory_order_relaxed);
+    return __real_realloc(ptr, size);
+}
+
+} /* extern "C" */
+
+void* operator new(size_t size) {
+    void* ptr = malloc(size > 0 ? size : 1);
+    if (ptr == NULL) {
+        abort();
+    }
+    return ptr;
+}
+
+void operator delete(void* ptr) noexcept {
+    free(ptr);
+}
+
+/*
+ * Counts events instead of delivering them anywhere
+ */
+class CountingSink : public TerminalSink {
+public:
+    CountingSink() : damage(0), moveRect(0), events(0) {
+    }
+
+    virtual void onEvents(const int32_t* data, size_t count) {
+        size_t i = 0;
+        while (i < count) {
+            events++;
+            switch (data[i]) {
+            case EVENT_DAMAGE:
+                damage++;
+                i += 5;
+                break;
+            case EVENT_MOVE_RECT:
+                moveRect++;
+                i += 9;
+                break;
+            case EVENT_MOVE_CURSOR:
+                i += 6;
+                break;
+            default:
+                i += 1;
+                break;
+            }
+        }
+    }
+
+    virtual int onTermProp(VTermProp prop, VTermValue* val) {
+        return 1;
+    }
+
+    virtual int onBell() {
+        return 1;
+    }
+
+    uint64_t damage;
+    uint64_t moveRect;
+    uint64_t events;
+};
+
+static void appendf(std::string* out, const char* fmt, ...) __attribute__((format(printf, 2, 3)));
+
+static void appendf(std::string* out, const char* fmt, ...) {
+    char buf[512];
+    va_list args;
+    va_start(args, fmt);
+    int n = vsnprintf(buf, sizeof(buf), fmt, args);
+    va_end(args);
+    if (n > 0) {
+        out->append(buf, n < (int) sizeof(buf) ? n : sizeof(buf) - 1);
+    }
+}
+
+/*
+ * Plain ASCII lines scrolling by, like cat of a large file
+ */
+static std::string makePlainText() {
+    static const char* kWords[] = {
+        "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit",
+        "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore",
+    };
+    std::string out;
+    unsigned seed = 1;
+    while (out.size() < kWorkloadSize) {
+        size_t length = 0;
+        size_t target = 20 + (seed % 100);
+        while (length < target) {
+            seed = seed * 1103515245 + 12345;
+            const char* word = kWords[(seed >> 16) % (sizeof(kWords) / sizeof(kWords[0]))];
+            out += word;
+            out += ' ';
+            length += strlen(word) + 1;
+        }
+        out += "\r\n";
+    }
+    return out;
+}
+
+/*
+ * Log lines with coloured levels and timestamps, like logcat -v color
+ */
+static std::string makeAnsiLogs() {
+    static const char* kLevels[] = {
+        "\x1b[32mI", "\x1b[34mD", "\x1b[33mW", "\x1b[31mE", "\x1b[1;31mF",
+    };
+    std::string out;
+    unsigned line = 0;
+    while (out.size() < kWorkloadSize) {
+        appendf(&out, "%02u-%02u %02u:%02u:%02u.%03u %5u %5u %s ActivityManager: \x1b[0m"
+                "Start proc %u:com.example.app%u/u0a%u for activity\r\n",
+                1 + line % 12, 1 + line % 28, line % 24, line % 60, (line * 7) % 60,
+                line % 1000, 1000 + line % 9000, 1000 + (line * 3) % 9000,
+                kLevels[line % 5], line, line % 50, line % 200);
+        line++;
+    }
+    return out;
+}
+
+/*
+ * Full screen repaints followed by scattered partial updates, like vim
+ * scrolling a buffer or htop refreshing its process list
+ */
+static std::string makeFullScreenRedraw() {
+    std::string out;
+    unsigned frame = 0;
+    while (out.size() < kWorkloadSize) {
+        out += "\x1b[H\x1b[2J";
+        for (dimen_t row = 0; row < kRows; row++) {
+            appendf(&out, "\x1b[%u;1H\x1b[%um%5u \x1b[0m", row + 1, 30 + (row + frame) % 8,
+                    frame + row);
+            for (dimen_t col = 6; col < kCols; col++) {
+                out += (char) ('a' + (row * 7 + col + frame) % 26);
+            }
+        }
+        for (int update = 0; update < 20; update++) {
+            unsigned row = 2 + (frame * 13 + update * 7) % (kRows - 2);
+            appendf(&out, "\x1b[%u;%uH\x1b[7m%6.2f%%\x1b[0m", row, 40 + update % 60,
+                    ((frame + update) % 10000) / 100.0);
+        }
+        appendf(&out, "\x1b[%u;1H\x1b[1;44m-- INSERT --\x1b[K\x1b[0m", kRows);
+        frame++;
+    }
+    return out;
+}
+
+/*
+ * Double-width CJK text and emoji outside the BMP
+ */
+static std::string makeWideChars() {
+    static const char* kChunks[] = {
+        "\xe6\xbc\xa2\xe5\xad\x97", "\xe4\xb8\xad\xe6\x96\x87", "\xe6\x97\xa5\xe6\x9c\xac",
+        "\xed\x95\x9c\xea\xb8\x80", "\xf0\x9f\x98\x80", "\xf0\x9f\x9a\x80", " ", "abc ",
+    };
+    std::string out;
+    unsigned seed = 7;
+    while (out.size() < kWorkloadSize) {
+        for (int i = 0; i < 40; i++) {
+            seed = seed * 1103515245 + 12345;
+            out += kChunks[(seed >> 16) % (sizeof(kChunks) / sizeof(kChunks[0]))];
+        }
+        out += "\r\n";
+    }
+    return out;
+}
+
+/*
+ * Wall time of each parse and flush of a chunk. That includes delivering
+ * events, which happens outside the terminal lock, so lock holds are taken
+ * from the terminal's own stats instead.
+ */
+struct ChunkTimes {
+    ChunkTimes() : count(0), total(0), max(0) {
+    }
+
+    uint64_t count;
+    double total;
+    double max;
+};
+
+static void parseAndFlush(Terminal* term, const char* bytes, size_t len, ChunkTimes* times) {
+    auto start = std::chrono::steady_clock::now();
+    term->parse(bytes, len);
+    term->flushOutput();
+    double elapsed = std::chrono::duration<double, std::micro>(
+            std::chrono::steady_clock::now() - start).count();
+
+    times->count++;
+    times->total += elapsed;
+    if (elapsed > times->max) {
+        times->max = elapsed;
+    }
+}
+
+/*
+ * Upper bound in microseconds of the bucket holding the given fraction of
+ * lock holds
+ */
+static double holdPercentile(const LatencyHistogram& holds, double fraction) {
+    uint64_t total = 0;
+    for (size_t i = 0; i < HISTOGRAM_BUCKETS; i++) {
+        total += holds.get(i);
+    }
+    uint64_t seen = 0;
+    for (size_t i = 0; i < HISTOGRAM_BUCKETS; i++) {
+        seen += holds.get(i);
+        if (seen > 0 && seen >= total * fraction) {
+            return (double) (1ull << i);
+        }
+    }
+    return 0;
+}
+
+static void reportCounters(benchmark::State& state, const Terminal& term,
+        const CountingSink& sink, size_t bytes, const ChunkTimes& times,
+        uint64_t allocations) {
+    const double megabytes = (double) bytes * state.iterations() / (1024 * 1024);
+    state.counters["allocs_per_MB"] = allocations / megabytes;
+    state.SetBytesProcessed(bytes * state.iterations());
+    state.counters["damage_per_MB"] = sink.damage / megabytes;
+    state.counters["moverect_per_MB"] = sink.moveRect / megabytes;
+    state.counters["events_per_MB"] = sink.events / megabytes;
+    state.counters["chunk_us_mean"] = times.count ? times.total / times.count : 0;
+    state.counters["chunk_us_max"] = times.max;
+    state.counters["lock_hold_us_p50"] = holdPercentile(term.mPerfStats.lockHold, 0.5);
+    state.counters["lock_hold_us_p99"] = holdPercentile(term.mPerfStats.lockHold, 0.99);
+}
+
+static void playWorkload(Terminal* term, const std::string& data, size_t chunk,
+        ChunkTimes* times) {
+    for (size_t offset = 0; offset < data.size(); offset += chunk) {
+        size_t len = data.size() - offset < chunk ? data.size() - offset : chunk;
+        parseAndFlush(term, data.data() + offset, len, times);
+    }
+}
+
+static void runWorkload(benchmark::State& state, const std::string& data) {
+    const size_t chunk = state.range(0);
+
+    CountingSink sink;
+    Terminal term(&sink);
+    term.resize(kRows, kCols, kScrollRows);
+
+    // Untimed pass fills scrollback and grows every buffer to size
+    ChunkTimes warmup;
+    playWorkload(&term, data, chunk, &warmup);
+    sink = CountingSink();
+
+    // Lock holds are only timed from here on
+    term.mPerfStats.enabled.store(true);
+
+    ChunkTimes times;
+    const uint64_t start = gAllocations.load();
+    for (auto _ : state) {
+        playWorkload(&term, data, chunk, &times);
+    }
+    const uint64_t allocations = gAllocations.load() - start;
+    reportCounters(state, term, sink, data.size(), times, allocations);
+
+    // Nothing resizes here, so a warm terminal has no reason to allocate
+    if (allocations > 0) {
+        gAllocationFailures = true;
+        state.SkipWithError("allocated on the steady-state path");
+    }
+}
+
+/*
+ * Play a recording back as fast as possible, output in the chunks it was
+ * read in and resizes where they happened. Every iteration starts from
+ * the recorded size, so they all do the same work.
+ */
+static void playRecording(Terminal* term, const SessionReplay& replay, ChunkTimes* times) {
+    const std::vector<ReplayEvent>& events = replay.getEvents();
+    term->resize(replay.getRows(), replay.getCols(), kScrollRows);
+    for (size_t i = 0; i < events.size(); i++) {
+        const ReplayEvent& event = events[i];
+        if (event.type == RECORD_OUTPUT) {
+            parseAndFlush(term, event.data.data(), event.data.size(), times);
+        } else if (event.type == RECORD_RESIZE) {
+            if (term->resize(event.rows, event.cols, kScrollRows) == RESIZE_REFLOW_PENDING) {
+                while (term->reflow() > 0) {
+                    // Width changed again while reflowing
+                }
+            }
+        }
+    }
+}
+
+static void runRecording(benchmark::State& state, const SessionReplay& replay) {
+    CountingSink sink;
+    Terminal term(&sink);
+
+    // Untimed pass, as for synthetic workloads; only resizes in the
+    // recording should allocate after this
+    ChunkTimes warmup;
+    playRecording(&term, replay, &warmup);
+    sink = CountingSink();
+    term.mPerfStats.enabled.store(true);
+
+    ChunkTimes times;
+    const uint64_t start = gAllocations.load();
+    for (auto _ : state) {
+        playRecording(&term, replay, &times);
+    }
+    reportCounters(state, term, sink, replay.getOutputBytes(), times,
+            gAllocations.load() - start);
+}
+
+static void BM_PlainText(benchmark::State& state) {
+    static const std::string data = makePlainText();
+    runWorkload(state, data);
+}
+BENCHMARK(BM_PlainText)->Arg(4096)->Arg(65536);
+
+static void BM_AnsiLogs(benchmark::State& state) {
+    static const std::string data = makeAnsiLogs();
+    runWorkload(state, data);
+}
+BENCHMARK(BM_AnsiLogs)->Arg(4096)->Arg(65536);
+
+static void BM_FullScreenRedraw(benchmark::State& state) {
+    static const std::string data = makeFullScreenRedraw();
+    runWorkload(state, data);
+}
+BENCHMARK(BM_FullScreenRedraw)->Arg(4096)->Arg(65536);
+
+static void BM_WideChars(benchmark::State& state) {
+    static const std::string data = makeWideChars();
+    runWorkload(state, data);
+}
+BENCHMARK(BM_WideChars)->Arg(4096)->Arg(65536);
+
+static bool readFile(const char* path, std::string* out) {
+    FILE* file = fopen(path, "rb");
+    if (file == NULL) {
+        return false;
+    }
+    char buf[65536];
+    size_t n;
+    while ((n = fread(buf, 1, sizeof(buf), file)) > 0) {
+        out->append(buf, n);
+    }
+    fclose(file);
+    return true;
+}
+
+int main(int argc, char** argv) {
+    benchmark::Initialize(&argc, argv);
+
+    // Arguments left over after benchmark flags are captures to replay
+    static std::vector<std::string> captures;
+    static std::vector<SessionReplay> recordings;
+    captures.reserve(argc);
+    recordings.reserve(argc);
+    for (int i = 1; i < argc; i++) {
+        const size_t length = strlen(argv[i]);
+        if (length > 5 && strcmp(argv[i] + length - 5, ".cast") == 0) {
+            recordings.push_back(SessionReplay());
+            if (!recordings.back().load(argv[i]) || recordings.back().getOutputBytes() == 0) {
+                fprintf(stderr, "failed to load recording %s\n", argv[i]);
+                return 1;
+            }
+
+            const SessionReplay* replay = &recordings.back();
+            std::string name = std::string("BM_Recording/") + argv[i];
+            benchmark::RegisterBenchmark(name.c_str(), [replay](benchmark::State& state) {
+                runRecording(state, *replay);
+            });
+            continue;
+        }
+
+        std::string data;
+        if (!readFile(argv[i], &data) || data.empty()) {
+            fprintf(stderr, "failed to read %s\n", argv[i]);
+            return 1;
+        }
+        captures.push_back(data);
+
+        const std::string* capture = &captures.back();
+        std::string name = std::string("BM_Replay/") + argv[i];
+        benchmark::RegisterBenchmark(name.c_str(), [capture](benchmark::State& state) {
+            runWorkload(state, *capture);
+        })->Arg(4096)->Arg(65536);
+    }
+
+    benchmark::RunSpecifiedBenchmarks();
+    return gAllocationFailures ? 1 : 0;
+}
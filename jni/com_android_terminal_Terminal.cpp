@@ -18,30 +18,28 @@
 
 #include <utils/Log.h>
 #include <utils/Mutex.h>
+#include <utils/Timers.h>
 #include "android_runtime/AndroidRuntime.h"
 
 #include "jni.h"
 #include <nativehelper/JNIHelp.h>
 #include <nativehelper/ScopedLocalRef.h>
 #include <nativehelper/ScopedPrimitiveArray.h>
-
-#include <fcntl.h>
-#include <pty.h>
-#include <stdio.h>
-#include <termios.h>
-#include <unistd.h>
-
-#include <vterm.h>
+#include <nativehelper/ScopedStringChars.h>
+#include <nativehelper/ScopedUtfChars.h>
 
 #include <string.h>
 
-#define USE_TEST_SHELL 0
-#define DEBUG_CALLBACKS 0
-#define DEBUG_IO 0
-#define DEBUG_SCROLLBACK 0
+#include "Terminal.h"
 
 namespace android {
 
+/*
+ * Session log files are rotated at this size, keeping this many older ones
+ */
+static const size_t kLogRotateBytes = 16 * 1024 * 1024;
+static const int kLogKeepFiles = 4;
+
 /*
  * Callback class reference
  */
@@ -50,14 +48,12 @@ static jclass terminalCallbacksClass;
 /*
  * Callback methods
  */
-static jmethodID damageMethod;
-static jmethodID moveRectMethod;
-static jmethodID moveCursorMethod;
 static jmethodID setTermPropBooleanMethod;
 static jmethodID setTermPropIntMethod;
 static jmethodID setTermPropStringMethod;
 static jmethodID setTermPropColorMethod;
 static jmethodID bellMethod;
+static jmethodID batchMethod;
 
 /*
  * CellRun class
@@ -68,147 +64,138 @@ static jfieldID cellRunDataSizeField;
 static jfieldID cellRunColSizeField;
 static jfieldID cellRunFgField;
 static jfieldID cellRunBgField;
+static jfieldID cellRunStyleField;
+static jfieldID cellRunBoldField;
+static jfieldID cellRunUnderlineField;
+static jfieldID cellRunItalicField;
+static jfieldID cellRunBlinkField;
+static jfieldID cellRunReverseField;
+static jfieldID cellRunStrikeField;
+static jfieldID cellRunFontField;
 
-typedef short unsigned int dimen_t;
-
-class ScrollbackLine {
-public:
-    inline ScrollbackLine(dimen_t _cols) : cols(_cols) {
-        mCells = new VTermScreenCell[cols];
-    };
-    inline ~ScrollbackLine() {
-        delete mCells;
-    }
-
-    inline dimen_t copyFrom(dimen_t cols, const VTermScreenCell* cells) {
-        dimen_t n = this->cols > cols ? cols : this->cols;
-        memcpy(mCells, cells, sizeof(VTermScreenCell) * n);
-        return n;
-    }
-
-    inline dimen_t copyTo(dimen_t cols, VTermScreenCell* cells) {
-        dimen_t n = cols > this->cols ? this->cols : cols;
-        memcpy(cells, mCells, sizeof(VTermScreenCell) * n);
-        return n;
-    }
+/*
+ * RowSnapshot class
+ */
+static jclass rowSnapshotClass;
+static jfieldID rowSnapshotStartRowField;
+static jfieldID rowSnapshotRowsField;
+static jfieldID rowSnapshotColsField;
+static jfieldID rowSnapshotCharsField;
+static jfieldID rowSnapshotStylesField;
+static jfieldID rowSnapshotWidthsField;
+static jfieldID rowSnapshotGenerationsField;
+static jfieldID rowSnapshotRowFlagsField;
+static jfieldID rowSnapshotLinesPushedField;
+static jfieldID rowSnapshotStyleDataField;
+static jfieldID rowSnapshotStyleEpochField;
+static jfieldID rowSnapshotStyleCountField;
 
-    inline void getCell(dimen_t col, VTermScreenCell* cell) {
-        *cell = mCells[col];
-    }
+/*
+ * SearchBatch class
+ */
+static jclass searchBatchClass;
+static jfieldID searchBatchCountField;
+static jfieldID searchBatchScannedField;
+static jfieldID searchBatchNextLineField;
+static jfieldID searchBatchLinesField;
+static jfieldID searchBatchOffsetsField;
+static jfieldID searchBatchCharsField;
 
-    const dimen_t cols;
+/*
+ * IoStats class
+ */
+static jclass ioStatsClass;
+static jfieldID ioStatsBytesField;
+static jfieldID ioStatsReadsField;
+static jfieldID ioStatsBatchesField;
+static jfieldID ioStatsFlushesField;
+static jfieldID ioStatsMaxBatchField;
 
-private:
-    VTermScreenCell* mCells;
-};
+/*
+ * PerfStats class
+ */
+static jclass perfStatsClass;
+static jfieldID perfStatsParseNanosField;
+static jfieldID perfStatsDamageEventsField;
+static jfieldID perfStatsRowSnapshotsField;
+static jfieldID perfStatsSnapshotRowsField;
+static jfieldID perfStatsLockWaitField;
+static jfieldID perfStatsLockHoldField;
 
 /*
- * Terminal session
+ * Delivers terminal events to a Java TerminalCallbacks instance
  */
-class Terminal {
+class JniTerminalSink : public TerminalSink {
 public:
-    Terminal(jobject callbacks);
-    ~Terminal();
-
-    status_t run();
-
-    size_t write(const char *bytes, size_t len);
-
-    bool dispatchCharacter(int mod, int character);
-    bool dispatchKey(int mod, int key);
-    bool flushInput();
-
-    status_t resize(dimen_t rows, dimen_t cols, dimen_t scrollRows);
-    status_t setColors(int fg, int bg);
+    JniTerminalSink(jobject callbacks);
+    virtual ~JniTerminalSink();
 
-    status_t onPushline(dimen_t cols, const VTermScreenCell* cells);
-    status_t onPopline(dimen_t cols, VTermScreenCell* cells);
-    int onCursorChange(const VTermPos& oldPos, const VTermPos& newPos, bool visible);
-
-    bool getCellLocked(VTermPos pos, VTermScreenCell* cell);
-
-    dimen_t getRows() const;
-    dimen_t getCols() const;
-    dimen_t getScrollRows() const;
-
-    jobject getCallbacks() const;
-
-    // Lock protecting mutations of internal libvterm state
-    Mutex mLock;
+    virtual void onEvents(const int32_t* events, size_t count);
+    virtual int onTermProp(VTermProp prop, VTermValue* val);
+    virtual int onBell();
 
 private:
-    int mMasterFd;
-    pid_t mChildPid;
-    VTerm *mVt;
-    VTermScreen *mVts;
-
     jobject mCallbacks;
 
-    dimen_t mRows;
-    dimen_t mCols;
-    bool mKilled;
-    bool mCursorVisible;
-
-    ScrollbackLine **mScroll;
-    dimen_t mScrollCur;
-    dimen_t mScrollSize;
-
+    // Reused between batches, only grown when a batch doesn't fit
+    jintArray mEventArray;
+    size_t mEventArrayCapacity;
 };
 
-/*
- * VTerm event handlers
- */
-
-static int term_damage(VTermRect rect, void *user) {
-    Terminal* term = reinterpret_cast<Terminal*>(user);
-#if DEBUG_CALLBACKS
-    ALOGW("term_damage");
-#endif
-
+JniTerminalSink::JniTerminalSink(jobject callbacks) : mEventArray(NULL),
+        mEventArrayCapacity(0) {
     JNIEnv* env = AndroidRuntime::getJNIEnv();
-    return env->CallIntMethod(term->getCallbacks(), damageMethod, rect.start_row, rect.end_row,
-            rect.start_col, rect.end_col);
+    mCallbacks = env->NewGlobalRef(callbacks);
 }
 
-static int term_moverect(VTermRect dest, VTermRect src, void *user) {
-    Terminal* term = reinterpret_cast<Terminal*>(user);
-#if DEBUG_CALLBACKS
-    ALOGW("term_moverect");
-#endif
+JniTerminalSink::~JniTerminalSink() {
+    JNIEnv *env = AndroidRuntime::getJNIEnv();
+    env->DeleteGlobalRef(mCallbacks);
+    if (mEventArray != NULL) {
+        env->DeleteGlobalRef(mEventArray);
+    }
+}
 
+void JniTerminalSink::onEvents(const int32_t* events, size_t count) {
     JNIEnv* env = AndroidRuntime::getJNIEnv();
-    return env->CallIntMethod(term->getCallbacks(), moveRectMethod,
-            dest.start_row, dest.end_row, dest.start_col, dest.end_col,
-            src.start_row, src.end_row, src.start_col, src.end_col);
-}
 
-static int term_movecursor(VTermPos pos, VTermPos oldpos, int visible, void *user) {
-    Terminal* term = reinterpret_cast<Terminal*>(user);
-#if DEBUG_CALLBACKS
-    ALOGW("term_movecursor");
-#endif
+    if (count > mEventArrayCapacity) {
+        size_t capacity = mEventArrayCapacity * 2;
+        if (capacity < count) {
+            capacity = count;
+        }
+        ScopedLocalRef<jintArray> array(env, env->NewIntArray(capacity));
+        if (array.get() == NULL) {
+            ALOGE("failed to allocate event array");
+            return;
+        }
+        if (mEventArray != NULL) {
+            env->DeleteGlobalRef(mEventArray);
+        }
+        mEventArray = reinterpret_cast<jintArray>(env->NewGlobalRef(array.get()));
+        mEventArrayCapacity = capacity;
+    }
 
-    return term->onCursorChange(oldpos, pos, visible != 0);
+    env->SetIntArrayRegion(mEventArray, 0, count, events);
+    env->CallIntMethod(mCallbacks, batchMethod, mEventArray, (jint) count);
 }
 
-static int term_settermprop(VTermProp prop, VTermValue *val, void *user) {
-    Terminal* term = reinterpret_cast<Terminal*>(user);
-#if DEBUG_CALLBACKS
-    ALOGW("term_settermprop");
-#endif
-
+int JniTerminalSink::onTermProp(VTermProp prop, VTermValue* val) {
     JNIEnv* env = AndroidRuntime::getJNIEnv();
     switch (vterm_get_prop_type(prop)) {
     case VTERM_VALUETYPE_BOOL:
-        return env->CallIntMethod(term->getCallbacks(), setTermPropBooleanMethod, prop,
+        return env->CallIntMethod(mCallbacks, setTermPropBooleanMethod, prop,
                 val->boolean ? JNI_TRUE : JNI_FALSE);
     case VTERM_VALUETYPE_INT:
-        return env->CallIntMethod(term->getCallbacks(), setTermPropIntMethod, prop, val->number);
-    case VTERM_VALUETYPE_STRING:
-        return env->CallIntMethod(term->getCallbacks(), setTermPropStringMethod, prop,
-                env->NewStringUTF(val->string));
+        return env->CallIntMethod(mCallbacks, setTermPropIntMethod, prop, val->number);
+    case VTERM_VALUETYPE_STRING: {
+        // Called on the reader thread, which never returns to Java to free
+        // local references
+        ScopedLocalRef<jstring> string(env, env->NewStringUTF(val->string));
+        return env->CallIntMethod(mCallbacks, setTermPropStringMethod, prop, string.get());
+    }
     case VTERM_VALUETYPE_COLOR:
-        return env->CallIntMethod(term->getCallbacks(), setTermPropIntMethod, prop, val->color.red,
+        return env->CallIntMethod(mCallbacks, setTermPropColorMethod, prop, val->color.red,
                 val->color.green, val->color.blue);
     default:
         ALOGE("unknown callback type");
@@ -216,501 +203,476 @@ static int term_settermprop(VTermProp prop, VTermValue *val, void *user) {
     }
 }
 
-static int term_setmousefunc(VTermMouseFunc func, void *data, void *user) {
-    Terminal* term = reinterpret_cast<Terminal*>(user);
-#if DEBUG_CALLBACKS
-    ALOGW("term_setmousefunc");
-#endif
-    return 1;
-}
-
-static int term_bell(void *user) {
-    Terminal* term = reinterpret_cast<Terminal*>(user);
-#if DEBUG_CALLBACKS
-    ALOGW("term_bell");
-#endif
-
+int JniTerminalSink::onBell() {
     JNIEnv* env = AndroidRuntime::getJNIEnv();
-    return env->CallIntMethod(term->getCallbacks(), bellMethod);
+    return env->CallIntMethod(mCallbacks, bellMethod);
 }
 
-static int term_sb_pushline(int cols, const VTermScreenCell *cells, void *user) {
-    Terminal* term = reinterpret_cast<Terminal*>(user);
-#if DEBUG_CALLBACKS
-    ALOGW("term_sb_pushline");
-#endif
+/*
+ * JNI glue
+ */
 
-    return term->onPushline(cols, cells);
+static jlong com_android_terminal_Terminal_nativeInit(JNIEnv* env, jclass clazz, jobject callbacks) {
+    return reinterpret_cast<jlong>(new Terminal(new JniTerminalSink(callbacks)));
 }
 
-static int term_sb_popline(int cols, VTermScreenCell *cells, void *user) {
-    Terminal* term = reinterpret_cast<Terminal*>(user);
-#if DEBUG_CALLBACKS
-    ALOGW("term_sb_popline");
-#endif
-
-    return term->onPopline(cols, cells);
+static jint com_android_terminal_Terminal_nativeDestroy(JNIEnv* env, jclass clazz, jlong ptr) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    TerminalSink* sink = term->getSink();
+    delete term;
+    delete sink;
+    return 0;
 }
 
-static VTermScreenCallbacks cb = {
-    .damage = term_damage,
-    .moverect = term_moverect,
-    .movecursor = term_movecursor,
-    .settermprop = term_settermprop,
-    .setmousefunc = term_setmousefunc,
-    .bell = term_bell,
-    // Resize requests are applied immediately, so callback is ignored
-    .resize = NULL,
-    .sb_pushline = term_sb_pushline,
-    .sb_popline = term_sb_popline,
-};
-
-static inline int toArgb(const VTermColor& color) {
-    return (0xff << 24 | color.red << 16 | color.green << 8 | color.blue);
+static jint com_android_terminal_Terminal_nativeStart(JNIEnv* env, jclass clazz, jlong ptr,
+        jlong reactorPtr) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    return term->start(reinterpret_cast<TerminalReactor*>(reactorPtr));
 }
 
-Terminal::Terminal(jobject callbacks) :
-        mCallbacks(callbacks), mRows(25), mCols(80), mKilled(false),
-        mCursorVisible(true), mScrollCur(0), mScrollSize(100) {
-    JNIEnv* env = AndroidRuntime::getJNIEnv();
-    mCallbacks = env->NewGlobalRef(callbacks);
+static jint com_android_terminal_Terminal_nativeResize(JNIEnv* env,
+        jclass clazz, jlong ptr, jint rows, jint cols, jint scrollRows) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    return term->resize(rows, cols, scrollRows);
+}
 
-    mScroll = new ScrollbackLine*[mScrollSize];
-    memset(mScroll, 0, sizeof(ScrollbackLine*) * mScrollSize);
+static jint com_android_terminal_Terminal_nativeReflow(JNIEnv* env, jclass clazz, jlong ptr) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    return term->reflow();
+}
 
-    /* Create VTerm */
-    mVt = vterm_new(mRows, mCols);
-    vterm_parser_set_utf8(mVt, 1);
+static jint com_android_terminal_Terminal_nativeSetColors(JNIEnv* env,
+        jclass clazz, jlong ptr, jint fg, jint bg) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    return term->setColors(fg, bg);
+}
 
-    /* Set up screen */
-    mVts = vterm_obtain_screen(mVt);
-    vterm_screen_enable_altscreen(mVts, 1);
-    vterm_screen_set_callbacks(mVts, &cb, this);
-    vterm_screen_set_damage_merge(mVts, VTERM_DAMAGE_SCROLL);
-    vterm_screen_reset(mVts, 1);
+static jint com_android_terminal_Terminal_nativeSetPalette(JNIEnv* env,
+        jclass clazz, jlong ptr, jintArray colorsArray) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    ScopedIntArrayRO colors(env, colorsArray);
+    if (colors.get() == NULL) {
+        return -1;
+    }
+    return term->setPalette(colors.get(), colors.size());
 }
 
-Terminal::~Terminal() {
-    close(mMasterFd);
-    ::kill(mChildPid, SIGHUP);
+static jint com_android_terminal_Terminal_nativeGetCellRun(JNIEnv* env,
+        jclass clazz, jlong ptr, jint row, jint col, jobject run) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    TimedAutolock lock(term->mLock, &term->mPerfStats);
 
-    vterm_free(mVt);
+    jcharArray dataArray = (jcharArray) env->GetObjectField(run, cellRunDataField);
+    ScopedCharArrayRW data(env, dataArray);
+    if (data.get() == NULL) {
+        return -1;
+    }
 
-    delete mScroll;
+    size_t dataSize = 0;
+    size_t colSize = 0;
+    int32_t runStyle = -1;
+
+    // Plain ASCII rows in one style, like most log output, are a single
+    // run that can be copied as is
+    const bool simple = term->getSimpleRunLocked(row, col,
+            reinterpret_cast<uint16_t*>(data.get()), data.size(), &dataSize, &runStyle);
+    if (simple) {
+        colSize = dataSize;
+    }
 
-    JNIEnv *env = AndroidRuntime::getJNIEnv();
-    env->DeleteGlobalRef(mCallbacks);
-}
+    VTermScreenCell cell;
+
+    VTermPos pos = {
+        .row = row,
+        .col = col,
+    };
 
-status_t Terminal::run() {
-    struct termios termios;
-    memset(&termios, 0, sizeof(termios));
-    termios.c_iflag = ICRNL|IXON|IUTF8;
-    termios.c_oflag = OPOST|ONLCR|NL0|CR0|TAB0|BS0|VT0|FF0;
-    termios.c_cflag = CS8|CREAD;
-    termios.c_lflag = ISIG|ICANON|IEXTEN|ECHO|ECHOE|ECHOK;
-
-    cfsetispeed(&termios, B38400);
-    cfsetospeed(&termios, B38400);
-
-    termios.c_cc[VINTR]    = 0x1f & 'C';
-    termios.c_cc[VQUIT]    = 0x1f & '\\';
-    termios.c_cc[VERASE]   = 0x7f;
-    termios.c_cc[VKILL]    = 0x1f & 'U';
-    termios.c_cc[VEOF]     = 0x1f & 'D';
-    termios.c_cc[VSTART]   = 0x1f & 'Q';
-    termios.c_cc[VSTOP]    = 0x1f & 'S';
-    termios.c_cc[VSUSP]    = 0x1f & 'Z';
-    termios.c_cc[VREPRINT] = 0x1f & 'R';
-    termios.c_cc[VWERASE]  = 0x1f & 'W';
-    termios.c_cc[VLNEXT]   = 0x1f & 'V';
-    termios.c_cc[VMIN]     = 1;
-    termios.c_cc[VTIME]    = 0;
-
-    struct winsize size = { mRows, mCols, 0, 0 };
-
-    int stderr_save_fd = dup(2);
-    if (stderr_save_fd < 0) {
-        ALOGE("failed to dup stderr - %s", strerror(errno));
-    }
-
-    mChildPid = forkpty(&mMasterFd, NULL, &termios, &size);
-    if (mChildPid == 0) {
-        /* Restore the ISIG signals back to defaults */
-        signal(SIGINT, SIG_DFL);
-        signal(SIGQUIT, SIG_DFL);
-        signal(SIGSTOP, SIG_DFL);
-        signal(SIGCONT, SIG_DFL);
-
-        FILE *stderr_save = fdopen(stderr_save_fd, "a");
-
-        if (!stderr_save) {
-            ALOGE("failed to open stderr - %s", strerror(errno));
+    while (!simple && (size_t) pos.col < term->getCols()) {
+        memset(&cell, 0, sizeof(VTermScreenCell));
+        if (!term->getCellLocked(pos, &cell)) {
+            term->getDefaultColorsLocked(&cell.fg, &cell.bg);
         }
 
-        // We know execvp(2) won't actually try to modify this.
-        char *shell = const_cast<char*>("/system/bin/sh");
-#if USE_TEST_SHELL
-        char *args[4] = {shell, "-c", "x=1; c=0; while true; do echo -e \"stop \e[00;3${c}mechoing\e[00m yourself! ($x)\"; x=$(( $x + 1 )); c=$((($c+1)%7)); if [ $x -gt 110 ]; then sleep 0.5; fi; done", NULL};
-#else
-        char *args[2] = {shell, NULL};
-#endif
-
-        execvp(shell, args);
-        fprintf(stderr_save, "Cannot exec(%s) - %s\n", shell, strerror(errno));
-        _exit(1);
-    }
-
-    ALOGD("entering read() loop");
-    while (1) {
-        char buffer[4096];
-        ssize_t bytes = ::read(mMasterFd, buffer, sizeof buffer);
-#if DEBUG_IO
-        ALOGD("read() returned %d bytes", bytes);
-#endif
-
-        if (mKilled) {
-            ALOGD("kill() requested");
+        // Interned styles split runs with a single compare
+        const int32_t style = term->internStyleLocked(cell);
+        if (colSize == 0) {
+            runStyle = style;
+        } else if (style != runStyle) {
             break;
         }
-        if (bytes == 0) {
-            ALOGD("read() found EOF");
+
+        // Only include cell chars if they fit into run
+        uint32_t rawCell = cell.chars[0];
+        size_t size = (rawCell < 0x10000) ? 1 : 2;
+        if (dataSize + size <= data.size()) {
+            if (rawCell < 0x10000) {
+                data[dataSize++] = rawCell;
+            } else {
+                data[dataSize++] = (((rawCell - 0x10000) >> 10) & 0x3ff) + 0xd800;
+                data[dataSize++] = ((rawCell - 0x10000) & 0x3ff) + 0xdc00;
+            }
+
+            for (int i = 1; i < cell.width; i++) {
+                data[dataSize++] = ' ';
+            }
+
+            colSize += cell.width;
+            pos.col += cell.width;
+        } else {
             break;
         }
-        if (bytes == -1) {
-            ALOGE("read() failed: %s", strerror(errno));
-            return 1;
-        }
+    }
 
-        {
-            Mutex::Autolock lock(mLock);
-            vterm_push_bytes(mVt, buffer, bytes);
-            vterm_screen_flush_damage(mVts);
-        }
+    if (runStyle >= 0) {
+        const CellStyle& style =
+                *reinterpret_cast<const CellStyle*>(term->mStyles.data(runStyle));
+        env->SetIntField(run, cellRunStyleField, runStyle);
+        env->SetIntField(run, cellRunFgField, style.fg);
+        env->SetIntField(run, cellRunBgField, style.bg);
+        env->SetBooleanField(run, cellRunBoldField, (style.attrs & ATTR_BOLD) != 0);
+        env->SetIntField(run, cellRunUnderlineField,
+                (style.attrs & ATTR_UNDERLINE_MASK) >> ATTR_UNDERLINE_SHIFT);
+        env->SetBooleanField(run, cellRunItalicField, (style.attrs & ATTR_ITALIC) != 0);
+        env->SetBooleanField(run, cellRunBlinkField, (style.attrs & ATTR_BLINK) != 0);
+        env->SetBooleanField(run, cellRunReverseField, (style.attrs & ATTR_REVERSE) != 0);
+        env->SetBooleanField(run, cellRunStrikeField, (style.attrs & ATTR_STRIKE) != 0);
+        env->SetIntField(run, cellRunFontField,
+                (style.attrs & ATTR_FONT_MASK) >> ATTR_FONT_SHIFT);
     }
+    env->SetIntField(run, cellRunDataSizeField, dataSize);
+    env->SetIntField(run, cellRunColSizeField, colSize);
 
     return 0;
 }
 
-size_t Terminal::write(const char *bytes, size_t len) {
-    return ::write(mMasterFd, bytes, len);
-}
+static jint com_android_terminal_Terminal_nativeGetRowSnapshot(JNIEnv* env,
+        jclass clazz, jlong ptr, jint startRow, jint rowCount, jobject snapshot) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
 
-bool Terminal::dispatchCharacter(int mod, int character) {
-    Mutex::Autolock lock(mLock);
-    vterm_input_push_char(mVt, static_cast<VTermModifier>(mod), character);
-    return flushInput();
-}
+    dimen_t rows, cols;
+    uint64_t linesPushed;
+    term->readScreenSize(&rows, &cols);
+    const size_t cellCount = (size_t) rowCount * cols;
 
-bool Terminal::dispatchKey(int mod, int key) {
-    Mutex::Autolock lock(mLock);
-    vterm_input_push_key(mVt, static_cast<VTermModifier>(mod), static_cast<VTermKey>(key));
-    return flushInput();
-}
+    ScopedLocalRef<jintArray> charsArray(env,
+            (jintArray) env->GetObjectField(snapshot, rowSnapshotCharsField));
+    if (charsArray.get() == NULL) {
+        return -1;
+    }
+    if ((size_t) env->GetArrayLength(charsArray.get()) < cellCount) {
+        // Ask caller to grow storage and try again
+        return cellCount;
+    }
 
-bool Terminal::flushInput() {
-    size_t len = vterm_output_get_buffer_current(mVt);
-    if (len) {
-        char buf[len];
-        len = vterm_output_bufferread(mVt, buf, len);
-        return len == write(buf, len);
+    ScopedLocalRef<jintArray> stylesArray(env,
+            (jintArray) env->GetObjectField(snapshot, rowSnapshotStylesField));
+    ScopedLocalRef<jbyteArray> widthsArray(env,
+            (jbyteArray) env->GetObjectField(snapshot, rowSnapshotWidthsField));
+    ScopedLocalRef<jintArray> generationsArray(env,
+            (jintArray) env->GetObjectField(snapshot, rowSnapshotGenerationsField));
+    ScopedLocalRef<jintArray> rowFlagsArray(env,
+            (jintArray) env->GetObjectField(snapshot, rowSnapshotRowFlagsField));
+    ScopedLocalRef<jintArray> styleDataArray(env,
+            (jintArray) env->GetObjectField(snapshot, rowSnapshotStyleDataField));
+    if (generationsArray.get() == NULL
+            || env->GetArrayLength(generationsArray.get()) < rowCount
+            || rowFlagsArray.get() == NULL
+            || env->GetArrayLength(rowFlagsArray.get()) < rowCount
+            || styleDataArray.get() == NULL
+            || env->GetArrayLength(styleDataArray.get()) < STYLE_CAPACITY * STYLE_INTS) {
+        return -1;
     }
-    return true;
-}
 
-status_t Terminal::resize(dimen_t rows, dimen_t cols, dimen_t scrollRows) {
-    Mutex::Autolock lock(mLock);
+    ScopedIntArrayRW chars(env, charsArray.get());
+    ScopedIntArrayRW styles(env, stylesArray.get());
+    ScopedByteArrayRW widths(env, widthsArray.get());
+    ScopedIntArrayRW generations(env, generationsArray.get());
+    ScopedIntArrayRW rowFlags(env, rowFlagsArray.get());
+    if (chars.get() == NULL || styles.get() == NULL || widths.get() == NULL
+            || generations.get() == NULL || rowFlags.get() == NULL) {
+        return -1;
+    }
 
-    ALOGD("resize(%d, %d, %d)", rows, cols, scrollRows);
+    // Rows entirely on screen can usually be copied without waiting on
+    // the parser; scrollback and anything racing a resize take the lock
+    uint32_t styleEpoch = 0;
+    const bool copied = term->readScreenRows(startRow, rowCount, cols, chars.get(),
+            styles.get(), widths.get(), generations.get(), rowFlags.get(), &linesPushed,
+            &styleEpoch);
+
+    // So does teaching the snapshot styles it hasn't seen yet, which is
+    // rare once a session has settled. Size is read before epoch, since a
+    // reset bumps the epoch before emptying the table.
+    const jint knownEpoch = env->GetIntField(snapshot, rowSnapshotStyleEpochField);
+    const jint knownCount = env->GetIntField(snapshot, rowSnapshotStyleCountField);
+    const size_t styleCount = term->mStyles.size();
+    if (!copied || (jint) styleEpoch != knownEpoch
+            || term->mStyles.getEpoch() != styleEpoch || styleCount > (size_t) knownCount) {
+        TimedAutolock lock(term->mLock, &term->mPerfStats);
+        if (!copied || term->mStyles.getEpoch() != styleEpoch) {
+            // Either nothing was copied, or styles were reset since and the
+            // IDs copied can't be looked up any more
+            linesPushed = term->getLinesPushedLocked();
+            term->readScreenSize(&rows, &cols);
+            if ((size_t) rowCount * cols > (size_t) chars.size()) {
+                // Resized wider since storage was checked
+                return rowCount * cols;
+            }
 
-    mRows = rows;
-    mCols = cols;
-    // TODO: resize scrollback
+            for (jint i = 0; i < rowCount; i++) {
+                const int row = startRow + i;
+                const size_t offset = (size_t) i * cols;
+                rowFlags[i] = term->fillRowLocked(row, cols, chars.get() + offset,
+                        styles.get() + offset, widths.get() + offset);
+                generations[i] = term->getRowGenerationLocked(row);
+            }
+            styleEpoch = term->mStyles.getEpoch();
+        }
 
-    struct winsize size = { rows, cols, 0, 0 };
-    ioctl(mMasterFd, TIOCSWINSZ, &size);
+        const size_t start = (jint) styleEpoch == knownEpoch ? knownCount : 0;
+        const size_t count = term->mStyles.size();
+        if (count > start) {
+            env->SetIntArrayRegion(styleDataArray.get(), start * STYLE_INTS,
+                    (count - start) * STYLE_INTS, term->mStyles.data(start));
+        }
+        env->SetIntField(snapshot, rowSnapshotStyleEpochField, styleEpoch);
+        env->SetIntField(snapshot, rowSnapshotStyleCountField, count);
+    }
 
-    vterm_set_size(mVt, rows, cols);
-    vterm_screen_flush_damage(mVts);
+    env->SetIntField(snapshot, rowSnapshotStartRowField, startRow);
+    env->SetIntField(snapshot, rowSnapshotRowsField, rowCount);
+    env->SetIntField(snapshot, rowSnapshotColsField, cols);
+    env->SetLongField(snapshot, rowSnapshotLinesPushedField, linesPushed);
 
+    term->mPerfStats.rowSnapshots.fetch_add(1, std::memory_order_relaxed);
+    term->mPerfStats.snapshotRows.fetch_add(rowCount, std::memory_order_relaxed);
     return 0;
 }
 
-status_t Terminal::setColors(int fg, int bg) {
-    Mutex::Autolock lock(mLock);
-
-    ALOGD("setColors(0x%x, 0x%x)", fg, bg);
-
-    VTermState* state = vterm_obtain_state(mVt);
-    VTermColor oldFgColor, oldBgColor;
-    vterm_state_get_default_colors(state, &oldFgColor, &oldBgColor);
-
-    int changed = fg != toArgb(oldFgColor) || bg != toArgb(oldBgColor);
-    VTermColor fg_color = { (uint8_t)((fg>>16)&0xff),
-                            (uint8_t)((fg>>8)&0xff),
-                            (uint8_t)(fg&0xff) };
-    VTermColor bg_color = { (uint8_t)((bg>>16)&0xff),
-                            (uint8_t)((bg>>8)&0xff),
-                            (uint8_t)(bg&0xff) };
-    vterm_state_set_default_colors(state, &fg_color, &bg_color);
-
-    VTermPos oldPos, newPos;
-    vterm_state_get_cursorpos(state, &oldPos);
-    vterm_state_reset(state, changed);
-    vterm_state_get_cursorpos(state, &newPos);
+static jint com_android_terminal_Terminal_nativeSearch(JNIEnv* env, jclass clazz, jlong ptr,
+        jstring literal, jlong startLine, jint maxRows, jobject batch) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
 
-    if (oldPos.row != newPos.row || oldPos.col != newPos.col) {
-        onCursorChange(oldPos, newPos, mCursorVisible);
+    // Index the query exactly like lines are indexed
+    std::vector<uint32_t> query;
+    const jsize length = env->GetStringLength(literal);
+    const jchar* utf16 = env->GetStringChars(literal, NULL);
+    if (utf16 == NULL) {
+        return -1;
     }
-
-    return 0;
-}
-
-int Terminal::onCursorChange(const VTermPos& oldPos, const VTermPos& newPos, bool visible) {
-    mCursorVisible = visible;
-
-    JNIEnv* env = AndroidRuntime::getJNIEnv();
-    return env->CallIntMethod(getCallbacks(), moveCursorMethod, newPos.row,
-            newPos.col, oldPos.row, oldPos.col, visible);
-}
-
-status_t Terminal::onPushline(dimen_t cols, const VTermScreenCell* cells) {
-    ScrollbackLine* line = NULL;
-    if (mScrollCur == mScrollSize) {
-        /* Recycle old row if it's the right size */
-        if (mScroll[mScrollCur - 1]->cols == cols) {
-            line = mScroll[mScrollCur - 1];
-        } else {
-            delete mScroll[mScrollCur - 1];
+    for (jsize i = 0; i < length; i++) {
+        uint32_t c = utf16[i];
+        if (c >= 0xd800 && c < 0xdc00 && i + 1 < length
+                && utf16[i + 1] >= 0xdc00 && utf16[i + 1] < 0xe000) {
+            c = 0x10000 + ((c - 0xd800) << 10) + (utf16[i + 1] - 0xdc00);
+            i++;
         }
-
-        memmove(mScroll + 1, mScroll, sizeof(ScrollbackLine*) * (mScrollCur - 1));
-    } else if (mScrollCur > 0) {
-        memmove(mScroll + 1, mScroll, sizeof(ScrollbackLine*) * mScrollCur);
+        query.push_back(c);
     }
+    env->ReleaseStringChars(literal, utf16);
 
-    if (line == NULL) {
-        line = new ScrollbackLine(cols);
-    }
+    TrigramBloom bloom;
+    buildTrigramBloom(query.data(), query.size(), &bloom);
 
-    mScroll[0] = line;
+    SearchCandidates candidates;
+    const size_t scanned = term->search(bloom, startLine, maxRows, &candidates);
 
-    if (mScrollCur < mScrollSize) {
-        mScrollCur++;
+    ScopedLocalRef<jintArray> charsArray(env,
+            (jintArray) env->GetObjectField(batch, searchBatchCharsField));
+    if (charsArray.get() == NULL) {
+        return -1;
     }
-
-    line->copyFrom(cols, cells);
-    return 1;
-}
-
-status_t Terminal::onPopline(dimen_t cols, VTermScreenCell* cells) {
-    if (mScrollCur == 0) {
-        return 0;
+    if ((size_t) env->GetArrayLength(charsArray.get()) < candidates.chars.size()) {
+        // Ask caller to grow storage and try again
+        return candidates.chars.size();
     }
 
-    ScrollbackLine* line = mScroll[0];
-    mScrollCur--;
-    memmove(mScroll, mScroll + 1, sizeof(ScrollbackLine*) * mScrollCur);
-
-    dimen_t n = line->copyTo(cols, cells);
-    for (dimen_t col = n; col < cols; col++) {
-        cells[col].chars[0] = 0;
-        cells[col].width = 1;
+    ScopedLocalRef<jlongArray> linesArray(env,
+            (jlongArray) env->GetObjectField(batch, searchBatchLinesField));
+    ScopedLocalRef<jintArray> offsetsArray(env,
+            (jintArray) env->GetObjectField(batch, searchBatchOffsetsField));
+    const jsize count = candidates.rows.size();
+    if (linesArray.get() == NULL || offsetsArray.get() == NULL
+            || env->GetArrayLength(linesArray.get()) < count
+            || env->GetArrayLength(offsetsArray.get()) < count + 1) {
+        return -1;
     }
 
-    delete line;
-    return 1;
-}
-
-bool Terminal::getCellLocked(VTermPos pos, VTermScreenCell* cell) {
-    // The UI may be asking for cell data while the model is changing
-    // underneath it, so we always fill with meaningful data.
-
-    if (pos.row < 0) {
-        size_t scrollRow = -pos.row;
-        if (scrollRow > mScrollCur) {
-            // Invalid region above current scrollback
-            cell->width = 1;
-#if DEBUG_SCROLLBACK
-            cell->bg.red = 255;
-#endif
-            return false;
-        }
-
-        ScrollbackLine* line = mScroll[scrollRow - 1];
-        if ((size_t) pos.col < line->cols) {
-            // Valid scrollback cell
-            line->getCell(pos.col, cell);
-            cell->width = 1;
-#if DEBUG_SCROLLBACK
-            cell->bg.blue = 255;
-#endif
-            return true;
-        } else {
-            // Extend last scrollback cell into invalid region
-            line->getCell(line->cols - 1, cell);
-            cell->width = 1;
-            cell->chars[0] = ' ';
-#if DEBUG_SCROLLBACK
-            cell->bg.green = 255;
-#endif
-            return true;
-        }
+    ScopedLongArrayRW lines(env, linesArray.get());
+    if (lines.get() == NULL) {
+        return -1;
     }
-
-    if ((size_t) pos.row >= mRows) {
-        // Invalid region below screen
-        cell->width = 1;
-#if DEBUG_SCROLLBACK
-        cell->bg.red = 128;
-#endif
-        return false;
+    for (jsize i = 0; i < count; i++) {
+        lines[i] = candidates.linesPushed + candidates.rows[i];
     }
 
-    // Valid screen cell
-    vterm_screen_get_cell(mVts, pos, cell);
-    return true;
-}
+    env->SetIntArrayRegion(offsetsArray.get(), 0, count + 1, candidates.offsets.data());
+    env->SetIntArrayRegion(charsArray.get(), 0, candidates.chars.size(),
+            candidates.chars.data());
+    env->SetIntField(batch, searchBatchCountField, count);
+    env->SetIntField(batch, searchBatchScannedField, scanned);
+    env->SetLongField(batch, searchBatchNextLineField, candidates.nextLine);
 
-dimen_t Terminal::getRows() const {
-    return mRows;
+    return 0;
 }
 
-dimen_t Terminal::getCols() const {
-    return mCols;
+static jlong com_android_terminal_Terminal_nativeGetLinesPushed(JNIEnv* env, jclass clazz,
+        jlong ptr) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    TimedAutolock lock(term->mLock, &term->mPerfStats);
+    return term->getLinesPushedLocked();
 }
 
-dimen_t Terminal::getScrollRows() const {
-    return mScrollSize;
+static void com_android_terminal_Terminal_nativeSetLatencyBudget(JNIEnv* env, jclass clazz,
+        jlong ptr, jint millis) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    term->setLatencyBudget(ms2ns(millis));
 }
 
-jobject Terminal::getCallbacks() const {
-    return mCallbacks;
-}
+static jint com_android_terminal_Terminal_nativeGetIoStats(JNIEnv* env, jclass clazz,
+        jlong ptr, jobject stats) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    Terminal::IoStats copy;
+    {
+        Mutex::Autolock lock(term->mLock);
+        copy = term->mIoStats;
+    }
 
-/*
- * JNI glue
- */
+    env->SetLongField(stats, ioStatsBytesField, copy.bytes);
+    env->SetLongField(stats, ioStatsReadsField, copy.reads);
+    env->SetLongField(stats, ioStatsBatchesField, copy.batches);
+    env->SetLongField(stats, ioStatsFlushesField, copy.flushes);
+    env->SetIntField(stats, ioStatsMaxBatchField, copy.maxBatch);
+    return 0;
+}
 
-static jlong com_android_terminal_Terminal_nativeInit(JNIEnv* env, jclass clazz, jobject callbacks) {
-    return reinterpret_cast<jlong>(new Terminal(callbacks));
+static void copyHistogram(JNIEnv* env, jobject stats, jfieldID field,
+        const LatencyHistogram& histogram) {
+    ScopedLocalRef<jintArray> array(env, (jintArray) env->GetObjectField(stats, field));
+    if (array.get() == NULL || env->GetArrayLength(array.get()) < HISTOGRAM_BUCKETS) {
+        return;
+    }
+    jint buckets[HISTOGRAM_BUCKETS];
+    for (size_t i = 0; i < HISTOGRAM_BUCKETS; i++) {
+        buckets[i] = histogram.get(i);
+    }
+    env->SetIntArrayRegion(array.get(), 0, HISTOGRAM_BUCKETS, buckets);
 }
 
-static jint com_android_terminal_Terminal_nativeDestroy(JNIEnv* env, jclass clazz, jlong ptr) {
+static jint com_android_terminal_Terminal_nativeGetPerfStats(JNIEnv* env, jclass clazz,
+        jlong ptr, jobject stats) {
     Terminal* term = reinterpret_cast<Terminal*>(ptr);
-    delete term;
+
+    // Counters are atomic, so there is no need to hold up the parser
+    const PerfStats& perf = term->mPerfStats;
+    env->SetLongField(stats, perfStatsParseNanosField,
+            perf.parseNanos.load(std::memory_order_relaxed));
+    env->SetLongField(stats, perfStatsDamageEventsField,
+            perf.damageEvents.load(std::memory_order_relaxed));
+    env->SetLongField(stats, perfStatsRowSnapshotsField,
+            perf.rowSnapshots.load(std::memory_order_relaxed));
+    env->SetLongField(stats, perfStatsSnapshotRowsField,
+            perf.snapshotRows.load(std::memory_order_relaxed));
+    copyHistogram(env, stats, perfStatsLockWaitField, perf.lockWait);
+    copyHistogram(env, stats, perfStatsLockHoldField, perf.lockHold);
     return 0;
 }
 
-static jint com_android_terminal_Terminal_nativeRun(JNIEnv* env, jclass clazz, jlong ptr) {
+static void com_android_terminal_Terminal_nativeSetPerfStatsEnabled(JNIEnv* env, jclass clazz,
+        jlong ptr, jboolean enabled) {
     Terminal* term = reinterpret_cast<Terminal*>(ptr);
-    return term->run();
+    term->mPerfStats.enabled.store(enabled, std::memory_order_relaxed);
 }
 
-static jint com_android_terminal_Terminal_nativeResize(JNIEnv* env,
-        jclass clazz, jlong ptr, jint rows, jint cols, jint scrollRows) {
+static jint com_android_terminal_Terminal_nativeGetRows(JNIEnv* env, jclass clazz, jlong ptr) {
     Terminal* term = reinterpret_cast<Terminal*>(ptr);
-    return term->resize(rows, cols, scrollRows);
+    return term->getRows();
 }
 
-static jint com_android_terminal_Terminal_nativeSetColors(JNIEnv* env,
-        jclass clazz, jlong ptr, jint fg, jint bg) {
+static jint com_android_terminal_Terminal_nativeGetCols(JNIEnv* env, jclass clazz, jlong ptr) {
     Terminal* term = reinterpret_cast<Terminal*>(ptr);
-    return term->setColors(fg, bg);
+    return term->getCols();
 }
 
-static inline bool isCellStyleEqual(const VTermScreenCell& a, const VTermScreenCell& b) {
-    if (toArgb(a.fg) != toArgb(b.fg)) return false;
-    if (toArgb(a.bg) != toArgb(b.bg)) return false;
-
-    if (a.attrs.bold != b.attrs.bold) return false;
-    if (a.attrs.underline != b.attrs.underline) return false;
-    if (a.attrs.italic != b.attrs.italic) return false;
-    if (a.attrs.blink != b.attrs.blink) return false;
-    if (a.attrs.reverse != b.attrs.reverse) return false;
-    if (a.attrs.strike != b.attrs.strike) return false;
-    if (a.attrs.font != b.attrs.font) return false;
-
-    return true;
+static jint com_android_terminal_Terminal_nativeGetScrollRows(JNIEnv* env, jclass clazz, jlong ptr) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    return term->getScrollRows();
 }
 
-static jint com_android_terminal_Terminal_nativeGetCellRun(JNIEnv* env,
-        jclass clazz, jlong ptr, jint row, jint col, jobject run) {
+static jint com_android_terminal_Terminal_nativeSetScrollbackSpill(JNIEnv* env, jclass clazz,
+        jlong ptr, jstring dir) {
     Terminal* term = reinterpret_cast<Terminal*>(ptr);
-    Mutex::Autolock lock(term->mLock);
-
-    jcharArray dataArray = (jcharArray) env->GetObjectField(run, cellRunDataField);
-    ScopedCharArrayRW data(env, dataArray);
-    if (data.get() == NULL) {
+    if (dir == NULL) {
+        return term->setScrollbackSpill(NULL);
+    }
+    ScopedUtfChars dirChars(env, dir);
+    if (dirChars.c_str() == NULL) {
         return -1;
     }
+    return term->setScrollbackSpill(dirChars.c_str());
+}
 
-    VTermScreenCell firstCell, cell;
-
-    VTermPos pos = {
-        .row = row,
-        .col = col,
-    };
-
-    size_t dataSize = 0;
-    size_t colSize = 0;
-    while ((size_t) pos.col < term->getCols()) {
-        memset(&cell, 0, sizeof(VTermScreenCell));
-        bool valid = term->getCellLocked(pos, &cell);
-
-        if (colSize == 0) {
-            if (valid) {
-                env->SetIntField(run, cellRunFgField, toArgb(cell.fg));
-                env->SetIntField(run, cellRunBgField, toArgb(cell.bg));
-            }
-            memcpy(&firstCell, &cell, sizeof(VTermScreenCell));
-        } else {
-            if (!isCellStyleEqual(cell, firstCell)) {
-                break;
-            }
-        }
-
-        // Only include cell chars if they fit into run
-        uint32_t rawCell = cell.chars[0];
-        size_t size = (rawCell < 0x10000) ? 1 : 2;
-        if (dataSize + size <= data.size()) {
-            if (rawCell < 0x10000) {
-                data[dataSize++] = rawCell;
-            } else {
-                data[dataSize++] = (((rawCell - 0x10000) >> 10) & 0x3ff) + 0xd800;
-                data[dataSize++] = ((rawCell - 0x10000) & 0x3ff) + 0xdc00;
-            }
-
-            for (int i = 1; i < cell.width; i++) {
-                data[dataSize++] = ' ';
-            }
-
-            colSize += cell.width;
-            pos.col += cell.width;
-        } else {
-            break;
-        }
+static jint com_android_terminal_Terminal_nativeSetLogging(JNIEnv* env, jclass clazz,
+        jlong ptr, jstring path, jint format, jboolean compress) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    if (path == NULL) {
+        return term->setLog(NULL);
     }
+    ScopedUtfChars pathChars(env, path);
+    if (pathChars.c_str() == NULL) {
+        return -1;
+    }
+    SessionLog* log = new SessionLog(pathChars.c_str(), static_cast<SessionLog::Format>(format),
+            compress, kLogRotateBytes, kLogKeepFiles);
+    if (!log->start()) {
+        delete log;
+        return -1;
+    }
+    return term->setLog(log);
+}
 
-    env->SetIntField(run, cellRunDataSizeField, dataSize);
-    env->SetIntField(run, cellRunColSizeField, colSize);
-
-    return 0;
+static jint com_android_terminal_Terminal_nativeSetRecording(JNIEnv* env, jclass clazz,
+        jlong ptr, jstring path) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    if (path == NULL) {
+        return term->setRecorder(NULL);
+    }
+    ScopedUtfChars pathChars(env, path);
+    if (pathChars.c_str() == NULL) {
+        return -1;
+    }
+    SessionRecorder* recorder = new SessionRecorder(pathChars.c_str());
+    if (!recorder->open()) {
+        delete recorder;
+        return -1;
+    }
+    return term->setRecorder(recorder);
 }
 
-static jint com_android_terminal_Terminal_nativeGetRows(JNIEnv* env, jclass clazz, jlong ptr) {
+static jint com_android_terminal_Terminal_nativeReplay(JNIEnv* env, jclass clazz,
+        jlong ptr, jstring path, jint flags) {
     Terminal* term = reinterpret_cast<Terminal*>(ptr);
-    return term->getRows();
+    ScopedUtfChars pathChars(env, path);
+    if (pathChars.c_str() == NULL) {
+        return -1;
+    }
+    SessionReplay replay;
+    if (!replay.load(pathChars.c_str())) {
+        return -1;
+    }
+    return term->replay(replay, flags);
 }
 
-static jint com_android_terminal_Terminal_nativeGetCols(JNIEnv* env, jclass clazz, jlong ptr) {
+static void com_android_terminal_Terminal_nativeCancelReplay(JNIEnv* env, jclass clazz,
+        jlong ptr) {
     Terminal* term = reinterpret_cast<Terminal*>(ptr);
-    return term->getCols();
+    term->cancelReplay();
 }
 
-static jint com_android_terminal_Terminal_nativeGetScrollRows(JNIEnv* env, jclass clazz, jlong ptr) {
+static void com_android_terminal_Terminal_nativePrefetchScrollback(JNIEnv* env, jclass clazz,
+        jlong ptr, jint row, jint count) {
     Terminal* term = reinterpret_cast<Terminal*>(ptr);
-    return term->getScrollRows();
+    term->prefetchScrollback(row, count);
 }
 
 static jboolean com_android_terminal_Terminal_nativeDispatchCharacter(JNIEnv *env, jclass clazz,
@@ -725,18 +687,59 @@ static jboolean com_android_terminal_Terminal_nativeDispatchKey(JNIEnv *env, jcl
     return term->dispatchKey(mod, c);
 }
 
+static jboolean com_android_terminal_Terminal_nativeDispatchText(JNIEnv *env, jclass clazz,
+        jlong ptr, jstring text, jint flags) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    ScopedStringChars chars(env, text);
+    if (chars.get() == NULL) {
+        return false;
+    }
+    return term->dispatchText(reinterpret_cast<const uint16_t*>(chars.get()), chars.size(),
+            flags);
+}
+
+static jint com_android_terminal_Terminal_nativeWaitForWriteQueue(JNIEnv *env, jclass clazz,
+        jlong ptr, jint maxQueued, jint timeoutMillis) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    return term->waitForWriteQueue(maxQueued, ms2ns(timeoutMillis));
+}
+
+static void com_android_terminal_Terminal_nativeCancelWriteWaits(JNIEnv *env, jclass clazz,
+        jlong ptr) {
+    Terminal* term = reinterpret_cast<Terminal*>(ptr);
+    term->cancelWriteWaits();
+}
+
 static JNINativeMethod gMethods[] = {
     { "nativeInit", "(Lcom/android/terminal/TerminalCallbacks;)J", (void*)com_android_terminal_Terminal_nativeInit },
     { "nativeDestroy", "(J)I", (void*)com_android_terminal_Terminal_nativeDestroy },
-    { "nativeRun", "(J)I", (void*)com_android_terminal_Terminal_nativeRun },
+    { "nativeStart", "(JJ)I", (void*)com_android_terminal_Terminal_nativeStart },
     { "nativeResize", "(JIII)I", (void*)com_android_terminal_Terminal_nativeResize },
+    { "nativeReflow", "(J)I", (void*)com_android_terminal_Terminal_nativeReflow },
     { "nativeSetColors", "(JII)I", (void*)com_android_terminal_Terminal_nativeSetColors },
+    { "nativeSetPalette", "(J[I)I", (void*)com_android_terminal_Terminal_nativeSetPalette },
     { "nativeGetCellRun", "(JIILcom/android/terminal/Terminal$CellRun;)I", (void*)com_android_terminal_Terminal_nativeGetCellRun },
+    { "nativeGetRowSnapshot", "(JIILcom/android/terminal/Terminal$RowSnapshot;)I", (void*)com_android_terminal_Terminal_nativeGetRowSnapshot },
+    { "nativeSearch", "(JLjava/lang/String;JILcom/android/terminal/Terminal$SearchBatch;)I", (void*)com_android_terminal_Terminal_nativeSearch },
+    { "nativeGetLinesPushed", "(J)J", (void*)com_android_terminal_Terminal_nativeGetLinesPushed },
+    { "nativeSetLatencyBudget", "(JI)V", (void*)com_android_terminal_Terminal_nativeSetLatencyBudget },
+    { "nativeGetIoStats", "(JLcom/android/terminal/Terminal$IoStats;)I", (void*)com_android_terminal_Terminal_nativeGetIoStats },
+    { "nativeGetPerfStats", "(JLcom/android/terminal/Terminal$PerfStats;)I", (void*)com_android_terminal_Terminal_nativeGetPerfStats },
+    { "nativeSetPerfStatsEnabled", "(JZ)V", (void*)com_android_terminal_Terminal_nativeSetPerfStatsEnabled },
     { "nativeGetRows", "(J)I", (void*)com_android_terminal_Terminal_nativeGetRows },
     { "nativeGetCols", "(J)I", (void*)com_android_terminal_Terminal_nativeGetCols },
     { "nativeGetScrollRows", "(J)I", (void*)com_android_terminal_Terminal_nativeGetScrollRows },
+    { "nativeSetScrollbackSpill", "(JLjava/lang/String;)I", (void*)com_android_terminal_Terminal_nativeSetScrollbackSpill },
+    { "nativeSetLogging", "(JLjava/lang/String;IZ)I", (void*)com_android_terminal_Terminal_nativeSetLogging },
+    { "nativeSetRecording", "(JLjava/lang/String;)I", (void*)com_android_terminal_Terminal_nativeSetRecording },
+    { "nativeReplay", "(JLjava/lang/String;I)I", (void*)com_android_terminal_Terminal_nativeReplay },
+    { "nativeCancelReplay", "(J)V", (void*)com_android_terminal_Terminal_nativeCancelReplay },
+    { "nativePrefetchScrollback", "(JII)V", (void*)com_android_terminal_Terminal_nativePrefetchScrollback },
     { "nativeDispatchCharacter", "(JII)Z", (void*)com_android_terminal_Terminal_nativeDispatchCharacter},
     { "nativeDispatchKey", "(JII)Z", (void*)com_android_terminal_Terminal_nativeDispatchKey },
+    { "nativeDispatchText", "(JLjava/lang/String;I)Z", (void*)com_android_terminal_Terminal_nativeDispatchText },
+    { "nativeWaitForWriteQueue", "(JII)I", (void*)com_android_terminal_Terminal_nativeWaitForWriteQueue },
+    { "nativeCancelWriteWaits", "(J)V", (void*)com_android_terminal_Terminal_nativeCancelWriteWaits },
 };
 
 int register_com_android_terminal_Terminal(JNIEnv* env) {
@@ -745,10 +748,6 @@ int register_com_android_terminal_Terminal(JNIEnv* env) {
 
     android::terminalCallbacksClass = reinterpret_cast<jclass>(env->NewGlobalRef(localClass.get()));
 
-    android::damageMethod = env->GetMethodID(terminalCallbacksClass, "damage", "(IIII)I");
-    android::moveRectMethod = env->GetMethodID(terminalCallbacksClass, "moveRect", "(IIIIIIII)I");
-    android::moveCursorMethod = env->GetMethodID(terminalCallbacksClass, "moveCursor",
-            "(IIIII)I");
     android::setTermPropBooleanMethod = env->GetMethodID(terminalCallbacksClass,
             "setTermPropBoolean", "(IZ)I");
     android::setTermPropIntMethod = env->GetMethodID(terminalCallbacksClass, "setTermPropInt",
@@ -758,6 +757,7 @@ int register_com_android_terminal_Terminal(JNIEnv* env) {
     android::setTermPropColorMethod = env->GetMethodID(terminalCallbacksClass, "setTermPropColor",
             "(IIII)I");
     android::bellMethod = env->GetMethodID(terminalCallbacksClass, "bell", "()I");
+    android::batchMethod = env->GetMethodID(terminalCallbacksClass, "batch", "([II)I");
 
     ScopedLocalRef<jclass> cellRunLocal(env,
             env->FindClass("com/android/terminal/Terminal$CellRun"));
@@ -767,6 +767,59 @@ int register_com_android_terminal_Terminal(JNIEnv* env) {
     cellRunColSizeField = env->GetFieldID(cellRunClass, "colSize", "I");
     cellRunFgField = env->GetFieldID(cellRunClass, "fg", "I");
     cellRunBgField = env->GetFieldID(cellRunClass, "bg", "I");
+    cellRunStyleField = env->GetFieldID(cellRunClass, "style", "I");
+    cellRunBoldField = env->GetFieldID(cellRunClass, "bold", "Z");
+    cellRunUnderlineField = env->GetFieldID(cellRunClass, "underline", "I");
+    cellRunItalicField = env->GetFieldID(cellRunClass, "italic", "Z");
+    cellRunBlinkField = env->GetFieldID(cellRunClass, "blink", "Z");
+    cellRunReverseField = env->GetFieldID(cellRunClass, "reverse", "Z");
+    cellRunStrikeField = env->GetFieldID(cellRunClass, "strike", "Z");
+    cellRunFontField = env->GetFieldID(cellRunClass, "font", "I");
+
+    ScopedLocalRef<jclass> rowSnapshotLocal(env,
+            env->FindClass("com/android/terminal/Terminal$RowSnapshot"));
+    rowSnapshotClass = reinterpret_cast<jclass>(env->NewGlobalRef(rowSnapshotLocal.get()));
+    rowSnapshotStartRowField = env->GetFieldID(rowSnapshotClass, "startRow", "I");
+    rowSnapshotRowsField = env->GetFieldID(rowSnapshotClass, "rows", "I");
+    rowSnapshotColsField = env->GetFieldID(rowSnapshotClass, "cols", "I");
+    rowSnapshotCharsField = env->GetFieldID(rowSnapshotClass, "chars", "[I");
+    rowSnapshotStylesField = env->GetFieldID(rowSnapshotClass, "styles", "[I");
+    rowSnapshotWidthsField = env->GetFieldID(rowSnapshotClass, "widths", "[B");
+    rowSnapshotGenerationsField = env->GetFieldID(rowSnapshotClass, "generations", "[I");
+    rowSnapshotRowFlagsField = env->GetFieldID(rowSnapshotClass, "rowFlags", "[I");
+    rowSnapshotLinesPushedField = env->GetFieldID(rowSnapshotClass, "linesPushed", "J");
+    rowSnapshotStyleDataField = env->GetFieldID(rowSnapshotClass, "styleData", "[I");
+    rowSnapshotStyleEpochField = env->GetFieldID(rowSnapshotClass, "styleEpoch", "I");
+    rowSnapshotStyleCountField = env->GetFieldID(rowSnapshotClass, "styleCount", "I");
+
+    ScopedLocalRef<jclass> searchBatchLocal(env,
+            env->FindClass("com/android/terminal/Terminal$SearchBatch"));
+    searchBatchClass = reinterpret_cast<jclass>(env->NewGlobalRef(searchBatchLocal.get()));
+    searchBatchCountField = env->GetFieldID(searchBatchClass, "count", "I");
+    searchBatchScannedField = env->GetFieldID(searchBatchClass, "scanned", "I");
+    searchBatchNextLineField = env->GetFieldID(searchBatchClass, "nextLine", "J");
+    searchBatchLinesField = env->GetFieldID(searchBatchClass, "lines", "[J");
+    searchBatchOffsetsField = env->GetFieldID(searchBatchClass, "offsets", "[I");
+    searchBatchCharsField = env->GetFieldID(searchBatchClass, "chars", "[I");
+
+    ScopedLocalRef<jclass> ioStatsLocal(env,
+            env->FindClass("com/android/terminal/Terminal$IoStats"));
+    ioStatsClass = reinterpret_cast<jclass>(env->NewGlobalRef(ioStatsLocal.get()));
+    ioStatsBytesField = env->GetFieldID(ioStatsClass, "bytes", "J");
+    ioStatsReadsField = env->GetFieldID(ioStatsClass, "reads", "J");
+    ioStatsBatchesField = env->GetFieldID(ioStatsClass, "batches", "J");
+    ioStatsFlushesField = env->GetFieldID(ioStatsClass, "flushes", "J");
+    ioStatsMaxBatchField = env->GetFieldID(ioStatsClass, "maxBatch", "I");
+
+    ScopedLocalRef<jclass> perfStatsLocal(env,
+            env->FindClass("com/android/terminal/Terminal$PerfStats"));
+    perfStatsClass = reinterpret_cast<jclass>(env->NewGlobalRef(perfStatsLocal.get()));
+    perfStatsParseNanosField = env->GetFieldID(perfStatsClass, "parseNanos", "J");
+    perfStatsDamageEventsField = env->GetFieldID(perfStatsClass, "damageEvents", "J");
+    perfStatsRowSnapshotsField = env->GetFieldID(perfStatsClass, "rowSnapshots", "J");
+    perfStatsSnapshotRowsField = env->GetFieldID(perfStatsClass, "snapshotRows", "J");
+    perfStatsLockWaitField = env->GetFieldID(perfStatsClass, "lockWait", "[I");
+    perfStatsLockHoldField = env->GetFieldID(perfStatsClass, "lockHold", "[I");
 
     return jniRegisterNativeMethods(env, "com/android/terminal/Terminal",
             gMethods, NELEM(gMethods));
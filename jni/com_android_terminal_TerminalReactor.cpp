@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "TerminalReactor"
+
+#include <utils/Log.h>
+
+#include "jni.h"
+#include <nativehelper/JNIHelp.h>
+
+#include "TerminalReactor.h"
+
+namespace android {
+
+/*
+ * JNI glue
+ */
+
+static jlong com_android_terminal_TerminalReactor_nativeInit(JNIEnv* env, jclass clazz) {
+    TerminalReactor* reactor = new TerminalReactor();
+    if (reactor->init() != 0) {
+        delete reactor;
+        return 0;
+    }
+    return reinterpret_cast<jlong>(reactor);
+}
+
+static void com_android_terminal_TerminalReactor_nativeRun(JNIEnv* env, jclass clazz,
+        jlong ptr) {
+    TerminalReactor* reactor = reinterpret_cast<TerminalReactor*>(ptr);
+    reactor->run();
+}
+
+static void com_android_terminal_TerminalReactor_nativeQuit(JNIEnv* env, jclass clazz,
+        jlong ptr) {
+    TerminalReactor* reactor = reinterpret_cast<TerminalReactor*>(ptr);
+    reactor->quit();
+}
+
+static void com_android_terminal_TerminalReactor_nativeDestroy(JNIEnv* env, jclass clazz,
+        jlong ptr) {
+    TerminalReactor* reactor = reinterpret_cast<TerminalReactor*>(ptr);
+    delete reactor;
+}
+
+static JNINativeMethod gMethods[] = {
+    { "nativeInit", "()J", (void*)com_android_terminal_TerminalReactor_nativeInit },
+    { "nativeRun", "(J)V", (void*)com_android_terminal_TerminalReactor_nativeRun },
+    { "nativeQuit", "(J)V", (void*)com_android_terminal_TerminalReactor_nativeQuit },
+    { "nativeDestroy", "(J)V", (void*)com_android_terminal_TerminalReactor_nativeDestroy },
+};
+
+int register_com_android_terminal_TerminalReactor(JNIEnv* env) {
+    return jniRegisterNativeMethods(env, "com/android/terminal/TerminalReactor",
+            gMethods, NELEM(gMethods));
+}
+
+} /* namespace android */
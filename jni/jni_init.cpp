@@ -21,6 +21,7 @@
 
 namespace android {
 extern int register_com_android_terminal_Terminal(JNIEnv *env);
+extern int register_com_android_terminal_TerminalReactor(JNIEnv *env);
 }
 
 using namespace android;
@@ -33,6 +34,7 @@ extern "C" jint JNI_OnLoad(JavaVM* vm, void* reserved) {
     }
 
     register_com_android_terminal_Terminal(env);
+    register_com_android_terminal_TerminalReactor(env);
 
     return JNI_VERSION_1_6;
 }
@@ -17,6 +17,16 @@
 package com.android.terminal;
 
 import android.graphics.Color;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import dalvik.system.VMRuntime;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
 
 /**
  * Single terminal session backed by a pseudo terminal on the local device.
@@ -43,6 +53,7 @@ public class Terminal {
 
         boolean bold;
         int underline;
+        boolean italic;
         boolean blink;
         boolean reverse;
         boolean strike;
@@ -50,25 +61,358 @@ public class Terminal {
 
         int fg = Color.CYAN;
         int bg = Color.DKGRAY;
+        /** Interned style, comparable with other runs of the same session. */
+        int style;
+    }
+
+    /** Session log formats for {@link #setLogging}. */
+    public static final int LOG_RAW = 0;
+    public static final int LOG_PLAIN = 1;
+
+    /**
+     * Flags for {@link #dispatchText}. Every piece of a paste has
+     * TEXT_PASTE, the first also TEXT_PASTE_START and the last also
+     * TEXT_PASTE_END.
+     */
+    public static final int TEXT_PASTE = 1 << 0;
+    public static final int TEXT_PASTE_START = 1 << 1;
+    public static final int TEXT_PASTE_END = 1 << 2;
+
+    /** Flags for {@link #replay}. */
+    public static final int REPLAY_REALTIME = 1 << 0;
+    public static final int REPLAY_RESIZE = 1 << 1;
+
+    /** Cell attribute bits packed into each style of {@link RowSnapshot#styleData}. */
+    public static final int ATTR_BOLD = 1 << 0;
+    public static final int ATTR_UNDERLINE_SHIFT = 1;
+    public static final int ATTR_UNDERLINE_MASK = 0x3 << ATTR_UNDERLINE_SHIFT;
+    public static final int ATTR_ITALIC = 1 << 3;
+    public static final int ATTR_BLINK = 1 << 4;
+    public static final int ATTR_REVERSE = 1 << 5;
+    public static final int ATTR_STRIKE = 1 << 6;
+    public static final int ATTR_FONT_SHIFT = 7;
+    public static final int ATTR_FONT_MASK = 0xf << ATTR_FONT_SHIFT;
+
+    /**
+     * Flags of each row in {@link RowSnapshot#rowFlags}. A row that is
+     * both is plain ASCII in one style, and can be drawn as a single run.
+     * A pending row is spilled history not yet paged in, which reads as
+     * blank until a scrollback change reports it was.
+     */
+    public static final int ROW_ASCII = 1 << 0;
+    public static final int ROW_UNIFORM = 1 << 1;
+    public static final int ROW_SIMPLE = ROW_ASCII | ROW_UNIFORM;
+    public static final int ROW_PENDING = 1 << 2;
+
+    /** ANSI colours set by {@link #setPalette}, must match PALETTE_SIZE. */
+    public static final int PALETTE_SIZE = 16;
+
+    /** Styles a session interns before starting over, must match STYLE_CAPACITY. */
+    public static final int MAX_STYLES = 4096;
+    /** Ints per style in {@link RowSnapshot#styleData}: fg, bg and attrs. */
+    public static final int STYLE_INTS = 3;
+
+    /**
+     * Copy of a range of rows, filled by a single native call. Cells are
+     * stored row-major, {@link #cols} per row. A cell covered by the right
+     * half of a double-width character has a width of zero.
+     * <p>
+     * Each cell has a style ID, so runs of cells are split with a single
+     * compare. The snapshot learns the colours and attributes of new IDs
+     * as they appear, and starts over whenever the session does.
+     * <p>
+     * Each row also carries a content generation, which changes whenever
+     * anything drawn in that row may have, so callers can tell when a row
+     * rendered earlier is still current.
+     */
+    public static class RowSnapshot {
+        int startRow;
+        int rows;
+        int cols;
+        /** Row r was absolute line linesPushed + r when this was taken. */
+        long linesPushed;
+
+        int[] chars;
+        int[] styles;
+        byte[] widths;
+        int[] generations = new int[0];
+        int[] rowFlags = new int[0];
+
+        /** Styles known to this snapshot, {@link #STYLE_INTS} ints each. */
+        final int[] styleData = new int[MAX_STYLES * STYLE_INTS];
+        /** Session style epoch the IDs below {@link #styleCount} belong to. */
+        int styleEpoch = -1;
+        int styleCount;
+
+        public RowSnapshot() {
+            ensureCapacity(0);
+        }
+
+        void ensureRowCapacity(int rows) {
+            if (generations.length < rows) {
+                final VMRuntime runtime = VMRuntime.getRuntime();
+                generations = (int[]) runtime.newNonMovableArray(int.class, rows);
+                rowFlags = (int[]) runtime.newNonMovableArray(int.class, rows);
+            }
+        }
+
+        /**
+         * Arrays are allocated where the collector won't move them, so
+         * native code can fill them in place rather than through a copy
+         * made on every call.
+         */
+        void ensureCapacity(int cells) {
+            if (chars != null && chars.length >= cells) {
+                return;
+            }
+            final VMRuntime runtime = VMRuntime.getRuntime();
+            chars = (int[]) runtime.newNonMovableArray(int.class, cells);
+            styles = (int[]) runtime.newNonMovableArray(int.class, cells);
+            widths = (byte[]) runtime.newNonMovableArray(byte.class, cells);
+        }
+
+        public boolean contains(int row) {
+            return row >= startRow && row < startRow + rows;
+        }
+
+        /** Index of the first cell of the given row. */
+        public int offsetOf(int row) {
+            return (row - startRow) * cols;
+        }
+
+        /** Content generation of the given row. */
+        public int generationOf(int row) {
+            return generations[row - startRow];
+        }
+
+        /** Whether the given row is plain ASCII in a single style. */
+        public boolean isSimpleRow(int row) {
+            return (rowFlags[row - startRow] & ROW_SIMPLE) == ROW_SIMPLE;
+        }
+
+        public int fgOf(int style) {
+            return styleData[style * STYLE_INTS];
+        }
+
+        public int bgOf(int style) {
+            return styleData[style * STYLE_INTS + 1];
+        }
+
+        public int attrsOf(int style) {
+            return styleData[style * STYLE_INTS + 2];
+        }
+    }
+
+    /**
+     * Rows that may contain a search query, newest first, filled by a single
+     * native call. The text of row i is stored as one code point per cell
+     * from {@code offsets[i]} to {@code offsets[i + 1]}, where 0 is a blank
+     * cell and -1 the right half of a double-width character.
+     */
+    public static class SearchBatch {
+        int count;
+        /** Rows examined, fewer than asked for once history ran out. */
+        int scanned;
+        /** Absolute line to continue from, towards older history. */
+        long nextLine;
+
+        long[] lines = new long[0];
+        int[] offsets = new int[0];
+        int[] chars = new int[0];
+
+        void ensureRowCapacity(int rows) {
+            if (lines.length < rows) {
+                lines = new long[rows];
+                offsets = new int[rows + 1];
+            }
+        }
+
+        void ensureCapacity(int cells) {
+            if (chars.length < cells) {
+                chars = new int[cells];
+            }
+        }
+    }
+
+    /**
+     * Counters describing how output from the child has been consumed.
+     */
+    public static class IoStats {
+        /** Bytes of output parsed. */
+        long bytes;
+        /** Successful reads from the pseudo terminal. */
+        long reads;
+        /** Times output was handed to the parser. */
+        long batches;
+        /** Times damage was flushed to clients. */
+        long flushes;
+        /** Largest single batch in bytes. */
+        int maxBatch;
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getReads() {
+            return reads;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public long getFlushes() {
+            return flushes;
+        }
+
+        public int getMaxBatch() {
+            return maxBatch;
+        }
+
+        public float getBytesPerBatch() {
+            return batches != 0 ? (float) bytes / batches : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "IoStats{bytes=" + bytes + ", reads=" + reads + ", batches=" + batches
+                    + ", flushes=" + flushes + ", maxBatch=" + maxBatch
+                    + ", bytesPerBatch=" + getBytesPerBatch() + "}";
+        }
     }
 
-    // NOTE: clients must not call back into terminal while handling a callback,
-    // since native mutex isn't reentrant.
+    /**
+     * Counters for the native hot paths. Times are only measured while
+     * enabled with {@link Terminal#setPerfStatsEnabled(boolean)}.
+     */
+    public static class PerfStats {
+        /** Buckets in each latency histogram, must match PerfStats.h. */
+        public static final int HISTOGRAM_BUCKETS = 16;
+
+        /** Time spent parsing output. */
+        long parseNanos;
+        /** Damage rectangles reported by the parser. */
+        long damageEvents;
+        /** Row snapshots fetched for drawing, and the rows they held. */
+        long rowSnapshots;
+        long snapshotRows;
+        /** Time waiting for the terminal lock, in power of two microsecond buckets. */
+        final int[] lockWait = new int[HISTOGRAM_BUCKETS];
+        /** Time the terminal lock was then held, bucketed as lockWait. */
+        final int[] lockHold = new int[HISTOGRAM_BUCKETS];
+
+        public long getParseNanos() {
+            return parseNanos;
+        }
+
+        public long getDamageEvents() {
+            return damageEvents;
+        }
+
+        public long getRowSnapshots() {
+            return rowSnapshots;
+        }
+
+        public long getSnapshotRows() {
+            return snapshotRows;
+        }
+
+        /**
+         * Upper bound in microseconds of the given fraction of lock waits
+         * since an earlier sample, or 0 if there were none.
+         */
+        public int getLockWaitPercentile(PerfStats since, float fraction) {
+            return percentile(lockWait, since != null ? since.lockWait : null, fraction);
+        }
+
+        /**
+         * Upper bound in microseconds of the given fraction of lock holds
+         * since an earlier sample, or 0 if there were none.
+         */
+        public int getLockHoldPercentile(PerfStats since, float fraction) {
+            return percentile(lockHold, since != null ? since.lockHold : null, fraction);
+        }
+
+        private static int percentile(int[] buckets, int[] since, float fraction) {
+            long total = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                total += buckets[i] - (since != null ? since[i] : 0);
+            }
+            if (total <= 0) {
+                return 0;
+            }
+
+            final long target = (long) Math.ceil(total * fraction);
+            long count = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                count += buckets[i] - (since != null ? since[i] : 0);
+                if (count >= target) {
+                    return 1 << i;
+                }
+            }
+            return 1 << (HISTOGRAM_BUCKETS - 1);
+        }
+
+        @Override
+        public String toString() {
+            return "PerfStats{parseNanos=" + parseNanos + ", damageEvents=" + damageEvents
+                    + ", rowSnapshots=" + rowSnapshots + ", snapshotRows=" + snapshotRows
+                    + ", lockWaitP99=" + getLockWaitPercentile(null, 0.99f)
+                    + ", lockHoldP99=" + getLockHoldPercentile(null, 0.99f) + "}";
+        }
+    }
+
+    // NOTE: damage, moverect and cursor events are delivered after the native
+    // lock is released, but clients must still not resize or recolor the
+    // terminal while handling them, since dispatch isn't reentrant.
     public interface TerminalClient {
         public void onDamage(int startRow, int endRow, int startCol, int endCol);
         public void onMoveRect(int destStartRow, int destEndRow, int destStartCol, int destEndCol,
                 int srcStartRow, int srcEndRow, int srcStartCol, int srcEndCol);
         public void onMoveCursor(int posRow, int posCol, int oldPosRow, int oldPosCol, int visible);
         public void onBell();
+        public void onScrollbackChanged();
     }
 
+    /** Returned by native resize when scrollback still has to be reflowed. */
+    private static final int RESIZE_REFLOW_PENDING = 1;
+
     private final long mNativePtr;
-    private final Thread mThread;
 
     private String mTitle;
 
     private TerminalClient mClient;
 
+    private final Object mReflowLock = new Object();
+    /** Held while paging in spilled history, so it can't race destroy */
+    private final Object mPageInLock = new Object();
+    /** Guards the page-in request below, never held across native calls */
+    private final Object mPageInRequestLock = new Object();
+    private int mPageInRow;
+    private int mPageInCount;
+    private boolean mPageInScheduled;
+    /** Held while copying rows, so renderers off the main thread can't race destroy */
+    private final Object mSnapshotLock = new Object();
+    /** Held while sending input, so background pastes can't race destroy */
+    private final Object mInputLock = new Object();
+    private boolean mDestroyed;
+    /** Set under mInputLock when destroy begins, before mDestroyed */
+    private boolean mInputClosed;
+    /** Threads in waitForWriteQueue(), which runs without mInputLock */
+    private int mWriteWaiters;
+
+    /** Where output is being logged, {@code null} when not logging */
+    private File mLogDir;
+    private int mLogFormat;
+    private boolean mLogCompress;
+
+    /** Recording being written, {@code null} when not recording */
+    private File mRecording;
+    private Thread mReplayThread;
+
+    /** Last palette set, so setting the same one again is skipped */
+    private int[] mPalette;
+
     private boolean mCursorVisible;
     private int mCursorRow;
     private int mCursorCol;
@@ -110,30 +454,117 @@ public class Terminal {
             }
             return 1;
         }
+
+        @Override
+        public int scrollbackChanged() {
+            if (mClient != null) {
+                mClient.onScrollbackChanged();
+            }
+            return 1;
+        }
+    };
+
+    /**
+     * Rewraps long scrollback histories after a width change. Older lines
+     * stay readable at their previous width until this completes.
+     */
+    private final Runnable mReflowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mReflowLock) {
+                while (!mDestroyed && nativeReflow(mNativePtr) > 0) {
+                    // Width changed again while reflowing
+                }
+            }
+        }
+    };
+
+    /**
+     * Pages in the rows most recently asked for by prefetchScrollback(), so
+     * reading spilled history never waits on storage in the caller.
+     */
+    private final Runnable mPageInRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPageInLock) {
+                while (true) {
+                    final int row;
+                    final int count;
+                    synchronized (mPageInRequestLock) {
+                        row = mPageInRow;
+                        count = mPageInCount;
+                        mPageInCount = 0;
+                        if (count == 0 || mDestroyed) {
+                            mPageInScheduled = false;
+                            return;
+                        }
+                    }
+                    nativePrefetchScrollback(mNativePtr, row, count);
+                }
+            }
+        }
     };
 
     public Terminal() {
         mNativePtr = nativeInit(mCallbacks);
         key = sNumber++;
         mTitle = TAG + " " + key;
-        mThread = new Thread(mTitle) {
-            @Override
-            public void run() {
-                nativeRun(mNativePtr);
-            }
-        };
     }
 
     /**
-     * Start thread which internally forks and manages the pseudo terminal.
+     * Fork the shell and hand its pseudo terminal to the given reactor,
+     * which services all further I/O.
      */
-    public void start() {
-        mThread.start();
+    public void start(TerminalReactor reactor) {
+        if (nativeStart(mNativePtr, reactor.mNativePtr) != 0) {
+            throw new IllegalStateException("start failed");
+        }
     }
 
     public void destroy() {
-        if (nativeDestroy(mNativePtr) != 0) {
-            throw new IllegalStateException("destroy failed");
+        // Replay calls into native code, so must be finished first
+        if (mReplayThread != null) {
+            nativeCancelReplay(mNativePtr);
+            boolean interrupted = false;
+            while (mReplayThread.isAlive()) {
+                try {
+                    mReplayThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            mReplayThread = null;
+        }
+
+        synchronized (mInputLock) {
+            // Wake anyone waiting on the child, and wait for them to leave
+            mInputClosed = true;
+            nativeCancelWriteWaits(mNativePtr);
+            boolean interrupted = false;
+            while (mWriteWaiters > 0) {
+                try {
+                    mInputLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            synchronized (mPageInLock) {
+                synchronized (mReflowLock) {
+                    synchronized (mSnapshotLock) {
+                        mDestroyed = true;
+                        if (nativeDestroy(mNativePtr) != 0) {
+                            throw new IllegalStateException("destroy failed");
+                        }
+                    }
+                }
+            }
         }
     }
 
@@ -141,8 +572,15 @@ public class Terminal {
         mClient = client;
     }
 
+    /**
+     * Resize the screen and scrollback. Scrollback is rewrapped to the new
+     * width, in the background when there is a lot of it.
+     */
     public void resize(int rows, int cols, int scrollRows) {
-        if (nativeResize(mNativePtr, rows, cols, scrollRows) != 0) {
+        final int res = nativeResize(mNativePtr, rows, cols, scrollRows);
+        if (res == RESIZE_REFLOW_PENDING) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mReflowRunnable);
+        } else if (res != 0) {
             throw new IllegalStateException("resize failed");
         }
     }
@@ -153,6 +591,53 @@ public class Terminal {
         }
     }
 
+    /**
+     * Replace the 16 ANSI colours that indexed SGR colours start from; the
+     * rest of the 256 colour cube and 24-bit colours are unaffected.
+     * Colours are resolved as output arrives, so text already on screen
+     * keeps the colours it was drawn in.
+     */
+    public void setPalette(int[] colors) {
+        if (colors.length != PALETTE_SIZE) {
+            throw new IllegalArgumentException("palette must have " + PALETTE_SIZE + " colors");
+        }
+        if (Arrays.equals(colors, mPalette)) {
+            return;
+        }
+        if (nativeSetPalette(mNativePtr, colors) != 0) {
+            throw new IllegalStateException("setPalette failed");
+        }
+        mPalette = colors.clone();
+    }
+
+    /**
+     * Set how long damage from a burst of output may be held back so it is
+     * reported in fewer, larger updates. Zero reports after every read.
+     */
+    public void setLatencyBudget(int millis) {
+        nativeSetLatencyBudget(mNativePtr, millis);
+    }
+
+    public void getIoStats(IoStats stats) {
+        if (nativeGetIoStats(mNativePtr, stats) != 0) {
+            throw new IllegalStateException("getIoStats failed");
+        }
+    }
+
+    /**
+     * Start or stop timing parsing and the terminal lock. Counters are kept
+     * either way; timing costs a clock read per lock.
+     */
+    public void setPerfStatsEnabled(boolean enabled) {
+        nativeSetPerfStatsEnabled(mNativePtr, enabled);
+    }
+
+    public void getPerfStats(PerfStats stats) {
+        if (nativeGetPerfStats(mNativePtr, stats) != 0) {
+            throw new IllegalStateException("getPerfStats failed");
+        }
+    }
+
     public int getRows() {
         return nativeGetRows(mNativePtr);
     }
@@ -165,12 +650,181 @@ public class Terminal {
         return nativeGetScrollRows(mNativePtr);
     }
 
+    /**
+     * Spill scrollback older than a small in-memory window to a file in the
+     * given directory, allowing much deeper history. Passing {@code null}
+     * stops spilling and discards any history already on disk. Throws
+     * {@link IllegalStateException} when no spill file can be created.
+     */
+    public void setScrollbackSpill(File dir) {
+        if (nativeSetScrollbackSpill(mNativePtr, dir != null ? dir.getPath() : null) != 0) {
+            throw new IllegalStateException("setScrollbackSpill failed");
+        }
+    }
+
+    /**
+     * Log all output to a new file in the given directory, written in the
+     * background and rotated once it grows large. Passing {@code null}
+     * stops logging. Asking for the current settings again keeps the
+     * current file. Throws {@link IllegalStateException} when the log can't
+     * be opened, leaving logging stopped.
+     */
+    public void setLogging(File dir, int format, boolean compress) {
+        if (dir == null ? mLogDir == null : dir.equals(mLogDir) && format == mLogFormat
+                && compress == mLogCompress) {
+            return;
+        }
+
+        String path = null;
+        if (dir != null) {
+            final String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                    .format(new Date());
+            path = new File(dir, "terminal-" + key + "-" + stamp).getPath();
+        }
+        if (nativeSetLogging(mNativePtr, path, format, compress) != 0) {
+            // Don't leave the previous log running behind a failed switch
+            nativeSetLogging(mNativePtr, null, format, compress);
+            mLogDir = null;
+            throw new IllegalStateException("setLogging failed");
+        }
+        mLogDir = dir;
+        mLogFormat = format;
+        mLogCompress = compress;
+    }
+
+    /**
+     * Record output, input and resizes with their timing to the given file
+     * in asciicast v2 format, replacing anything already there. Passing
+     * {@code null} stops recording.
+     */
+    public void setRecording(File file) {
+        if (nativeSetRecording(mNativePtr, file != null ? file.getPath() : null) != 0) {
+            mRecording = null;
+            throw new IllegalStateException("setRecording failed");
+        }
+        mRecording = file;
+    }
+
+    public File getRecording() {
+        return mRecording;
+    }
+
+    /**
+     * Play a recording made by {@link #setRecording} back on a background
+     * thread, feeding its output to this terminal as if a child wrote it.
+     * Meant for sessions that were never started, which have no child to
+     * interfere.
+     */
+    public void replay(final File file, final int flags) {
+        if (mReplayThread != null) {
+            throw new IllegalStateException("replay already started");
+        }
+        mReplayThread = new Thread("TerminalReplay") {
+            @Override
+            public void run() {
+                if (nativeReplay(mNativePtr, file.getPath(), flags) != 0) {
+                    Log.w(TAG, "Replay of " + file + " failed or was cancelled");
+                }
+            }
+        };
+        mReplayThread.start();
+    }
+
+    /**
+     * Hint that {@code count} rows from {@code row} upwards are about to be
+     * drawn, so spilled history can be paged in ahead of time. Paging in
+     * happens in the background, and only the latest hint not yet acted
+     * on is kept.
+     */
+    public void prefetchScrollback(int row, int count) {
+        synchronized (mPageInRequestLock) {
+            mPageInRow = row;
+            mPageInCount = count;
+            if (mPageInScheduled) {
+                return;
+            }
+            mPageInScheduled = true;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(mPageInRunnable);
+    }
+
     public void getCellRun(int row, int col, CellRun run) {
         if (nativeGetCellRun(mNativePtr, row, col, run) != 0) {
             throw new IllegalStateException("getCell failed");
         }
     }
 
+    /**
+     * Copy {@code rowCount} rows starting at {@code startRow} into the given
+     * snapshot, growing its storage as needed. Negative rows address the
+     * scrollback. Safe to call from any thread; returns false once the
+     * terminal has been destroyed.
+     */
+    public boolean getRowSnapshot(int startRow, int rowCount, RowSnapshot snapshot) {
+        synchronized (mSnapshotLock) {
+            if (mDestroyed) {
+                return false;
+            }
+            snapshot.ensureRowCapacity(rowCount);
+            int res;
+            while ((res = nativeGetRowSnapshot(mNativePtr, startRow, rowCount, snapshot)) > 0) {
+                snapshot.ensureCapacity(res);
+            }
+            if (res != 0) {
+                throw new IllegalStateException("getRowSnapshot failed");
+            }
+        }
+
+        // Page in spilled rows that had to be left blank
+        int newest = 0;
+        int oldest = 0;
+        for (int i = 0; i < rowCount; i++) {
+            if ((snapshot.rowFlags[i] & ROW_PENDING) != 0) {
+                if (oldest == 0) {
+                    oldest = startRow + i;
+                }
+                newest = startRow + i;
+            }
+        }
+        if (oldest < 0) {
+            prefetchScrollback(newest, newest - oldest + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Collect rows that may contain {@code literal}, ignoring case, looking
+     * at up to {@code maxRows} rows from absolute line {@code startLine}
+     * towards older history. Rows are ruled out by an index, so the query
+     * still has to be matched against each. Safe to call from any thread;
+     * returns false once the terminal has been destroyed.
+     */
+    public boolean search(String literal, long startLine, int maxRows, SearchBatch batch) {
+        synchronized (mSnapshotLock) {
+            if (mDestroyed) {
+                return false;
+            }
+            batch.ensureRowCapacity(maxRows);
+            int res;
+            while ((res = nativeSearch(mNativePtr, literal, startLine, maxRows, batch)) > 0) {
+                batch.ensureCapacity(res);
+            }
+            if (res != 0) {
+                throw new IllegalStateException("search failed");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lines pushed into scrollback so far, less any pulled back onto the
+     * screen. Row r is absolute line {@code getLinesPushed() + r}, which
+     * keeps identifying the same line as output scrolls.
+     */
+    public long getLinesPushed() {
+        return nativeGetLinesPushed(mNativePtr);
+    }
+
     public boolean getCursorVisible() {
         return mCursorVisible;
     }
@@ -196,17 +850,83 @@ public class Terminal {
         return nativeDispatchCharacter(mNativePtr, modifiers, character);
     }
 
+    /**
+     * Send a whole string as typed input in a single write, which is much
+     * cheaper than a character at a time. Pastes are flagged with
+     * {@link #TEXT_PASTE} and friends, so they are marked as such for
+     * children that ask to tell pastes from typing. Safe to call from any
+     * thread.
+     */
+    public boolean dispatchText(CharSequence text, int flags) {
+        synchronized (mInputLock) {
+            if (mDestroyed) {
+                return false;
+            }
+            return nativeDispatchText(mNativePtr, text.toString(), flags);
+        }
+    }
+
+    /**
+     * Wait up to {@code timeoutMillis} for output queued for the child to
+     * drop below {@code maxQueued} bytes. Returns how much is still queued,
+     * or -1 once destroyed.
+     */
+    public int waitForWriteQueue(int maxQueued, int timeoutMillis) {
+        // Wait without holding mInputLock, so input from the main thread
+        // isn't held up; destroy() waits for waiters to leave instead
+        synchronized (mInputLock) {
+            if (mInputClosed) {
+                return -1;
+            }
+            mWriteWaiters++;
+        }
+        int queued;
+        try {
+            queued = nativeWaitForWriteQueue(mNativePtr, maxQueued, timeoutMillis);
+        } finally {
+            synchronized (mInputLock) {
+                mWriteWaiters--;
+                mInputLock.notifyAll();
+            }
+        }
+        synchronized (mInputLock) {
+            return mInputClosed ? -1 : queued;
+        }
+    }
+
     private static native long nativeInit(TerminalCallbacks callbacks);
     private static native int nativeDestroy(long ptr);
 
-    private static native int nativeRun(long ptr);
+    private static native int nativeStart(long ptr, long reactorPtr);
     private static native int nativeResize(long ptr, int rows, int cols, int scrollRows);
+    private static native int nativeReflow(long ptr);
     private static native int nativeSetColors(long ptr, int fg, int bg);
+    private static native int nativeSetPalette(long ptr, int[] colors);
     private static native int nativeGetCellRun(long ptr, int row, int col, CellRun run);
+    private static native int nativeGetRowSnapshot(long ptr, int startRow, int rowCount,
+            RowSnapshot snapshot);
+    private static native int nativeSearch(long ptr, String literal, long startLine, int maxRows,
+            SearchBatch batch);
+    private static native long nativeGetLinesPushed(long ptr);
+    private static native void nativeSetLatencyBudget(long ptr, int millis);
+    private static native int nativeGetIoStats(long ptr, IoStats stats);
+    private static native int nativeGetPerfStats(long ptr, PerfStats stats);
+    private static native void nativeSetPerfStatsEnabled(long ptr, boolean enabled);
     private static native int nativeGetRows(long ptr);
     private static native int nativeGetCols(long ptr);
     private static native int nativeGetScrollRows(long ptr);
+    private static native int nativeSetScrollbackSpill(long ptr, String dir);
+    private static native void nativePrefetchScrollback(long ptr, int row, int count);
+    private static native int nativeSetLogging(long ptr, String path, int format,
+            boolean compress);
+    private static native int nativeSetRecording(long ptr, String path);
+    private static native int nativeReplay(long ptr, String path, int flags);
+    private static native void nativeCancelReplay(long ptr);
 
     private static native boolean nativeDispatchKey(long ptr, int modifiers, int key);
     private static native boolean nativeDispatchCharacter(long ptr, int modifiers, int character);
+    private static native boolean nativeDispatchText(long ptr, String text, int flags);
+    private static native int nativeWaitForWriteQueue(long ptr, int maxQueued,
+            int timeoutMillis);
+    private static native void nativeCancelWriteWaits(long ptr);
 }
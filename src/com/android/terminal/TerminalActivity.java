@@ -21,7 +21,11 @@ import static com.android.terminal.Terminal.TAG;
 import android.Manifest;
 import android.animation.LayoutTransition;
 import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.ComponentName;
+import android.content.DialogInterface;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
@@ -43,11 +47,19 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.SearchView;
+import android.widget.Toast;
 import android.widget.Toolbar;
 
 import com.android.internal.util.darkkat.ThemeColorHelper;
 import com.android.internal.util.darkkat.ThemeHelper;
 
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.PatternSyntaxException;
+
 /**
  * Activity that displays all {@link Terminal} instances running in a bound
  * {@link TerminalService}.
@@ -59,6 +71,23 @@ public class TerminalActivity extends Activity {
     private ViewPager mPager;
     private PagerTitleStrip mTitles;
 
+    /** Whether sessions are drawn by {@link TerminalGridView} */
+    private boolean mGridRenderer = false;
+
+    /** Search of the current session, running or finished */
+    private TerminalSearch mSearch;
+    private String mSearchQuery;
+    private boolean mSearchRegex = false;
+    private TerminalSearch.Result mSearchResult;
+    private int mSearchCurrent;
+
+    /** Large paste in progress, shown with mPasteDialog */
+    private TerminalPaste mPaste;
+    private ProgressDialog mPasteDialog;
+
+    private TerminalPerfOverlay mPerfOverlay;
+    private boolean mShowPerfOverlay = false;
+
     private int mDefaultPrimaryColor = 0;
     private int mThemeResId = 0;
     private int mThemeOverlayAccentResId = 0;
@@ -89,6 +118,7 @@ public class TerminalActivity extends Activity {
             // Bind UI to known terminals
             mTermAdapter.notifyDataSetChanged();
             invalidateOptionsMenu();
+            updatePerfOverlay();
         }
 
         @Override
@@ -113,11 +143,18 @@ public class TerminalActivity extends Activity {
 
         @Override
         public Object instantiateItem(ViewGroup container, int position) {
-            final TerminalView view = new TerminalView(container.getContext());
-            view.setId(android.R.id.list);
+            // Renderers save different state, so keep it under different ids
+            final View view;
+            if (mGridRenderer) {
+                view = new TerminalGridView(container.getContext());
+                view.setId(R.id.terminal_grid);
+            } else {
+                view = new TerminalView(container.getContext());
+                view.setId(android.R.id.list);
+            }
 
             final Terminal term = mService.getTerminals().valueAt(position);
-            view.setTerminal(term);
+            ((TerminalDisplay) view).setTerminal(term);
 
             final SparseArray<Parcelable> state = mSavedState.get(term.key);
             if (state != null) {
@@ -131,9 +168,10 @@ public class TerminalActivity extends Activity {
 
         @Override
         public void destroyItem(ViewGroup container, int position, Object object) {
-            final TerminalView view = (TerminalView) object;
+            final View view = (View) object;
+            final TerminalDisplay display = (TerminalDisplay) object;
 
-            final int key = view.getTerminal().key;
+            final int key = display.getTerminal().key;
             SparseArray<Parcelable> state = mSavedState.get(key);
             if (state == null) {
                 state = new SparseArray<Parcelable>();
@@ -141,13 +179,18 @@ public class TerminalActivity extends Activity {
             }
             view.saveHierarchyState(state);
 
-            view.setTerminal(null);
+            display.setTerminal(null);
             container.removeView(view);
         }
 
         @Override
         public int getItemPosition(Object object) {
-            final TerminalView view = (TerminalView) object;
+            if ((object instanceof TerminalGridView) != mGridRenderer) {
+                // Renderer changed, rebuild page
+                return POSITION_NONE;
+            }
+
+            final TerminalDisplay view = (TerminalDisplay) object;
             final int key = view.getTerminal().key;
             final int index = mService.getTerminals().indexOfKey(key);
             if (index == -1) {
@@ -168,6 +211,280 @@ public class TerminalActivity extends Activity {
         }
     };
 
+    private final SearchView.OnQueryTextListener mSearchListener =
+            new SearchView.OnQueryTextListener() {
+        @Override
+        public boolean onQueryTextSubmit(String query) {
+            if (query.isEmpty()) {
+                return true;
+            }
+            if (query.equals(mSearchQuery)) {
+                // Submitting again steps back through older matches
+                if (mSearchResult != null && mSearchResult.count > 0) {
+                    mSearchCurrent = (mSearchCurrent + mSearchResult.count - 1)
+                            % mSearchResult.count;
+                    showSearchResult();
+                }
+            } else {
+                startSearch(query);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onQueryTextChange(String newText) {
+            return false;
+        }
+    };
+
+    private final MenuItem.OnActionExpandListener mSearchExpandListener =
+            new MenuItem.OnActionExpandListener() {
+        @Override
+        public boolean onMenuItemActionExpand(MenuItem item) {
+            return true;
+        }
+
+        @Override
+        public boolean onMenuItemActionCollapse(MenuItem item) {
+            clearSearch();
+            return true;
+        }
+    };
+
+    private final ViewPager.SimpleOnPageChangeListener mPageChangeListener =
+            new ViewPager.SimpleOnPageChangeListener() {
+        @Override
+        public void onPageSelected(int position) {
+            // Results belong to the session they were found in
+            clearSearch();
+            updatePerfOverlay();
+        }
+    };
+
+    /**
+     * Display of the session on the current page, if it is attached.
+     */
+    private TerminalDisplay getCurrentDisplay() {
+        if (mService == null || mTermAdapter.getCount() == 0) {
+            return null;
+        }
+        final int key = mService.getTerminals().keyAt(mPager.getCurrentItem());
+        for (int i = 0; i < mPager.getChildCount(); ++i) {
+            View v = mPager.getChildAt(i);
+            if (v instanceof TerminalDisplay) {
+                final Terminal term = ((TerminalDisplay) v).getTerminal();
+                if (term != null && term.key == key) {
+                    return (TerminalDisplay) v;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Terminal getCurrentTerminal() {
+        if (mService == null || mTermAdapter.getCount() == 0) {
+            return null;
+        }
+        return mService.getTerminals().valueAt(mPager.getCurrentItem());
+    }
+
+    /**
+     * Point the performance overlay at the current session, if shown.
+     */
+    private void updatePerfOverlay() {
+        mPerfOverlay.setVisibility(mShowPerfOverlay ? View.VISIBLE : View.GONE);
+        mPerfOverlay.setTerminal(mShowPerfOverlay ? getCurrentTerminal() : null);
+    }
+
+    /**
+     * Send the clipboard to the current session as a single paste.
+     */
+    private void pasteClipboard() {
+        final Terminal term = getCurrentTerminal();
+        final ClipboardManager clipboard =
+                (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+        final ClipData clip = clipboard.getPrimaryClip();
+        if (term == null || clip == null) {
+            return;
+        }
+
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < clip.getItemCount(); i++) {
+            final CharSequence item = clip.getItemAt(i).coerceToText(this);
+            if (item != null) {
+                text.append(item);
+            }
+        }
+        if (text.length() == 0) {
+            return;
+        }
+        final TerminalDisplay display = getCurrentDisplay();
+        if (display != null) {
+            display.scrollToBottom(true);
+        }
+        if (text.length() <= TerminalPaste.CHUNK_CHARS) {
+            term.dispatchText(text,
+                    Terminal.TEXT_PASTE | Terminal.TEXT_PASTE_START | Terminal.TEXT_PASTE_END);
+        } else {
+            startPaste(term, text);
+        }
+    }
+
+    /**
+     * Stream a paste too large to send at once, showing its progress.
+     */
+    private void startPaste(Terminal term, CharSequence text) {
+        cancelPaste();
+
+        mPasteDialog = new ProgressDialog(this);
+        mPasteDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mPasteDialog.setMessage(getString(R.string.paste_progress));
+        mPasteDialog.setMax(text.length());
+        mPasteDialog.setCancelable(true);
+        mPasteDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                cancelPaste();
+            }
+        });
+        mPasteDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                cancelPaste();
+            }
+        });
+
+        final ProgressDialog dialog = mPasteDialog;
+        mPaste = new TerminalPaste(term, text, new TerminalPaste.Listener() {
+            @Override
+            public void onPasteProgress(int sent, int total) {
+                dialog.setProgress(sent);
+            }
+
+            @Override
+            public void onPasteFinished(boolean complete) {
+                dialog.dismiss();
+                if (mPasteDialog == dialog) {
+                    mPaste = null;
+                    mPasteDialog = null;
+                }
+            }
+        });
+        mPasteDialog.show();
+        mPaste.start();
+    }
+
+    private void cancelPaste() {
+        if (mPaste != null) {
+            mPaste.cancel();
+            mPaste = null;
+        }
+        if (mPasteDialog != null) {
+            mPasteDialog.dismiss();
+            mPasteDialog = null;
+        }
+    }
+
+    private File getRecordingsDir() {
+        return getExternalFilesDir("recordings");
+    }
+
+    /**
+     * Most recently started recording, which may still be in progress.
+     */
+    private File getLatestRecording() {
+        final File dir = getRecordingsDir();
+        final File[] files = dir != null ? dir.listFiles() : null;
+        File latest = null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".cast")
+                        && (latest == null || file.lastModified() > latest.lastModified())) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
+    private void toggleRecording() {
+        final Terminal term = getCurrentTerminal();
+        if (term == null) {
+            return;
+        }
+        if (term.getRecording() != null) {
+            term.setRecording(null);
+            return;
+        }
+
+        final File dir = getRecordingsDir();
+        try {
+            if (dir == null || !(dir.isDirectory() || dir.mkdirs())) {
+                throw new IllegalStateException("no recordings directory");
+            }
+            final String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                    .format(new Date());
+            term.setRecording(new File(dir, "terminal-" + term.key + "-" + stamp + ".cast"));
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to start recording", e);
+            Toast.makeText(this, R.string.record_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void startSearch(String query) {
+        clearSearch();
+        final TerminalDisplay display = getCurrentDisplay();
+        if (display == null) {
+            return;
+        }
+
+        try {
+            mSearch = new TerminalSearch(display.getTerminal(), query, mSearchRegex,
+                    new TerminalSearch.Listener() {
+                @Override
+                public void onSearchFinished(TerminalSearch.Result result) {
+                    mSearch = null;
+                    if (result.count == 0) {
+                        Toast.makeText(TerminalActivity.this, R.string.search_no_matches,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                    mSearchResult = result;
+                    mSearchCurrent = result.count - 1;
+                    showSearchResult();
+                }
+            });
+        } catch (PatternSyntaxException e) {
+            Toast.makeText(this, R.string.search_invalid_pattern, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mSearchQuery = query;
+        mSearch.start();
+    }
+
+    private void showSearchResult() {
+        final TerminalDisplay display = getCurrentDisplay();
+        if (display != null) {
+            display.showSearchResult(mSearchResult, mSearchCurrent);
+        }
+    }
+
+    private void clearSearch() {
+        if (mSearch != null) {
+            mSearch.cancel();
+            mSearch = null;
+        }
+        mSearchQuery = null;
+        mSearchResult = null;
+
+        for (int i = 0; i < mPager.getChildCount(); ++i) {
+            View v = mPager.getChildAt(i);
+            if (v instanceof TerminalDisplay) {
+                ((TerminalDisplay) v).showSearchResult(null, -1);
+            }
+        }
+    }
+
     public void updatePreferences() {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         final String orientation = sp.getString(TerminalSettingsActivity.KEY_SCREEN_ORIENTATION,
@@ -180,14 +497,22 @@ public class TerminalActivity extends Activity {
             setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
         }
 
+        final boolean gridRenderer = sp.getString(TerminalSettingsActivity.KEY_RENDERER,
+                "list").equals("grid");
+        if (gridRenderer != mGridRenderer) {
+            mGridRenderer = gridRenderer;
+            mTermAdapter.notifyDataSetChanged();
+        }
+
         for (int i = 0; i < mPager.getChildCount(); ++i) {
             View v = mPager.getChildAt(i);
-            if (v instanceof TerminalView) {
-                TerminalView view = (TerminalView) v;
-                view.updatePreferences();
-                view.invalidateViews();
+            if (v instanceof TerminalDisplay) {
+                ((TerminalDisplay) v).updatePreferences();
             }
         }
+
+        mShowPerfOverlay = sp.getBoolean(TerminalSettingsActivity.KEY_PERF_OVERLAY, false);
+        updatePerfOverlay();
     }
 
     @Override
@@ -202,8 +527,10 @@ public class TerminalActivity extends Activity {
 
         mPager = (ViewPager) findViewById(R.id.pager);
         mTitles = (PagerTitleStrip) findViewById(R.id.titles);
+        mPerfOverlay = (TerminalPerfOverlay) findViewById(R.id.perf_overlay);
 
         mPager.setAdapter(mTermAdapter);
+        mPager.addOnPageChangeListener(mPageChangeListener);
 
         ViewGroup root = (ViewGroup) findViewById(R.id.root);
         root.getLayoutTransition().enableTransitionType(LayoutTransition.CHANGING);
@@ -325,12 +652,20 @@ public class TerminalActivity extends Activity {
     @Override
     protected void onStop() {
         super.onStop();
+        cancelPaste();
+        mPerfOverlay.setTerminal(null);
         unbindService(mServiceConn);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.activity, menu);
+
+        final MenuItem searchItem = menu.findItem(R.id.menu_search);
+        final SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setOnQueryTextListener(mSearchListener);
+        searchItem.setOnActionExpandListener(mSearchExpandListener);
+        menu.findItem(R.id.menu_search_regex).setChecked(mSearchRegex);
         return true;
     }
 
@@ -338,6 +673,17 @@ public class TerminalActivity extends Activity {
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
         menu.findItem(R.id.menu_close_tab).setEnabled(mTermAdapter.getCount() > 0);
+        menu.findItem(R.id.menu_search).setEnabled(mTermAdapter.getCount() > 0);
+
+        final Terminal term = getCurrentTerminal();
+        final ClipboardManager clipboard =
+                (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+        menu.findItem(R.id.menu_paste).setEnabled(term != null && clipboard.hasPrimaryClip());
+
+        final MenuItem recordItem = menu.findItem(R.id.menu_record);
+        recordItem.setEnabled(term != null);
+        recordItem.setChecked(term != null && term.getRecording() != null);
+        menu.findItem(R.id.menu_replay).setEnabled(getLatestRecording() != null);
         return true;
     }
 
@@ -355,9 +701,37 @@ public class TerminalActivity extends Activity {
             case R.id.menu_close_tab: {
                 final int index = mPager.getCurrentItem();
                 final int key = mService.getTerminals().keyAt(index);
+                mPerfOverlay.setTerminal(null);
                 mService.destroyTerminal(key);
                 mTermAdapter.notifyDataSetChanged();
                 invalidateOptionsMenu();
+                updatePerfOverlay();
+                return true;
+            }
+            case R.id.menu_search_regex: {
+                mSearchRegex = !item.isChecked();
+                item.setChecked(mSearchRegex);
+                // Next submit searches again with the new syntax
+                mSearchQuery = null;
+                return true;
+            }
+            case R.id.menu_paste: {
+                pasteClipboard();
+                return true;
+            }
+            case R.id.menu_record: {
+                toggleRecording();
+                invalidateOptionsMenu();
+                return true;
+            }
+            case R.id.menu_replay: {
+                final File recording = getLatestRecording();
+                if (recording != null) {
+                    mService.createReplayTerminal(recording);
+                    mTermAdapter.notifyDataSetChanged();
+                    invalidateOptionsMenu();
+                    mPager.setCurrentItem(mService.getTerminals().size() - 1, true);
+                }
                 return true;
             }
             case R.id.menu_item_settings: {
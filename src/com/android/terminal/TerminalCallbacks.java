@@ -17,6 +17,47 @@
 package com.android.terminal;
 
 public abstract class TerminalCallbacks {
+    /** Batched event types, must match native EVENT_* */
+    static final int EVENT_DAMAGE = 1;
+    static final int EVENT_MOVE_RECT = 2;
+    static final int EVENT_MOVE_CURSOR = 3;
+    static final int EVENT_SCROLLBACK = 4;
+
+    /**
+     * Called once per chunk of parsed output with every damage, moverect
+     * and cursor event it produced, encoded as a type followed by that
+     * event's arguments. Default implementation unpacks each event into
+     * the matching callback.
+     */
+    public int batch(int[] events, int length) {
+        int i = 0;
+        while (i < length) {
+            switch (events[i]) {
+                case EVENT_DAMAGE:
+                    damage(events[i + 1], events[i + 2], events[i + 3], events[i + 4]);
+                    i += 5;
+                    break;
+                case EVENT_MOVE_RECT:
+                    moveRect(events[i + 1], events[i + 2], events[i + 3], events[i + 4],
+                            events[i + 5], events[i + 6], events[i + 7], events[i + 8]);
+                    i += 9;
+                    break;
+                case EVENT_MOVE_CURSOR:
+                    moveCursor(events[i + 1], events[i + 2], events[i + 3], events[i + 4],
+                            events[i + 5]);
+                    i += 6;
+                    break;
+                case EVENT_SCROLLBACK:
+                    scrollbackChanged();
+                    i += 1;
+                    break;
+                default:
+                    return 0;
+            }
+        }
+        return 1;
+    }
+
     public int damage(int startRow, int endRow, int startCol, int endCol) {
         return 1;
     }
@@ -49,4 +90,12 @@ public abstract class TerminalCallbacks {
     public int bell() {
         return 1;
     }
+
+    /**
+     * Existing scrollback lines were rewritten, such as by reflow after a
+     * change in width.
+     */
+    public int scrollbackChanged() {
+        return 1;
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import static com.android.terminal.Terminal.TAG;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.android.terminal.Terminal.TerminalClient;
+
+import java.util.BitSet;
+
+/**
+ * Accumulates damage reported by a {@link Terminal} on its I/O thread and
+ * delivers it to the UI at most once per frame. Must be created on the main
+ * thread.
+ */
+class TerminalDamage implements Choreographer.FrameCallback, TerminalClient {
+
+    public interface Listener {
+        /**
+         * Called on the main thread with the screen rows changed since the
+         * last frame. {@code scrollback} is set when lines were scrolled
+         * into history, which shifts every scrollback row.
+         */
+        public void onDamage(BitSet rows, boolean scrollback);
+    }
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final Listener mListener;
+
+    // Guarded by this
+    private BitSet mPending = new BitSet();
+    private boolean mPendingScrollback;
+    private boolean mScheduled;
+
+    // Only touched on main thread
+    private BitSet mFlushing = new BitSet();
+
+    public TerminalDamage(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void addRows(int startRow, int endRow) {
+        startRow = Math.max(startRow, 0);
+        if (endRow > startRow) {
+            mPending.set(startRow, endRow);
+        }
+        scheduleLocked();
+    }
+
+    public synchronized void addScrollback() {
+        mPendingScrollback = true;
+        scheduleLocked();
+    }
+
+    @Override
+    public void onDamage(int startRow, int endRow, int startCol, int endCol) {
+        addRows(startRow, endRow);
+    }
+
+    @Override
+    public void onMoveRect(int destStartRow, int destEndRow, int destStartCol, int destEndCol,
+            int srcStartRow, int srcEndRow, int srcStartCol, int srcEndCol) {
+        addRows(destStartRow, destEndRow);
+        if (destStartRow == 0 && srcStartRow > destStartRow) {
+            // Rows scrolled off the top were pushed into scrollback
+            addScrollback();
+        }
+    }
+
+    @Override
+    public void onMoveCursor(int posRow, int posCol, int oldPosRow, int oldPosCol, int visible) {
+        addRows(oldPosRow, oldPosRow + 1);
+        addRows(posRow, posRow + 1);
+    }
+
+    @Override
+    public void onBell() {
+        Log.i(TAG, "DING!");
+    }
+
+    @Override
+    public void onScrollbackChanged() {
+        addScrollback();
+    }
+
+    /**
+     * Drop any damage not yet delivered.
+     */
+    public synchronized void cancel() {
+        if (mScheduled) {
+            mChoreographer.removeFrameCallback(this);
+            mScheduled = false;
+        }
+        mPending.clear();
+        mPendingScrollback = false;
+    }
+
+    private void scheduleLocked() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        final BitSet rows;
+        final boolean scrollback;
+        synchronized (this) {
+            if (!mScheduled) {
+                return;
+            }
+            rows = mPending;
+            mPending = mFlushing;
+            mFlushing = rows;
+            scrollback = mPendingScrollback;
+            mPendingScrollback = false;
+            mScheduled = false;
+        }
+
+        mListener.onDamage(rows, scrollback);
+        rows.clear();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+/**
+ * View rendering a {@link Terminal} session, whichever renderer backs it.
+ */
+public interface TerminalDisplay {
+    public void setTerminal(Terminal term);
+    public Terminal getTerminal();
+
+    /**
+     * Apply current settings and redraw.
+     */
+    public void updatePreferences();
+
+    public void scrollToBottom(boolean animate);
+
+    /**
+     * Highlight the matches of a search, or none when null, and bring the
+     * match at index current into view.
+     */
+    public void showSearchResult(TerminalSearch.Result result, int current);
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/**
+ * Single-cell glyphs rasterised once into a shared atlas bitmap, so rows
+ * can be drawn by blitting cells instead of shaping the same text every
+ * frame. Glyphs are keyed by code point, bold/italic and foreground colour.
+ * Not thread safe; callers hold the lock of the owning TerminalMetrics,
+ * as TerminalRenderThread does while drawing a frame.
+ */
+class TerminalGlyphCache {
+    /** Glyphs held by one atlas before it is replaced. */
+    private static final int ATLAS_SLOTS = 1024;
+    private static final int ATLAS_COLS = 32;
+
+    private static final int KEY_BOLD = 1 << 21;
+    private static final int KEY_ITALIC = 1 << 22;
+
+    static final float ITALIC_SKEW = -0.25f;
+
+    private final Paint mGlyphPaint = new Paint();
+    private final Paint mBlitPaint = new Paint();
+
+    private final char[] mChars = new char[2];
+    private final Rect mSrc = new Rect();
+    private final RectF mDst = new RectF();
+
+    /** Open addressed table from key to atlas slot, zero keys are empty. */
+    private final long[] mKeys = new long[ATLAS_SLOTS * 2];
+    private final int[] mSlots = new int[ATLAS_SLOTS * 2];
+
+    private Bitmap mAtlas;
+    private Canvas mAtlasCanvas;
+    private int mUsed;
+
+    private int mCharTop;
+    private int mCharWidth;
+    private int mCharHeight;
+
+    /**
+     * Drop every cached glyph and rasterise future ones with the given text
+     * paint, sized to the given cell.
+     */
+    public void setMetrics(Paint textPaint, int charTop, int charWidth, int charHeight) {
+        mGlyphPaint.set(textPaint);
+        mCharTop = charTop;
+        mCharWidth = charWidth;
+        mCharHeight = charHeight;
+        mAtlas = null;
+        mAtlasCanvas = null;
+    }
+
+    /**
+     * Draw a single-width glyph with its top left corner at the given
+     * position. Glyphs are clipped to their cell.
+     */
+    public void draw(Canvas canvas, int c, int attrs, int fg, float x, float y) {
+        if (mAtlas == null) {
+            if (mCharWidth <= 0 || mCharHeight <= 0) {
+                return;
+            }
+            newAtlas();
+        }
+
+        int key = c;
+        if ((attrs & Terminal.ATTR_BOLD) != 0) {
+            key |= KEY_BOLD;
+        }
+        if ((attrs & Terminal.ATTR_ITALIC) != 0) {
+            key |= KEY_ITALIC;
+        }
+        int slot = findSlot(((long) fg << 32) | key, key, fg);
+
+        final int sx = (slot % ATLAS_COLS) * mCharWidth;
+        final int sy = (slot / ATLAS_COLS) * mCharHeight;
+        mSrc.set(sx, sy, sx + mCharWidth, sy + mCharHeight);
+        mDst.set(x, y, x + mCharWidth, y + mCharHeight);
+        canvas.drawBitmap(mAtlas, mSrc, mDst, mBlitPaint);
+    }
+
+    private int findSlot(long fullKey, int key, int fg) {
+        final int mask = mKeys.length - 1;
+        int i = hash(fullKey) & mask;
+        while (mKeys[i] != 0) {
+            if (mKeys[i] == fullKey) {
+                return mSlots[i];
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (mUsed == ATLAS_SLOTS) {
+            // Frames already recorded keep drawing from the old bitmap, so
+            // start over in a fresh one rather than overwriting it
+            newAtlas();
+            i = hash(fullKey) & mask;
+        }
+
+        final int slot = mUsed++;
+        mKeys[i] = fullKey;
+        mSlots[i] = slot;
+        rasterize(slot, key, fg);
+        return slot;
+    }
+
+    private void rasterize(int slot, int key, int fg) {
+        final int sx = (slot % ATLAS_COLS) * mCharWidth;
+        final int sy = (slot / ATLAS_COLS) * mCharHeight;
+
+        mGlyphPaint.setColor(fg);
+        mGlyphPaint.setFakeBoldText((key & KEY_BOLD) != 0);
+        mGlyphPaint.setTextSkewX((key & KEY_ITALIC) != 0 ? ITALIC_SKEW : 0);
+
+        final int count = Character.toChars(key & ~(KEY_BOLD | KEY_ITALIC), mChars, 0);
+        mAtlasCanvas.save();
+        mAtlasCanvas.clipRect(sx, sy, sx + mCharWidth, sy + mCharHeight);
+        mAtlasCanvas.drawText(mChars, 0, count, sx, sy - mCharTop, mGlyphPaint);
+        mAtlasCanvas.restore();
+    }
+
+    private void newAtlas() {
+        final int rows = (ATLAS_SLOTS + ATLAS_COLS - 1) / ATLAS_COLS;
+        mAtlas = Bitmap.createBitmap(ATLAS_COLS * mCharWidth, rows * mCharHeight,
+                Bitmap.Config.ARGB_8888);
+        mAtlasCanvas = new Canvas(mAtlas);
+        Arrays.fill(mKeys, 0);
+        mUsed = 0;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
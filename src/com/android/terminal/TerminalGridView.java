@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.SurfaceTexture;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.Surface;
+import android.view.TextureView;
+import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.InputConnection;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.OverScroller;
+
+import com.android.internal.util.darkkat.ColorHelper;
+
+import com.android.terminal.TerminalView.TerminalMetrics;
+
+import java.util.BitSet;
+
+/**
+ * Rendered contents of a {@link Terminal} session, drawn as a single grid
+ * instead of a view per line. Scrolls over scrollback and screen itself,
+ * which avoids adapter, layout and recycling work when many small rows are
+ * visible. Drawing happens on a {@link TerminalRenderThread}, so the main
+ * thread only tracks scroll position and input.
+ */
+public class TerminalGridView extends TextureView implements TerminalDisplay,
+        TextureView.SurfaceTextureListener {
+    private static final boolean SCROLL_ON_INPUT = true;
+
+    private static final int SCROLL_DURATION = 250;
+
+    private Terminal mTerm;
+
+    private int mRows;
+    private int mCols;
+    private int mScrollRows;
+
+    /** Pixels between the top of scrollback and the top of the view */
+    private int mScrollOffset;
+
+    /** Metrics shared with the render thread, locked while changing them */
+    private final TerminalMetrics mMetrics = new TerminalMetrics();
+    private final TerminalKeys mTermKeys = new TerminalKeys();
+
+    private final OverScroller mScroller;
+    private final GestureDetector mGestures;
+
+    private Surface mSurface;
+    private TerminalRenderThread mRenderThread;
+    private final TerminalRenderThread.FrameState mFrame = new TerminalRenderThread.FrameState();
+
+    private final TerminalDamage mDamage = new TerminalDamage(new TerminalDamage.Listener() {
+        @Override
+        public void onDamage(BitSet rows, boolean scrollback) {
+            requestRender();
+        }
+    });
+
+    private final GestureDetector.SimpleOnGestureListener mGestureListener =
+            new GestureDetector.SimpleOnGestureListener() {
+        @Override
+        public boolean onDown(MotionEvent e) {
+            mScroller.forceFinished(true);
+            return true;
+        }
+
+        @Override
+        public boolean onSingleTapUp(MotionEvent e) {
+            if (requestFocus()) {
+                InputMethodManager imm = (InputMethodManager)
+                        getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
+                imm.showSoftInput(TerminalGridView.this, InputMethodManager.SHOW_IMPLICIT);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX,
+                float distanceY) {
+            setScrollOffset(mScrollOffset + (int) distanceY);
+            return true;
+        }
+
+        @Override
+        public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX,
+                float velocityY) {
+            mScroller.fling(0, mScrollOffset, 0, (int) -velocityY, 0, 0, 0, getMaxScrollOffset());
+            postInvalidateOnAnimation();
+            return true;
+        }
+    };
+
+    private View.OnKeyListener mKeyListener = new OnKeyListener() {
+        @Override
+        public boolean onKey(View v, int keyCode, KeyEvent event) {
+            final boolean res = mTermKeys.onKey(v, getContext(), keyCode, event);
+            if (res && SCROLL_ON_INPUT) {
+                scrollToBottom(true);
+            }
+            return res;
+        }
+    };
+
+    public TerminalGridView(Context context) {
+        this(context, null);
+    }
+
+    public TerminalGridView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        mScroller = new OverScroller(context);
+        mGestures = new GestureDetector(context, mGestureListener);
+
+        setFocusable(true);
+        setFocusableInTouchMode(true);
+
+        setOnKeyListener(mKeyListener);
+        setSurfaceTextureListener(this);
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+        mSurface = new Surface(surface);
+        startRenderThread();
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+        requestRender();
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+        stopRenderThread();
+        mSurface.release();
+        mSurface = null;
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+    }
+
+    private void startRenderThread() {
+        if (mTerm != null && mSurface != null && mRenderThread == null) {
+            mRenderThread = new TerminalRenderThread(mTerm, mMetrics, mSurface);
+            mRenderThread.start();
+            requestRender();
+        }
+    }
+
+    private void stopRenderThread() {
+        if (mRenderThread != null) {
+            mRenderThread.quit();
+            mRenderThread = null;
+        }
+    }
+
+    /**
+     * Have the render thread draw a frame reflecting current state.
+     */
+    private void requestRender() {
+        if (mRenderThread == null) {
+            return;
+        }
+        final TerminalRenderThread.FrameState f = mFrame;
+        f.scrollOffset = mScrollOffset;
+        f.scrollRows = mScrollRows;
+        f.rows = mRows;
+        f.cols = mCols;
+        f.width = getWidth();
+        f.height = getHeight();
+        mRenderThread.requestRender(f);
+    }
+
+    private int getMaxScrollOffset() {
+        final int contentHeight = (mScrollRows + mRows) * mMetrics.charHeight;
+        return Math.max(contentHeight - getHeight(), 0);
+    }
+
+    private void setScrollOffset(int offset) {
+        offset = Math.max(0, Math.min(offset, getMaxScrollOffset()));
+        if (offset == mScrollOffset) {
+            return;
+        }
+        mScrollOffset = offset;
+
+        // Page in a screen of history ahead of scrolling back into it
+        final int charHeight = mMetrics.charHeight;
+        if (mTerm != null && charHeight > 0) {
+            final int row = offset / charHeight - mScrollRows;
+            if (row < 0) {
+                mTerm.prefetchScrollback(row, (getHeight() / charHeight) * 2);
+            }
+        }
+        requestRender();
+    }
+
+    @Override
+    public void computeScroll() {
+        if (mScroller.computeScrollOffset()) {
+            setScrollOffset(mScroller.getCurrY());
+            postInvalidateOnAnimation();
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        return mGestures.onTouchEvent(event) || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateTerminalSize(w, h);
+    }
+
+    /**
+     * Resize the terminal to fill the given area with the current metrics.
+     */
+    private void updateTerminalSize(int w, int h) {
+        if (w <= 0 || h <= 0 || mMetrics.charHeight <= 0 || mMetrics.charWidth <= 0) {
+            return;
+        }
+        final int rows = h / mMetrics.charHeight;
+        final int cols = w / mMetrics.charWidth;
+
+        final boolean sizeChanged = (rows != mRows || cols != mCols);
+        if (mTerm != null && sizeChanged) {
+            mTerm.resize(rows, cols, mScrollRows);
+
+            mRows = rows;
+            mCols = cols;
+
+            scrollToBottom(false);
+        }
+        requestRender();
+    }
+
+    @Override
+    public void scrollToBottom(boolean animate) {
+        final int max = getMaxScrollOffset();
+        mScroller.forceFinished(true);
+        if (animate) {
+            mScroller.startScroll(0, mScrollOffset, 0, max - mScrollOffset, SCROLL_DURATION);
+            postInvalidateOnAnimation();
+        } else {
+            setScrollOffset(max);
+        }
+    }
+
+    @Override
+    public void showSearchResult(TerminalSearch.Result result, int current) {
+        mFrame.search = result;
+        mFrame.searchCurrent = current;
+
+        if (mTerm != null && result != null && current >= 0 && current < result.count) {
+            final int row = (int) (result.lines[current] - mTerm.getLinesPushed());
+            if (row >= -mScrollRows && row < mRows) {
+                final int charHeight = mMetrics.charHeight;
+                mScroller.forceFinished(true);
+                setScrollOffset((row + mScrollRows) * charHeight
+                        - (getHeight() - charHeight) / 2);
+            }
+        }
+        requestRender();
+    }
+
+    @Override
+    public void setTerminal(Terminal term) {
+        // Render thread is bound to a single terminal
+        stopRenderThread();
+
+        final Terminal orig = mTerm;
+        if (orig != null) {
+            orig.setClient(null);
+        }
+        mDamage.cancel();
+        mTerm = term;
+        if (term != null) {
+            term.setClient(mDamage);
+            mTermKeys.setTerminal(term);
+
+            mMetrics.cursorPaint.setColor(0xfff0f0f0);
+
+            updatePreferences();
+
+            // Populate any current settings
+            mRows = mTerm.getRows();
+            mCols = mTerm.getCols();
+            mScrollRows = mTerm.getScrollRows();
+            scrollToBottom(false);
+
+            startRenderThread();
+        }
+    }
+
+    @Override
+    public Terminal getTerminal() {
+        return mTerm;
+    }
+
+    @Override
+    public void updatePreferences() {
+        final int bg;
+        synchronized (mMetrics) {
+            bg = TerminalView.applyPreferences(getContext(), mTerm, mMetrics);
+        }
+        mFrame.background = bg;
+        mFrame.scrollBarColor = ColorHelper.isColorDark(bg) ? Color.WHITE : Color.BLACK;
+
+        if (mScrollRows != mTerm.getScrollRows()) {
+            mScrollRows = mTerm.getScrollRows();
+            scrollToBottom(false);
+        }
+
+        // Text size may have changed without the view changing size
+        updateTerminalSize(getWidth(), getHeight());
+        requestRender();
+    }
+
+    @Override
+    public boolean onCheckIsTextEditor() {
+        return true;
+    }
+
+    @Override
+    public InputConnection onCreateInputConnection(EditorInfo outAttrs) {
+        TerminalInputConnection.setupEditorInfo(outAttrs);
+        return new TerminalInputConnection(this, this);
+    }
+}
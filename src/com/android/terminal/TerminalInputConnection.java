@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import android.view.KeyEvent;
+import android.view.View;
+import android.view.inputmethod.BaseInputConnection;
+import android.view.inputmethod.EditorInfo;
+
+/**
+ * Input method connection shared by every view displaying a
+ * {@link Terminal}, turning edits into the key events a terminal expects.
+ */
+class TerminalInputConnection extends BaseInputConnection {
+    private final TerminalDisplay mDisplay;
+
+    public TerminalInputConnection(View view, TerminalDisplay display) {
+        super(view, false);
+        mDisplay = display;
+    }
+
+    /**
+     * Fill in editor options for a terminal, which has no text to extract
+     * and no enter action.
+     */
+    public static void setupEditorInfo(EditorInfo outAttrs) {
+        outAttrs.imeOptions |=
+            EditorInfo.IME_FLAG_NO_EXTRACT_UI |
+            EditorInfo.IME_FLAG_NO_ENTER_ACTION |
+            EditorInfo.IME_ACTION_NONE;
+        outAttrs.inputType = EditorInfo.TYPE_NULL;
+    }
+
+    /**
+     * Send committed text straight to the terminal in one go, instead of
+     * as a key event per character.
+     */
+    @Override
+    public boolean commitText(CharSequence text, int newCursorPosition) {
+        final Terminal term = mDisplay.getTerminal();
+        if (term == null) {
+            return false;
+        }
+        if (text.length() > 0) {
+            term.dispatchText(text, 0);
+            mDisplay.scrollToBottom(true);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean deleteSurroundingText (int leftLength, int rightLength) {
+        KeyEvent k;
+        if (rightLength == 0 && leftLength == 0) {
+            k = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DEL);
+            return this.sendKeyEvent(k);
+        }
+        for (int i = 0; i < leftLength; i++) {
+            k = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DEL);
+            this.sendKeyEvent(k);
+        }
+        for (int i = 0; i < rightLength; i++) {
+            k = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_FORWARD_DEL);
+            this.sendKeyEvent(k);
+        }
+        return true;
+    }
+}
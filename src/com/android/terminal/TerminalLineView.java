@@ -19,15 +19,20 @@ package com.android.terminal;
 import static com.android.terminal.Terminal.TAG;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.os.Trace;
 import android.util.Log;
 import android.view.View;
 
+import com.android.terminal.Terminal.RowSnapshot;
 import com.android.terminal.TerminalView.TerminalMetrics;
 
 /**
- * Rendered contents of a single line of a {@link Terminal} session.
+ * Rendered contents of a single line of a {@link Terminal} session. Cells
+ * are rendered into a cached bitmap, which is only redrawn once the row's
+ * content generation moves on; otherwise the line is just recomposited.
  */
 public class TerminalLineView extends View {
     public int pos;
@@ -37,6 +42,13 @@ public class TerminalLineView extends View {
     private final Terminal mTerm;
     private final TerminalMetrics mMetrics;
 
+    private Bitmap mCache;
+    private Canvas mCacheCanvas;
+    /** Row, generation and metrics the cache was rendered for */
+    private int mCacheRow;
+    private int mCacheGeneration;
+    private int mCacheEpoch = -1;
+
     public TerminalLineView(Context context, Terminal term, TerminalMetrics metrics) {
         super(context);
         mTerm = term;
@@ -61,25 +73,39 @@ public class TerminalLineView extends View {
 
         final TerminalMetrics m = mMetrics;
 
-        for (int col = 0; col < cols;) {
-            mTerm.getCellRun(row, col, m.run);
-
-            m.bgPaint.setColor(m.run.bg);
-            m.textPaint.setColor(m.run.fg);
-
-            final int x = col * m.charWidth;
-            final int xEnd = x + (m.run.colSize * m.charWidth);
-
-            canvas.save();
-            canvas.translate(x, 0);
-            canvas.clipRect(0, 0, m.run.colSize * m.charWidth, m.charHeight);
+        // Use rows captured by parent for this frame when available,
+        // otherwise this line is being redrawn on its own.
+        RowSnapshot snap = m.snapshot;
+        if (m.snapshotDrawingTime != getDrawingTime() || !snap.contains(row)) {
+            snap = m.lineSnapshot;
+            mTerm.getRowSnapshot(row, 1, snap);
+        }
 
-            canvas.drawPaint(m.bgPaint);
-            canvas.drawPosText(m.run.data, 0, m.run.dataSize, m.pos, m.textPaint);
+        final int width = cols * m.charWidth;
+        if (width <= 0 || m.charHeight <= 0) {
+            return;
+        }
+        if (mCache == null || mCache.getWidth() != width
+                || mCache.getHeight() != m.charHeight) {
+            mCache = Bitmap.createBitmap(width, m.charHeight, Bitmap.Config.ARGB_8888);
+            mCacheCanvas = new Canvas(mCache);
+            mCacheEpoch = -1;
+        }
 
-            canvas.restore();
+        final int generation = snap.generationOf(row);
+        if (mCacheRow != row || mCacheGeneration != generation || mCacheEpoch != m.epoch) {
+            Trace.beginSection("TerminalLineView.drawRow");
+            mCache.eraseColor(Color.TRANSPARENT);
+            m.drawRow(mCacheCanvas, snap, row, cols);
+            Trace.endSection();
+            mCacheRow = row;
+            mCacheGeneration = generation;
+            mCacheEpoch = m.epoch;
+        }
+        canvas.drawBitmap(mCache, 0, 0, null);
 
-            col += m.run.colSize;
+        if (m.search != null) {
+            m.drawMatches(canvas, m.search, m.searchCurrent, snap.linesPushed + row);
         }
 
         if (mTerm.getCursorVisible() && mTerm.getCursorRow() == row) {
@@ -88,6 +114,5 @@ public class TerminalLineView extends View {
             canvas.drawRect(0, 0, m.charWidth, m.charHeight, m.cursorPaint);
             canvas.restore();
         }
-
     }
 }
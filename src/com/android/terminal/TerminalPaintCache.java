@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import android.graphics.Paint;
+
+import java.util.Arrays;
+
+/**
+ * Solid fill paints keyed by colour, so drawing runs in many colours doesn't
+ * recolour one shared paint for each. With 24-bit colour any number of
+ * colours may turn up, so the cache starts over once full.
+ * Not thread safe; callers hold the lock of the owning TerminalMetrics,
+ * as TerminalRenderThread does while drawing a frame.
+ */
+class TerminalPaintCache {
+    /** Colours held before starting over. */
+    private static final int CAPACITY = 512;
+
+    /** Open addressed table from colour to paint, null paints are empty. */
+    private final int[] mColors = new int[CAPACITY * 2];
+    private final Paint[] mPaints = new Paint[CAPACITY * 2];
+    private int mSize;
+
+    /** Paint filling with the given ARGB colour. Must not be modified. */
+    public Paint get(int color) {
+        final int mask = mPaints.length - 1;
+        int i = hash(color) & mask;
+        while (mPaints[i] != null) {
+            if (mColors[i] == color) {
+                return mPaints[i];
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (mSize == CAPACITY) {
+            Arrays.fill(mPaints, null);
+            mSize = 0;
+            i = hash(color) & mask;
+        }
+
+        final Paint paint = new Paint();
+        paint.setColor(color);
+        mColors[i] = color;
+        mPaints[i] = paint;
+        mSize++;
+        return paint;
+    }
+
+    private static int hash(int key) {
+        key *= 0x9e3779b1;
+        return key ^ (key >>> 16);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import android.os.AsyncTask;
+
+/**
+ * Paste of a large amount of text into a {@link Terminal}, sent in pieces
+ * from the background no faster than the child reads them. Nothing is
+ * dropped however slow the child is, and the paste can be cancelled part
+ * way, in which case a bracketed paste is still properly ended.
+ */
+class TerminalPaste {
+    /** Characters sent at a time; anything shorter can just be sent directly */
+    static final int CHUNK_CHARS = 16 * 1024;
+
+    /** Output queued for the child before waiting for it to catch up */
+    private static final int MAX_QUEUED = 64 * 1024;
+
+    /** Longest wait for the child between checks for cancellation */
+    private static final int WAIT_MILLIS = 100;
+
+    public interface Listener {
+        /** Called on the main thread as pieces are sent. */
+        public void onPasteProgress(int sent, int total);
+
+        /** Called on the main thread once done, cancelled or failed. */
+        public void onPasteFinished(boolean complete);
+    }
+
+    private final Terminal mTerm;
+    private final CharSequence mText;
+    private final Listener mListener;
+
+    private final PasteTask mTask = new PasteTask();
+
+    private class PasteTask extends AsyncTask<Void, Integer, Boolean> {
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            return run();
+        }
+
+        void reportProgress(int sent) {
+            publishProgress(sent);
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            mListener.onPasteProgress(values[0], mText.length());
+        }
+
+        @Override
+        protected void onPostExecute(Boolean complete) {
+            mListener.onPasteFinished(complete);
+        }
+
+        @Override
+        protected void onCancelled(Boolean complete) {
+            mListener.onPasteFinished(false);
+        }
+    }
+
+    public TerminalPaste(Terminal term, CharSequence text, Listener listener) {
+        mTerm = term;
+        mText = text;
+        mListener = listener;
+    }
+
+    public void start() {
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    public void cancel() {
+        mTask.cancel(false);
+    }
+
+    private boolean run() {
+        final int length = mText.length();
+        int offset = 0;
+        while (offset < length && !mTask.isCancelled()) {
+            final int queued = mTerm.waitForWriteQueue(MAX_QUEUED, WAIT_MILLIS);
+            if (queued < 0) {
+                return false;
+            } else if (queued >= MAX_QUEUED) {
+                continue;
+            }
+
+            // Keep surrogate pairs and CRLF line ends within one piece
+            int end = Math.min(offset + CHUNK_CHARS, length);
+            if (end < length && (Character.isHighSurrogate(mText.charAt(end - 1))
+                    || (mText.charAt(end - 1) == '\r' && mText.charAt(end) == '\n'))) {
+                end--;
+            }
+
+            int flags = Terminal.TEXT_PASTE;
+            if (offset == 0) {
+                flags |= Terminal.TEXT_PASTE_START;
+            }
+            if (end == length) {
+                flags |= Terminal.TEXT_PASTE_END;
+            }
+            if (!mTerm.dispatchText(mText.subSequence(offset, end), flags)) {
+                return false;
+            }
+            offset = end;
+            mTask.reportProgress(offset);
+        }
+
+        if (offset < length) {
+            if (offset > 0) {
+                mTerm.dispatchText("", Terminal.TEXT_PASTE | Terminal.TEXT_PASTE_END);
+            }
+            return false;
+        }
+        return true;
+    }
+}
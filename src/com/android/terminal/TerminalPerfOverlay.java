@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.ViewTreeObserver;
+import android.widget.TextView;
+
+import com.android.terminal.Terminal.IoStats;
+import com.android.terminal.Terminal.PerfStats;
+
+import java.util.Locale;
+
+/**
+ * Small text overlay showing how a {@link Terminal} keeps up: output
+ * throughput, parse time, lock latency and how smoothly the window draws.
+ * Numbers are rates over the last second. Timing is only enabled on the
+ * terminal being shown, and watching frames keeps vsync running, so this is
+ * meant for looking into problems rather than leaving on.
+ */
+public class TerminalPerfOverlay extends TextView implements Choreographer.FrameCallback,
+        ViewTreeObserver.OnDrawListener {
+    private static final int SAMPLE_MILLIS = 1000;
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+
+    private Terminal mTerm;
+    private boolean mAttached;
+    private boolean mRunning;
+
+    private IoStats mIo = new IoStats();
+    private IoStats mLastIo = new IoStats();
+    private PerfStats mPerf = new PerfStats();
+    private PerfStats mLastPerf = new PerfStats();
+    private long mLastSampleNanos;
+
+    private long mFrameIntervalNanos;
+    private long mLastFrameNanos;
+    private int mFrames;
+    private int mDroppedFrames;
+
+    private final Runnable mSample = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            postDelayed(this, SAMPLE_MILLIS);
+        }
+    };
+
+    public TerminalPerfOverlay(Context context) {
+        super(context);
+    }
+
+    public TerminalPerfOverlay(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public TerminalPerfOverlay(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    public Terminal getTerminal() {
+        return mTerm;
+    }
+
+    /**
+     * Show stats for the given terminal, or stop sampling with null. Must
+     * be cleared before the terminal is destroyed.
+     */
+    public void setTerminal(Terminal term) {
+        if (mTerm == term) {
+            return;
+        }
+        if (mTerm != null) {
+            mTerm.setPerfStatsEnabled(false);
+        }
+        mTerm = term;
+        if (mTerm != null) {
+            mTerm.setPerfStatsEnabled(true);
+            setText(null);
+        }
+        updateRunning();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        updateRunning();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mAttached = false;
+        updateRunning();
+    }
+
+    private void updateRunning() {
+        final boolean running = mAttached && mTerm != null;
+        if (running == mRunning) {
+            if (running) {
+                resetSample();
+            }
+            return;
+        }
+        mRunning = running;
+
+        if (running) {
+            final Display display = getDisplay();
+            final float refreshRate = display != null ? display.getRefreshRate() : 60;
+            mFrameIntervalNanos = (long) (1000000000L / Math.max(refreshRate, 1));
+            resetSample();
+            getViewTreeObserver().addOnDrawListener(this);
+            mChoreographer.postFrameCallback(this);
+            postDelayed(mSample, SAMPLE_MILLIS);
+        } else {
+            getViewTreeObserver().removeOnDrawListener(this);
+            mChoreographer.removeFrameCallback(this);
+            removeCallbacks(mSample);
+        }
+    }
+
+    private void resetSample() {
+        mTerm.getIoStats(mLastIo);
+        mTerm.getPerfStats(mLastPerf);
+        mLastSampleNanos = SystemClock.elapsedRealtimeNanos();
+        mLastFrameNanos = 0;
+        mFrames = 0;
+        mDroppedFrames = 0;
+    }
+
+    @Override
+    public void onDraw() {
+        mFrames++;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Callbacks run every vsync, so a longer gap means the main thread
+        // missed some
+        if (mLastFrameNanos != 0 && mFrameIntervalNanos > 0) {
+            final long missed = (frameTimeNanos - mLastFrameNanos + mFrameIntervalNanos / 2)
+                    / mFrameIntervalNanos - 1;
+            if (missed > 0) {
+                mDroppedFrames += missed;
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    private void sample() {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final float seconds = Math.max(now - mLastSampleNanos, 1) / 1e9f;
+        mTerm.getIoStats(mIo);
+        mTerm.getPerfStats(mPerf);
+
+        final long snapshots = mPerf.getRowSnapshots() - mLastPerf.getRowSnapshots();
+        final long rows = mPerf.getSnapshotRows() - mLastPerf.getSnapshotRows();
+        final String text = String.format(Locale.US,
+                "out %.1f KB/s  parse %.1f ms/s\n"
+                + "damage %.0f/s  snapshots/frame %.1f  rows/frame %.0f\n"
+                + "lock wait p50 %dus p99 %dus\n"
+                + "lock hold p50 %dus p99 %dus\n"
+                + "%.0f fps  %d dropped",
+                (mIo.getBytes() - mLastIo.getBytes()) / 1024f / seconds,
+                (mPerf.getParseNanos() - mLastPerf.getParseNanos()) / 1e6f / seconds,
+                (mPerf.getDamageEvents() - mLastPerf.getDamageEvents()) / seconds,
+                mFrames > 0 ? (float) snapshots / mFrames : 0f,
+                mFrames > 0 ? (float) rows / mFrames : 0f,
+                mPerf.getLockWaitPercentile(mLastPerf, 0.5f),
+                mPerf.getLockWaitPercentile(mLastPerf, 0.99f),
+                mPerf.getLockHoldPercentile(mLastPerf, 0.5f),
+                mPerf.getLockHoldPercentile(mLastPerf, 0.99f),
+                mFrames / seconds, mDroppedFrames);
+
+        IoStats io = mLastIo;
+        mLastIo = mIo;
+        mIo = io;
+        PerfStats perf = mLastPerf;
+        mLastPerf = mPerf;
+        mPerf = perf;
+        mLastSampleNanos = now;
+        mFrames = 0;
+        mDroppedFrames = 0;
+
+        // Drawing this counts as a frame of its own
+        setText(text);
+    }
+}
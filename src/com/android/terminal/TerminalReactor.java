@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+/**
+ * Single thread servicing pseudo terminal I/O for every {@link Terminal}
+ * started on it, so sessions don't each park a thread in a blocking read.
+ */
+public class TerminalReactor {
+    private static final String TAG = "TerminalReactor";
+
+    static {
+        System.loadLibrary("jni_terminal");
+    }
+
+    final long mNativePtr;
+    private final Thread mThread;
+
+    public TerminalReactor() {
+        mNativePtr = nativeInit();
+        if (mNativePtr == 0) {
+            throw new IllegalStateException("init failed");
+        }
+        mThread = new Thread(TAG) {
+            @Override
+            public void run() {
+                nativeRun(mNativePtr);
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Stop servicing I/O. Every {@link Terminal} started on this reactor must
+     * already be destroyed.
+     */
+    public void destroy() {
+        nativeQuit(mNativePtr);
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        nativeDestroy(mNativePtr);
+    }
+
+    private static native long nativeInit();
+    private static native void nativeRun(long ptr);
+    private static native void nativeQuit(long ptr);
+    private static native void nativeDestroy(long ptr);
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import static com.android.terminal.Terminal.TAG;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Trace;
+import android.util.Log;
+import android.view.Surface;
+
+import com.android.terminal.Terminal.RowSnapshot;
+import com.android.terminal.TerminalView.TerminalMetrics;
+
+/**
+ * Draws the visible grid of a {@link Terminal} into a surface on its own
+ * thread, so rasterising never holds up the main thread or output parsing.
+ * Each frame copies the visible rows out in one short native call and then
+ * draws from that copy without holding any terminal lock.
+ * <p>
+ * Two snapshots are kept, one for the frame being drawn and one for the
+ * frame on screen, so a frame identical to the last can be skipped without
+ * allocating anything.
+ */
+class TerminalRenderThread extends Thread {
+
+    /**
+     * Everything besides terminal contents that decides what a frame looks
+     * like, owned by the main thread and copied when a frame is requested.
+     */
+    static class FrameState {
+        int scrollOffset;
+        int scrollRows;
+        int rows;
+        int cols;
+        int width;
+        int height;
+        int background;
+        int scrollBarColor;
+        TerminalSearch.Result search;
+        int searchCurrent;
+
+        void set(FrameState other) {
+            scrollOffset = other.scrollOffset;
+            scrollRows = other.scrollRows;
+            rows = other.rows;
+            cols = other.cols;
+            width = other.width;
+            height = other.height;
+            background = other.background;
+            scrollBarColor = other.scrollBarColor;
+            search = other.search;
+            searchCurrent = other.searchCurrent;
+        }
+
+        boolean equals(FrameState other) {
+            return scrollOffset == other.scrollOffset && scrollRows == other.scrollRows
+                    && rows == other.rows && cols == other.cols && width == other.width
+                    && height == other.height && background == other.background
+                    && scrollBarColor == other.scrollBarColor && search == other.search
+                    && searchCurrent == other.searchCurrent;
+        }
+    }
+
+    private final Terminal mTerm;
+    private final TerminalMetrics mMetrics;
+    private final Surface mSurface;
+
+    // Guarded by this
+    private final FrameState mRequestedFrame = new FrameState();
+    private boolean mRequested;
+    private boolean mQuit;
+
+    // Only touched on render thread
+    private final FrameState mFrame = new FrameState();
+    private final FrameState mDrawnFrame = new FrameState();
+    private RowSnapshot mSnapshot = new RowSnapshot();
+    private RowSnapshot mDrawnSnapshot = new RowSnapshot();
+    private boolean mDrawn;
+    private int mDrawnEpoch;
+    private boolean mDrawnCursorVisible;
+    private int mDrawnCursorRow;
+    private int mDrawnCursorCol;
+    private final Paint mScrollBarPaint = new Paint();
+
+    /**
+     * Metrics are locked while a frame is drawn; the main thread must hold
+     * the same lock while changing them.
+     */
+    public TerminalRenderThread(Terminal term, TerminalMetrics metrics, Surface surface) {
+        super("TerminalRender");
+        mTerm = term;
+        mMetrics = metrics;
+        mSurface = surface;
+    }
+
+    /**
+     * Ask for a frame with the given state to be drawn. Requests made while
+     * a frame is being drawn are coalesced into the next one.
+     */
+    public synchronized void requestRender(FrameState state) {
+        mRequestedFrame.set(state);
+        mRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop drawing and wait for any frame in progress to finish, after
+     * which the surface may be released.
+     */
+    public void quit() {
+        synchronized (this) {
+            mQuit = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                while (!mRequested && !mQuit) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Keep waiting for work or quit
+                    }
+                }
+                if (mQuit) {
+                    return;
+                }
+                mFrame.set(mRequestedFrame);
+                mRequested = false;
+            }
+
+            Trace.beginSection("TerminalRenderThread.drawFrame");
+            synchronized (mMetrics) {
+                drawFrame();
+            }
+            Trace.endSection();
+        }
+    }
+
+    private void drawFrame() {
+        final TerminalMetrics m = mMetrics;
+        final FrameState f = mFrame;
+        final int charHeight = m.charHeight;
+        if (charHeight <= 0 || f.width <= 0 || f.height <= 0) {
+            return;
+        }
+
+        final int firstPos = f.scrollOffset / charHeight;
+        final int top = -(f.scrollOffset % charHeight);
+        final int count = Math.max(Math.min((f.height - top + charHeight - 1) / charHeight,
+                f.scrollRows + f.rows - firstPos), 0);
+        final int startRow = firstPos - f.scrollRows;
+
+        // Only moment terminal state is read, usually without locking
+        if (count > 0 && !mTerm.getRowSnapshot(startRow, count, mSnapshot)) {
+            return;
+        }
+        final RowSnapshot snap = mSnapshot;
+
+        final boolean cursorVisible = mTerm.getCursorVisible();
+        final int cursorRow = mTerm.getCursorRow();
+        final int cursorCol = mTerm.getCursorCol();
+        if (isUnchanged(count, cursorVisible, cursorRow, cursorCol)) {
+            return;
+        }
+
+        final Canvas canvas;
+        try {
+            canvas = mSurface.lockCanvas(null);
+        } catch (IllegalArgumentException | Surface.OutOfResourcesException e) {
+            Log.w(TAG, "Failed to lock surface", e);
+            return;
+        }
+        try {
+            canvas.drawColor(f.background);
+
+            for (int i = 0; i < count; i++) {
+                final int row = startRow + i;
+                canvas.save();
+                canvas.translate(0, top + i * charHeight);
+                m.drawRow(canvas, snap, row, f.cols);
+                if (f.search != null) {
+                    m.drawMatches(canvas, f.search, f.searchCurrent, snap.linesPushed + row);
+                }
+                if (cursorVisible && row == cursorRow) {
+                    canvas.translate(cursorCol * m.charWidth, 0);
+                    canvas.drawRect(0, 0, m.charWidth, charHeight, m.cursorPaint);
+                }
+                canvas.restore();
+            }
+
+            // Thumb showing where in history the view is, hidden at the bottom
+            final int max = Math.max((f.scrollRows + f.rows) * charHeight - f.height, 0);
+            if (f.scrollOffset < max) {
+                final int contentHeight = f.height + max;
+                final int thumbHeight = Math.max(f.height * f.height / contentHeight, charHeight);
+                final int thumbTop =
+                        (int) ((long) f.scrollOffset * (f.height - thumbHeight) / max);
+                final int thumbWidth = Math.max(m.charWidth / 3, 1);
+                mScrollBarPaint.setColor(f.scrollBarColor);
+                canvas.drawRect(f.width - thumbWidth, thumbTop, f.width,
+                        thumbTop + thumbHeight, mScrollBarPaint);
+            }
+        } finally {
+            mSurface.unlockCanvasAndPost(canvas);
+        }
+
+        // Frame just drawn becomes the one to compare against
+        mSnapshot = mDrawnSnapshot;
+        mDrawnSnapshot = snap;
+        if (count == 0) {
+            mDrawnSnapshot.rows = 0;
+        }
+        mDrawnFrame.set(f);
+        mDrawnEpoch = m.epoch;
+        mDrawnCursorVisible = cursorVisible;
+        mDrawnCursorRow = cursorRow;
+        mDrawnCursorCol = cursorCol;
+        mDrawn = true;
+    }
+
+    /**
+     * Whether the frame about to be drawn would match the one on screen.
+     */
+    private boolean isUnchanged(int count, boolean cursorVisible, int cursorRow,
+            int cursorCol) {
+        if (!mDrawn || !mFrame.equals(mDrawnFrame) || mMetrics.epoch != mDrawnEpoch
+                || cursorVisible != mDrawnCursorVisible || cursorRow != mDrawnCursorRow
+                || cursorCol != mDrawnCursorCol) {
+            return false;
+        }
+
+        final RowSnapshot snap = mSnapshot;
+        final RowSnapshot drawn = mDrawnSnapshot;
+        if (count == 0) {
+            return drawn.rows == 0;
+        }
+        if (snap.startRow != drawn.startRow || snap.rows != drawn.rows
+                || snap.cols != drawn.cols) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (snap.generations[i] != drawn.generations[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
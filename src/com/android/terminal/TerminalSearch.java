@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import android.os.AsyncTask;
+
+import com.android.terminal.Terminal.SearchBatch;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Case-insensitive search of a {@link Terminal}'s screen and scrollback for
+ * plain text or a regular expression, run in the background. A trigram
+ * index kept by the native side rules out most lines, so only the few that
+ * may match are decoded and matched here. Matches are identified by
+ * absolute line, so they stay on their text as output scrolls.
+ */
+class TerminalSearch {
+    /** Rows examined per native call, bounding how long the terminal is locked */
+    private static final int BATCH_ROWS = 4096;
+
+    /** Newest matches kept, the rest of history is ignored */
+    private static final int MAX_MATCHES = 10000;
+
+    /**
+     * Matches of a single search, oldest first. Never modified once
+     * delivered, so it can be shared with other threads.
+     */
+    static class Result {
+        final int count;
+        final long[] lines;
+        final int[] startCols;
+        final int[] endCols;
+
+        Result(int count, long[] lines, int[] startCols, int[] endCols) {
+            this.count = count;
+            this.lines = lines;
+            this.startCols = startCols;
+            this.endCols = endCols;
+        }
+
+        /** Index of the first match on or after the given line. */
+        int firstOnOrAfter(long line) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (lines[mid] < line) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    public interface Listener {
+        /** Called on the main thread, unless the search was cancelled. */
+        public void onSearchFinished(Result result);
+    }
+
+    private final Terminal mTerm;
+    private final Pattern mPattern;
+    private final String mLiteral;
+    private final Listener mListener;
+
+    private final AsyncTask<Void, Void, Result> mTask = new AsyncTask<Void, Void, Result>() {
+        @Override
+        protected Result doInBackground(Void... params) {
+            return run();
+        }
+
+        @Override
+        protected void onPostExecute(Result result) {
+            if (result != null) {
+                mListener.onSearchFinished(result);
+            }
+        }
+    };
+
+    /** Matches collected so far, newest line first */
+    private long[] mLines = new long[64];
+    private int[] mStartCols = new int[64];
+    private int[] mEndCols = new int[64];
+    private int mCount;
+
+    /**
+     * Prepare a search for the given query. Throws
+     * {@link java.util.regex.PatternSyntaxException} when a regular
+     * expression is invalid.
+     */
+    public TerminalSearch(Terminal term, String query, boolean regex, Listener listener) {
+        mTerm = term;
+        mListener = listener;
+        final int flags = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        if (regex) {
+            mPattern = Pattern.compile(query, flags);
+            mLiteral = requiredLiteral(query);
+        } else {
+            mPattern = Pattern.compile(Pattern.quote(query), flags);
+            mLiteral = query;
+        }
+    }
+
+    public void start() {
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    public void cancel() {
+        mTask.cancel(false);
+    }
+
+    private Result run() {
+        final SearchBatch batch = new SearchBatch();
+        final Matcher matcher = mPattern.matcher("");
+        final StringBuilder text = new StringBuilder();
+        int[] colOf = new int[0];
+
+        long line = Long.MAX_VALUE;
+        while (!mTask.isCancelled() && mCount < MAX_MATCHES) {
+            if (!mTerm.search(mLiteral, line, BATCH_ROWS, batch)) {
+                return null;
+            }
+
+            for (int i = 0; i < batch.count && mCount < MAX_MATCHES; i++) {
+                final int start = batch.offsets[i];
+                final int end = batch.offsets[i + 1];
+                if (colOf.length < (end - start) * 2) {
+                    colOf = new int[(end - start) * 2];
+                }
+
+                // Rebuild the row's text, remembering which cell each char came from
+                text.setLength(0);
+                for (int j = start; j < end; j++) {
+                    final int c = batch.chars[j];
+                    if (c == -1) {
+                        continue;
+                    }
+                    colOf[text.length()] = j - start;
+                    if (c > 0xffff) {
+                        colOf[text.length() + 1] = j - start;
+                    }
+                    text.appendCodePoint(c != 0 ? c : ' ');
+                }
+                int length = text.length();
+                while (length > 0 && text.charAt(length - 1) == ' ') {
+                    length--;
+                }
+                text.setLength(length);
+
+                matcher.reset(text);
+                while (matcher.find() && mCount < MAX_MATCHES) {
+                    if (matcher.end() == matcher.start()) {
+                        continue;
+                    }
+                    int endCol = colOf[matcher.end() - 1] + 1;
+                    if (start + endCol < end && batch.chars[start + endCol] == -1) {
+                        endCol++;
+                    }
+                    addMatch(batch.lines[i], colOf[matcher.start()], endCol);
+                }
+            }
+
+            if (batch.scanned < BATCH_ROWS) {
+                break;
+            }
+            line = batch.nextLine;
+        }
+        if (mTask.isCancelled()) {
+            return null;
+        }
+
+        // Lines were visited newest first, flip to oldest first while
+        // keeping matches within a line in order
+        final long[] lines = new long[mCount];
+        final int[] startCols = new int[mCount];
+        final int[] endCols = new int[mCount];
+        int out = 0;
+        int blockEnd = mCount;
+        while (blockEnd > 0) {
+            int blockStart = blockEnd - 1;
+            while (blockStart > 0 && mLines[blockStart - 1] == mLines[blockEnd - 1]) {
+                blockStart--;
+            }
+            for (int i = blockStart; i < blockEnd; i++, out++) {
+                lines[out] = mLines[i];
+                startCols[out] = mStartCols[i];
+                endCols[out] = mEndCols[i];
+            }
+            blockEnd = blockStart;
+        }
+        return new Result(mCount, lines, startCols, endCols);
+    }
+
+    private void addMatch(long line, int startCol, int endCol) {
+        if (mCount == mLines.length) {
+            final int size = mCount * 2;
+            mLines = Arrays.copyOf(mLines, size);
+            mStartCols = Arrays.copyOf(mStartCols, size);
+            mEndCols = Arrays.copyOf(mEndCols, size);
+        }
+        mLines[mCount] = line;
+        mStartCols[mCount] = startCol;
+        mEndCols[mCount] = endCol;
+        mCount++;
+    }
+
+    /**
+     * Longest run of plain characters every match of the given expression
+     * must contain, used to rule out lines through the index. Errs towards
+     * a shorter run or none at all, which only makes the search slower.
+     */
+    static String requiredLiteral(String regex) {
+        if (regex.indexOf('|') >= 0 || regex.contains("(?!") || regex.contains("(?<!")) {
+            return "";
+        }
+
+        String best = "";
+        final StringBuilder run = new StringBuilder();
+        boolean inClass = false;
+        final int length = regex.length();
+        for (int i = 0; i < length; i++) {
+            final char c = regex.charAt(i);
+            final char next = i + 1 < length ? regex.charAt(i + 1) : 0;
+            final boolean optional = next == '?' || next == '*' || next == '{';
+
+            if (c == '\\') {
+                // Escapes are classes, anchors or quoting; none are taken as text
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+                continue;
+            } else if (c == ')' && optional) {
+                return "";
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '{') {
+                // Repeat counts aren't matched text either
+                while (i + 1 < length && regex.charAt(i) != '}') {
+                    i++;
+                }
+            } else if (c == '(' && next == '?') {
+                // Skip flags and group names, which aren't matched text
+                i++;
+                while (i + 1 < length && (Character.isLetter(regex.charAt(i + 1))
+                        || regex.charAt(i + 1) == '-' || regex.charAt(i + 1) == '<')) {
+                    i++;
+                }
+            } else if (Character.isLetterOrDigit(c) || c == ' ') {
+                if (!optional) {
+                    run.append(c);
+                    if (next != '+') {
+                        continue;
+                    }
+                }
+            }
+
+            if (run.length() > best.length()) {
+                best = run.toString();
+            }
+            run.setLength(0);
+        }
+        if (run.length() > best.length()) {
+            best = run.toString();
+        }
+        return best;
+    }
+}
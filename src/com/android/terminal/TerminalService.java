@@ -16,11 +16,19 @@
 
 package com.android.terminal;
 
+import static com.android.terminal.Terminal.TAG;
+
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
+import android.util.Log;
 import android.util.SparseArray;
+import android.widget.Toast;
+
+import java.io.File;
 
 /**
  * Background service that keeps {@link Terminal} instances running and warm
@@ -29,12 +37,48 @@ import android.util.SparseArray;
 public class TerminalService extends Service {
     private final SparseArray<Terminal> mTerminals = new SparseArray<Terminal>();
 
+    private TerminalReactor mReactor;
+    private SharedPreferences mPrefs;
+
+    /** Session logs follow the settings whether or not a session is shown */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (TerminalSettingsActivity.KEY_SESSION_LOG.equals(key)
+                    || TerminalSettingsActivity.KEY_SESSION_LOG_COMPRESS.equals(key)) {
+                for (int i = 0; i < mTerminals.size(); i++) {
+                    applyLogging(mTerminals.valueAt(i));
+                }
+            }
+        }
+    };
+
     public class ServiceBinder extends Binder {
         public TerminalService getService() {
             return TerminalService.this;
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mReactor = new TerminalReactor();
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mPrefs.unregisterOnSharedPreferenceChangeListener(mPrefsListener);
+        for (int i = 0; i < mTerminals.size(); i++) {
+            mTerminals.valueAt(i).destroy();
+        }
+        mTerminals.clear();
+        mReactor.destroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return new ServiceBinder();
@@ -51,7 +95,24 @@ public class TerminalService extends Service {
         }
 
         final Terminal term = new Terminal();
-        term.start();
+        // Log from the start so the first prompt is captured too
+        applyLogging(term);
+        term.start(mReactor);
+        mTerminals.put(term.key, term);
+        return term.key;
+    }
+
+    /**
+     * Create a session without a child that plays back the given recording
+     * at its original pace.
+     */
+    public int createReplayTerminal(File recording) {
+        if (mTerminals.size() == 0) {
+            startService(new Intent(this, TerminalService.class));
+        }
+
+        final Terminal term = new Terminal();
+        term.replay(recording, Terminal.REPLAY_REALTIME);
         mTerminals.put(term.key, term);
         return term.key;
     }
@@ -66,4 +127,23 @@ public class TerminalService extends Service {
             stopService(new Intent(this, TerminalService.class));
         }
     }
+
+    /**
+     * Start or stop logging the given session to match the settings. When
+     * the log can't be opened, logging is turned off rather than failing
+     * every session that starts after it.
+     */
+    private void applyLogging(Terminal term) {
+        final String val = mPrefs.getString(TerminalSettingsActivity.KEY_SESSION_LOG, "off");
+        final boolean compress =
+                mPrefs.getBoolean(TerminalSettingsActivity.KEY_SESSION_LOG_COMPRESS, false);
+        try {
+            term.setLogging("off".equals(val) ? null : getExternalFilesDir("logs"),
+                    "plain".equals(val) ? Terminal.LOG_PLAIN : Terminal.LOG_RAW, compress);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to start session log", e);
+            Toast.makeText(this, R.string.session_log_failed, Toast.LENGTH_SHORT).show();
+            mPrefs.edit().putString(TerminalSettingsActivity.KEY_SESSION_LOG, "off").apply();
+        }
+    }
 }
@@ -44,6 +44,14 @@ public class TerminalSettingsActivity extends PreferenceActivity {
     public static final String KEY_VOLUME_MODE        = "volumekey_mode";
     public static final String KEY_TEXT_COLOR         = "text_color";
     public static final String KEY_BACKGROUND_COLOR   = "background_color";
+    public static final String KEY_PALETTE            = "palette";
+    public static final String KEY_SCROLLBACK_SIZE    = "scrollback_size";
+    public static final String KEY_SCROLLBACK_SPILL   = "scrollback_spill";
+    public static final String KEY_OUTPUT_LATENCY     = "output_latency";
+    public static final String KEY_RENDERER           = "renderer";
+    public static final String KEY_SESSION_LOG        = "session_log";
+    public static final String KEY_SESSION_LOG_COMPRESS = "session_log_compress";
+    public static final String KEY_PERF_OVERLAY       = "perf_overlay";
 
     private int mThemeResId = 0;
     private boolean mCustomizeColors = false;
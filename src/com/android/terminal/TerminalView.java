@@ -36,30 +36,37 @@ import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.inputmethod.BaseInputConnection;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.ListView;
+import android.widget.Toast;
 
 import com.android.internal.util.darkkat.ColorHelper;
 
-import com.android.terminal.Terminal.CellRun;
-import com.android.terminal.Terminal.TerminalClient;
+import com.android.terminal.Terminal.RowSnapshot;
 
 import net.darkkatrom.dkcolorpicker.util.ColorPickerHelper;
 
+import java.util.Arrays;
+import java.util.BitSet;
+
 /**
  * Rendered contents of a {@link Terminal} session.
  */
-public class TerminalView extends ListView {
+public class TerminalView extends ListView implements TerminalDisplay {
     private static final boolean LOGD = true;
 
     private static final boolean SCROLL_ON_DAMAGE = false;
     private static final boolean SCROLL_ON_INPUT = true;
 
+    /** Translucent, so text under a match stays readable */
+    private static final int MATCH_COLOR = 0x66ffeb3b;
+    private static final int CURRENT_MATCH_COLOR = 0x99ff9800;
+
     private Terminal mTerm;
 
     private boolean mScrolled;
@@ -74,34 +81,63 @@ public class TerminalView extends ListView {
     private final TerminalKeys mTermKeys = new TerminalKeys();
 
     /**
-     * Metrics shared between all {@link TerminalLineView} children. Locking
+     * Metrics and row rendering shared between all {@link TerminalLineView}
+     * children, or used directly by {@link TerminalGridView}. Locking
      * provided by main thread.
      */
     static class TerminalMetrics {
-        private static final int MAX_RUN_LENGTH = 128;
-
-        final Paint bgPaint = new Paint();
         final Paint textPaint = new Paint();
         final Paint cursorPaint = new Paint();
-
-        /** Run of cells used when drawing */
-        final CellRun run;
-        /** Screen coordinates to draw chars into */
-        final float[] pos;
+        final Paint matchPaint = new Paint();
+        final Paint currentMatchPaint = new Paint();
+
+        /** Fills for backgrounds and decorations, by colour */
+        final TerminalPaintCache fills = new TerminalPaintCache();
+
+        /** Rasterised glyphs blitted for single-width cells */
+        final TerminalGlyphCache glyphs = new TerminalGlyphCache();
+
+        /** Rows visible during the current frame */
+        final RowSnapshot snapshot = new RowSnapshot();
+        /** Drawing time of the frame {@link #snapshot} was taken for */
+        long snapshotDrawingTime = -1;
+        /** Single row fetched when a line is drawn outside of a full frame */
+        final RowSnapshot lineSnapshot = new RowSnapshot();
+
+        /** Text paints by style ID, valid for {@link #stylePaintsEpoch} */
+        final Paint[] stylePaints = new Paint[Terminal.MAX_STYLES];
+        int stylePaintsEpoch = -1;
+        int stylePaintsMetricsEpoch = -1;
+
+        /** Characters of the run being drawn */
+        char[] runText = new char[0];
+        /** Screen coordinates to draw {@link #runText} into */
+        float[] runPos = new float[0];
+        /** Position of every cell in a row, laid out for {@link #rowPosEpoch} */
+        float[] rowPos = new float[0];
+        int rowPosEpoch = -1;
 
         int charTop;
         int charWidth;
         int charHeight;
 
-        public TerminalMetrics() {
-            run = new Terminal.CellRun();
-            run.data = new char[MAX_RUN_LENGTH];
+        /** Decoration offsets from the top of a cell */
+        float underlineY;
+        float strikeY;
+        float lineThickness;
+
+        /** Bumped whenever rows rendered with older metrics are stale */
+        int epoch;
 
-            // Positions of each possible cell
-            // TODO: make sure this works with surrogate pairs
-            pos = new float[MAX_RUN_LENGTH * 2];
+        /** Search highlighted by line views, if any */
+        TerminalSearch.Result search;
+        int searchCurrent = -1;
+
+        public TerminalMetrics() {
             textPaint.setTypeface(Typeface.MONOSPACE);
             textPaint.setAntiAlias(true);
+            matchPaint.setColor(MATCH_COLOR);
+            currentMatchPaint.setColor(CURRENT_MATCH_COLOR);
         }
 
         public void setTextSize(float textSize) {
@@ -116,10 +152,202 @@ public class TerminalView extends ListView {
             charWidth = (int) Math.ceil(widths[0]);
             charHeight = (int) Math.ceil(fm.descent - fm.top);
 
-            // Update drawing positions
-            for (int i = 0; i < MAX_RUN_LENGTH; i++) {
-                pos[i * 2] = i * charWidth;
-                pos[(i * 2) + 1] = -charTop;
+            lineThickness = Math.max(1, Math.round(textSize / 14));
+            underlineY = Math.min(-charTop + Math.max(fm.descent / 2, lineThickness),
+                    charHeight - lineThickness);
+            strikeY = -charTop + fm.ascent * 0.3f;
+
+            glyphs.setMetrics(textPaint, charTop, charWidth, charHeight);
+            epoch++;
+        }
+
+        /**
+         * Make sure run buffers can hold a full row, where every cell may
+         * need a surrogate pair. Only glyphs that don't fit the atlas are
+         * drawn as text.
+         */
+        void ensureRunCapacity(int cols) {
+            if (runText.length < cols * 2) {
+                runText = new char[cols * 2];
+                runPos = new float[cols * 4];
+            }
+        }
+
+        /**
+         * Render every cell of a row from the given snapshot, up to cols
+         * cells, with the row's top left corner at the origin.
+         */
+        void drawRow(Canvas canvas, RowSnapshot snap, int row, int cols) {
+            final int drawCols = Math.min(cols, snap.cols);
+            final int base = snap.offsetOf(row);
+            ensureRunCapacity(drawCols);
+
+            if (snap.isSimpleRow(row)) {
+                drawSimpleRow(canvas, snap, base, drawCols);
+                return;
+            }
+
+            for (int col = 0; col < drawCols;) {
+                final int style = snap.styles[base + col];
+
+                // Extend run while formatting matches
+                int end = col + 1;
+                while (end < drawCols && snap.styles[base + end] == style) {
+                    end++;
+                }
+
+                final int attrs = snap.attrsOf(style);
+                int fg = snap.fgOf(style);
+                int bg = snap.bgOf(style);
+                if ((attrs & Terminal.ATTR_REVERSE) != 0) {
+                    final int swap = fg;
+                    fg = bg;
+                    bg = swap;
+                }
+
+                final float left = col * charWidth;
+                final float right = end * charWidth;
+                canvas.drawRect(left, 0, right, charHeight, fills.get(bg));
+
+                // Blit single-width glyphs from the atlas, collecting wide ones
+                // that would be clipped by a cell to draw as text
+                int size = 0;
+                for (int i = col; i < end; i++) {
+                    final int c = snap.chars[base + i];
+                    final int width = snap.widths[base + i];
+                    if (c == 0 || c == ' ' || width == 0) {
+                        continue;
+                    }
+
+                    final float x = i * charWidth;
+                    if (width == 1) {
+                        glyphs.draw(canvas, c, attrs, fg, x, 0);
+                    } else if (c < 0x10000) {
+                        runText[size] = (char) c;
+                        runPos[size * 2] = x;
+                        runPos[(size * 2) + 1] = -charTop;
+                        size++;
+                    } else {
+                        runText[size] = Character.highSurrogate(c);
+                        runText[size + 1] = Character.lowSurrogate(c);
+                        runPos[size * 2] = x;
+                        runPos[(size * 2) + 1] = -charTop;
+                        runPos[(size * 2) + 2] = x;
+                        runPos[(size * 2) + 3] = -charTop;
+                        size += 2;
+                    }
+                }
+
+                if (size > 0) {
+                    canvas.drawPosText(runText, 0, size, runPos,
+                            getStylePaint(snap, style, attrs, fg));
+                }
+
+                drawDecorations(canvas, attrs, fg, left, right);
+                col = end;
+            }
+        }
+
+        /**
+         * Render a row of plain ASCII in a single style, which the native
+         * side flagged as such, with one fill and one text draw.
+         */
+        private void drawSimpleRow(Canvas canvas, RowSnapshot snap, int base, int drawCols) {
+            if (rowPos.length < drawCols * 2 || rowPosEpoch != epoch) {
+                rowPos = new float[Math.max(drawCols, rowPos.length / 2) * 2];
+                for (int i = 0; i < rowPos.length / 2; i++) {
+                    rowPos[i * 2] = i * charWidth;
+                    rowPos[(i * 2) + 1] = -charTop;
+                }
+                rowPosEpoch = epoch;
+            }
+
+            final int style = snap.styles[base];
+            final int attrs = snap.attrsOf(style);
+            int fg = snap.fgOf(style);
+            int bg = snap.bgOf(style);
+            if ((attrs & Terminal.ATTR_REVERSE) != 0) {
+                final int swap = fg;
+                fg = bg;
+                bg = swap;
+            }
+
+            final float right = drawCols * charWidth;
+            canvas.drawRect(0, 0, right, charHeight, fills.get(bg));
+
+            // Blank cells are drawn as spaces, and trailing ones not at all
+            int size = 0;
+            for (int i = 0; i < drawCols; i++) {
+                final int c = snap.chars[base + i];
+                if (c > ' ') {
+                    size = i + 1;
+                }
+                runText[i] = c == 0 ? ' ' : (char) c;
+            }
+            if (size > 0) {
+                canvas.drawPosText(runText, 0, size, rowPos, getStylePaint(snap, style, attrs, fg));
+            }
+
+            drawDecorations(canvas, attrs, fg, 0, right);
+        }
+
+        /**
+         * Draw underline and strikethrough across a run. They span the
+         * whole run, so are drawn once for it rather than per cell.
+         */
+        private void drawDecorations(Canvas canvas, int attrs, int fg, float left, float right) {
+            final int underline = (attrs & Terminal.ATTR_UNDERLINE_MASK)
+                    >> Terminal.ATTR_UNDERLINE_SHIFT;
+            if (underline == 0 && (attrs & Terminal.ATTR_STRIKE) == 0) {
+                return;
+            }
+
+            final Paint linePaint = fills.get(fg);
+            if (underline != 0) {
+                canvas.drawRect(left, underlineY, right, underlineY + lineThickness, linePaint);
+            }
+            if (underline == 2) {
+                final float y = underlineY - lineThickness * 2;
+                canvas.drawRect(left, y, right, y + lineThickness, linePaint);
+            }
+            if ((attrs & Terminal.ATTR_STRIKE) != 0) {
+                canvas.drawRect(left, strikeY, right, strikeY + lineThickness, linePaint);
+            }
+        }
+
+        /**
+         * Paint for drawing text of the given style, made on first use and
+         * kept until the session's styles or the metrics change.
+         */
+        private Paint getStylePaint(RowSnapshot snap, int style, int attrs, int fg) {
+            if (stylePaintsEpoch != snap.styleEpoch || stylePaintsMetricsEpoch != epoch) {
+                Arrays.fill(stylePaints, null);
+                stylePaintsEpoch = snap.styleEpoch;
+                stylePaintsMetricsEpoch = epoch;
+            }
+
+            Paint paint = stylePaints[style];
+            if (paint == null) {
+                paint = new Paint(textPaint);
+                paint.setColor(fg);
+                paint.setFakeBoldText((attrs & Terminal.ATTR_BOLD) != 0);
+                paint.setTextSkewX((attrs & Terminal.ATTR_ITALIC) != 0
+                        ? TerminalGlyphCache.ITALIC_SKEW : 0);
+                stylePaints[style] = paint;
+            }
+            return paint;
+        }
+
+        /**
+         * Highlight search matches on the given absolute line over a row
+         * drawn at the origin, marking the current match differently.
+         */
+        void drawMatches(Canvas canvas, TerminalSearch.Result result, int current, long line) {
+            for (int i = result.firstOnOrAfter(line);
+                    i < result.count && result.lines[i] == line; i++) {
+                canvas.drawRect(result.startCols[i] * charWidth, 0,
+                        result.endCols[i] * charWidth, charHeight,
+                        i == current ? currentMatchPaint : matchPaint);
             }
         }
     }
@@ -136,18 +364,27 @@ public class TerminalView extends ListView {
         }
     };
 
-    private final Runnable mDamageRunnable = new Runnable() {
+    private final TerminalDamage mDamage = new TerminalDamage(new TerminalDamage.Listener() {
         @Override
-        public void run() {
-            invalidateViews();
+        public void onDamage(BitSet rows, boolean scrollback) {
+            // Only redraw lines whose contents changed
+            for (int i = 0; i < getChildCount(); i++) {
+                final View child = getChildAt(i);
+                if (child instanceof TerminalLineView) {
+                    final int row = ((TerminalLineView) child).row;
+                    if (row < 0 ? scrollback : rows.get(row)) {
+                        child.invalidate();
+                    }
+                }
+            }
             if (SCROLL_ON_DAMAGE) {
                 scrollToBottom(true);
             }
         }
-    };
+    });
 
-    private final float PT_PER_INCH = 72.0f;
-    private float ptToDp(float pt) {
+    private static final float PT_PER_INCH = 72.0f;
+    private static float ptToDp(float pt) {
         return (pt / PT_PER_INCH) * (float)DisplayMetrics.DENSITY_DEFAULT;
     }
 
@@ -172,6 +409,7 @@ public class TerminalView extends ListView {
         setOnKeyListener(mKeyListener);
 
         setOnItemClickListener(mClickListener);
+        setOnScrollListener(mScrollListener);
     }
 
     private final BaseAdapter mAdapter = new BaseAdapter() {
@@ -210,38 +448,31 @@ public class TerminalView extends ListView {
         }
     };
 
-    private TerminalClient mClient = new TerminalClient() {
-        @Override
-        public void onDamage(final int startRow, final int endRow, int startCol, int endCol) {
-            post(mDamageRunnable);
-        }
+    private int rowToPos(int row) {
+        return row + mScrollRows;
+    }
 
-        @Override
-        public void onMoveRect(int destStartRow, int destEndRow, int destStartCol, int destEndCol,
-                int srcStartRow, int srcEndRow, int srcStartCol, int srcEndCol) {
-            post(mDamageRunnable);
-        }
+    private int posToRow(int pos) {
+        return pos - mScrollRows;
+    }
 
+    private final AbsListView.OnScrollListener mScrollListener =
+            new AbsListView.OnScrollListener() {
         @Override
-        public void onMoveCursor(int posRow, int posCol, int oldPosRow,
-                int oldPosCol, int visible) {
-            post(mDamageRunnable);
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
         }
 
         @Override
-        public void onBell() {
-            Log.i(TAG, "DING!");
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            // Page in a screen of history ahead of scrolling back into it
+            final int row = posToRow(firstVisibleItem);
+            if (mTerm != null && row < 0) {
+                mTerm.prefetchScrollback(row, visibleItemCount * 2);
+            }
         }
     };
 
-    private int rowToPos(int row) {
-        return row + mScrollRows;
-    }
-
-    private int posToRow(int pos) {
-        return pos - mScrollRows;
-    }
-
     private View.OnKeyListener mKeyListener = new OnKeyListener() {
         @Override
         public boolean onKey(View v, int keyCode, KeyEvent event) {
@@ -253,6 +484,17 @@ public class TerminalView extends ListView {
         }
     };
 
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        // Fetch every visible row in one pass before children draw
+        final int count = getChildCount();
+        if (mTerm != null && count > 0) {
+            mTerm.getRowSnapshot(posToRow(getFirstVisiblePosition()), count, mMetrics.snapshot);
+            mMetrics.snapshotDrawingTime = getDrawingTime();
+        }
+        super.dispatchDraw(canvas);
+    }
+
     @Override
     protected void onDrawVerticalScrollBar(Canvas canvas, Drawable scrollBar,
             int l, int t, int r, int b) {
@@ -294,21 +536,39 @@ public class TerminalView extends ListView {
         }
     }
 
+    @Override
     public void scrollToBottom(boolean animate) {
         final int dur = animate ? 250 : 0;
         smoothScrollToPositionFromTop(getCount(), 0, dur);
         mScrolled = true;
     }
 
+    @Override
+    public void showSearchResult(TerminalSearch.Result result, int current) {
+        mMetrics.search = result;
+        mMetrics.searchCurrent = current;
+
+        if (mTerm != null && result != null && current >= 0 && current < result.count) {
+            final int row = (int) (result.lines[current] - mTerm.getLinesPushed());
+            if (row >= -mScrollRows && row < mRows) {
+                setSelectionFromTop(rowToPos(row), (getHeight() - mMetrics.charHeight) / 2);
+                mScrolled = true;
+            }
+        }
+        invalidateViews();
+    }
+
+    @Override
     public void setTerminal(Terminal term) {
         final Terminal orig = mTerm;
         if (orig != null) {
             orig.setClient(null);
         }
+        mDamage.cancel();
         mTerm = term;
         mScrolled = false;
         if (term != null) {
-            term.setClient(mClient);
+            term.setClient(mDamage);
             mTermKeys.setTerminal(term);
 
             mMetrics.cursorPaint.setColor(0xfff0f0f0);
@@ -323,6 +583,7 @@ public class TerminalView extends ListView {
         }
     }
 
+    @Override
     public Terminal getTerminal() {
         return mTerm;
     }
@@ -341,57 +602,109 @@ public class TerminalView extends ListView {
 
     @Override
     public InputConnection onCreateInputConnection(EditorInfo outAttrs) {
-        outAttrs.imeOptions |=
-            EditorInfo.IME_FLAG_NO_EXTRACT_UI |
-            EditorInfo.IME_FLAG_NO_ENTER_ACTION |
-            EditorInfo.IME_ACTION_NONE;
-        outAttrs.inputType = EditorInfo.TYPE_NULL;
-        return new BaseInputConnection(this, false) {
-            @Override
-            public boolean deleteSurroundingText (int leftLength, int rightLength) {
-                KeyEvent k;
-                if (rightLength == 0 && leftLength == 0) {
-                    k = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DEL);
-                    return this.sendKeyEvent(k);
-                }
-                for (int i = 0; i < leftLength; i++) {
-                    k = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DEL);
-                    this.sendKeyEvent(k);
-                }
-                for (int i = 0; i < rightLength; i++) {
-                    k = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_FORWARD_DEL);
-                    this.sendKeyEvent(k);
-                }
-                return true;
-            }
-        };
+        TerminalInputConnection.setupEditorInfo(outAttrs);
+        return new TerminalInputConnection(this, this);
     }
 
+    @Override
     public void updatePreferences() {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getContext());
+        final int bg = applyPreferences(getContext(), mTerm, mMetrics);
+        mScrollBarColor = ColorHelper.isColorDark(bg) ? Color.WHITE : Color.BLACK;
+        setBackgroundColor(bg);
+
+        if (mScrollRows != mTerm.getScrollRows()) {
+            mScrollRows = mTerm.getScrollRows();
+            mAdapter.notifyDataSetChanged();
+        }
+
+        invalidateViews();
+    }
+
+    /**
+     * Apply settings shared by every renderer to the given terminal and
+     * metrics. Returns the background color to draw behind the rows.
+     */
+    static int applyPreferences(Context context, Terminal term, TerminalMetrics metrics) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
 
         String val = sp.getString(TerminalSettingsActivity.KEY_FONT_SIZE, "12");
-        mMetrics.setTextSize(ptToDp(Float.parseFloat(val)));
+        metrics.setTextSize(ptToDp(Float.parseFloat(val)));
+
+        final boolean spill = sp.getBoolean(TerminalSettingsActivity.KEY_SCROLLBACK_SPILL, false);
+        try {
+            term.setScrollbackSpill(spill ? context.getCacheDir() : null);
+        } catch (IllegalStateException e) {
+            // Keep the in-memory history rather than failing on every start
+            Log.w(TAG, "Failed to spill scrollback", e);
+            Toast.makeText(context, R.string.scrollback_spill_failed, Toast.LENGTH_SHORT).show();
+            sp.edit().putBoolean(TerminalSettingsActivity.KEY_SCROLLBACK_SPILL, false).apply();
+        }
+
+        val = sp.getString(TerminalSettingsActivity.KEY_OUTPUT_LATENCY, "4");
+        term.setLatencyBudget(Integer.parseInt(val));
+
+        val = sp.getString(TerminalSettingsActivity.KEY_SCROLLBACK_SIZE, "1000");
+        final int scrollRows = Integer.parseInt(val);
+        if (scrollRows != term.getScrollRows()) {
+            term.resize(term.getRows(), term.getCols(), scrollRows);
+        }
 
         String fgStringIndex = sp.getString(TerminalSettingsActivity.KEY_TEXT_COLOR, "1");
         String bgStringIndex = sp.getString(TerminalSettingsActivity.KEY_BACKGROUND_COLOR, "0");
-        int fgIndex = Integer.valueOf(fgStringIndex);
-        int bgIndex = Integer.valueOf(bgStringIndex);
-        int fg = getTextOrBackgroundColor(fgIndex);
-        int bg = getTextOrBackgroundColor(bgIndex);
-        mScrollBarColor = ColorHelper.isColorDark(bg) ? Color.WHITE : Color.BLACK;
+        int fgIndex = Integer.parseInt(fgStringIndex);
+        int bgIndex = Integer.parseInt(bgStringIndex);
+        int fg = getTextOrBackgroundColor(context, fgIndex);
+        int bg = getTextOrBackgroundColor(context, bgIndex);
 
-        setBackgroundColor(bg);
-        mTerm.setColors(fg, bg);
-        mMetrics.run.fg = fg;
-        mMetrics.run.bg = bg;
-        mMetrics.cursorPaint.setColor(fg);
+        term.setColors(fg, bg);
+        metrics.cursorPaint.setColor(fg);
+
+        val = sp.getString(TerminalSettingsActivity.KEY_PALETTE, "default");
+        term.setPalette(getPalette(context, val));
+        return bg;
+    }
+
+    /** Most recently parsed palette, which rarely changes */
+    private static String sPaletteName;
+    private static int[] sPalette;
+
+    private static int[] getPalette(Context context, String name) {
+        if (!name.equals(sPaletteName)) {
+            final int resId;
+            if ("xterm".equals(name)) {
+                resId = R.array.palette_xterm_colors;
+            } else if ("tango".equals(name)) {
+                resId = R.array.palette_tango_colors;
+            } else if ("solarized".equals(name)) {
+                resId = R.array.palette_solarized_colors;
+            } else {
+                resId = R.array.palette_default_colors;
+            }
+
+            String[] colors = context.getResources().getStringArray(resId);
+            final int[] parsed = new int[colors.length];
+            for (int i = 0; i < colors.length; i++) {
+                parsed[i] = ColorPickerHelper.convertToColorInt(colors[i]);
+            }
+            sPaletteName = name;
+            sPalette = parsed;
+        }
+        return sPalette;
     }
 
-    private int getTextOrBackgroundColor(int index) {
-        String[] colors =
-                getContext().getResources().getStringArray(R.array.text_background_hex_color_values);
-        int color = ColorPickerHelper.convertToColorInt(colors[index]);
-        return color;
+    /** Parsed text_background_hex_color_values, which never change */
+    private static int[] sTextOrBackgroundColors;
+
+    private static int getTextOrBackgroundColor(Context context, int index) {
+        if (sTextOrBackgroundColors == null) {
+            String[] colors = context.getResources().getStringArray(
+                    R.array.text_background_hex_color_values);
+            final int[] parsed = new int[colors.length];
+            for (int i = 0; i < colors.length; i++) {
+                parsed[i] = ColorPickerHelper.convertToColorInt(colors[i]);
+            }
+            sTextOrBackgroundColors = parsed;
+        }
+        return sTextOrBackgroundColors[index];
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.terminal;
+
+import junit.framework.TestCase;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TerminalSearchTest extends TestCase {
+
+    /**
+     * Lines ruled out by the literal must not match the expression, so it
+     * has to turn up in every match; check it against a sample match.
+     */
+    private static void assertLiteralInMatch(String regex, String text) {
+        final Matcher matcher = Pattern.compile(regex).matcher(text);
+        assertTrue(regex + " should match " + text, matcher.find());
+        final String literal = TerminalSearch.requiredLiteral(regex);
+        assertTrue(regex + " required \"" + literal + "\" outside its match",
+                matcher.group().contains(literal));
+    }
+
+    private static String repeat(char c, int count) {
+        final StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    public void testPlainText() {
+        assertEquals("hello world", TerminalSearch.requiredLiteral("hello world"));
+        assertLiteralInMatch("hello world", "say hello world");
+    }
+
+    public void testRepeatCounts() {
+        assertLiteralInMatch("a{3}", "aaa");
+        assertLiteralInMatch("\\d{100}", repeat('7', 100));
+        assertLiteralInMatch("(ab){2}", "abab");
+        assertLiteralInMatch("x{2,}", "xxxx");
+        assertLiteralInMatch("x{2,300}", "xx");
+        assertLiteralInMatch("ab{100}c", "a" + repeat('b', 100) + "c");
+        assertLiteralInMatch("foo{2}bar", "fooobar");
+    }
+
+    public void testOptionalParts() {
+        assertLiteralInMatch("colou?r", "color");
+        assertLiteralInMatch("err(or)?s", "errs");
+        assertLiteralInMatch("[0-9]+ms", "16ms");
+    }
+}